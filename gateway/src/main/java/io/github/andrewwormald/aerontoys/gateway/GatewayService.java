@@ -6,14 +6,22 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import io.aeron.cluster.client.AeronCluster;
 import io.github.andrewwormald.aerontoys.gateway.client.ClusterClient;
+import io.github.andrewwormald.aerontoys.gateway.client.ToyPage;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 public class GatewayService {
     private static final Logger LOGGER = LoggerFactory.getLogger(GatewayService.class);
@@ -21,6 +29,7 @@ public class GatewayService {
     private final HttpServer server;
     private final ObjectMapper objectMapper;
     private final ClusterClient clusterClient;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
     private final CountDownLatch shutdownLatch = new CountDownLatch(1);
 
     public GatewayService(int port) throws IOException {
@@ -29,7 +38,7 @@ public class GatewayService {
         this.clusterClient = new ClusterClient();
 
         setupRoutes();
-        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.setExecutor(executor);
     }
 
     public static void main(String[] args) {
@@ -47,6 +56,8 @@ public class GatewayService {
     private void setupRoutes() {
         server.createContext("/api/toys", new CreateToyHandler());
         server.createContext("/api/toys/", new GetToyHandler());
+        server.createContext("/api/toys/count", new CountToysHandler());
+        server.createContext("/api/customers/", new CustomerToysHandler());
         server.createContext("/health", new HealthHandler());
     }
 
@@ -76,6 +87,7 @@ public class GatewayService {
         try {
             server.stop(0);
             clusterClient.close();
+            executor.shutdown();
             shutdownLatch.countDown();
             LOGGER.info("Gateway service stopped");
         } catch (Exception e) {
@@ -95,10 +107,15 @@ public class GatewayService {
                 String requestBody = new String(exchange.getRequestBody().readAllBytes());
                 CreateToyRequest request = objectMapper.readValue(requestBody, CreateToyRequest.class);
 
-                // Send create toy message to cluster via Aeron client
-                String response = clusterClient.createToy(request.customerId);
-
-                sendResponse(exchange, 201, response);
+                // Send create toy message to cluster via Aeron client, a retry with the same Idempotency-Key
+                // header returns the toy already created
+                respondWhenComplete(
+                    exchange,
+                    201,
+                    clusterClient.createToyAsync(
+                        request.customerId, exchange.getRequestHeaders().getFirst("Idempotency-Key")),
+                    Function.identity(),
+                    "Error creating toy");
             } catch (Exception e) {
                 LOGGER.error("Error creating toy", e);
                 sendResponse(exchange, 500, "{\"error\":\"Internal server error\"}");
@@ -119,9 +136,12 @@ public class GatewayService {
                 String toyId = path.substring(path.lastIndexOf('/') + 1);
 
                 // Query toy status from cluster via Aeron client
-                String response = clusterClient.getToy(Long.parseLong(toyId));
-
-                sendResponse(exchange, 200, response);
+                respondWhenComplete(
+                    exchange,
+                    200,
+                    clusterClient.getToyAsync(Long.parseLong(toyId)),
+                    Function.identity(),
+                    "Error getting toy status");
             } catch (Exception e) {
                 LOGGER.error("Error getting toy status", e);
                 sendResponse(exchange, 500, "{\"error\":\"Internal server error\"}");
@@ -129,6 +149,84 @@ public class GatewayService {
         }
     }
 
+    private class CustomerToysHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            // Path: /api/customers/{customerId}/toys?after={toyId}&pageSize={n}, both parameters optional
+            String[] segments = exchange.getRequestURI().getPath().split("/");
+            if (segments.length != 5 || !"toys".equals(segments[4])) {
+                sendResponse(exchange, 404, "{\"error\":\"Not found\"}");
+                return;
+            }
+
+            try {
+                long customerId = Long.parseLong(segments[3]);
+                long afterToyId = ToyPage.NO_CURSOR;
+                int pageSize = 0;
+
+                String query = exchange.getRequestURI().getQuery();
+                if (query != null) {
+                    for (String parameter : query.split("&")) {
+                        if (parameter.startsWith("after=")) {
+                            afterToyId = Long.parseLong(parameter.substring("after=".length()));
+                        } else if (parameter.startsWith("pageSize=")) {
+                            pageSize = Integer.parseInt(parameter.substring("pageSize=".length()));
+                        }
+                    }
+                }
+
+                respondWhenComplete(
+                    exchange,
+                    200,
+                    clusterClient.listToysByCustomerAsync(customerId, afterToyId, pageSize),
+                    ToyPage::toJson,
+                    "Error listing toys for customer");
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "{\"error\":\"Invalid customerId, after or pageSize\"}");
+            } catch (Exception e) {
+                LOGGER.error("Error listing toys for customer", e);
+                sendResponse(exchange, 500, "{\"error\":\"Internal server error\"}");
+            }
+        }
+    }
+
+    private class CountToysHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+                return;
+            }
+
+            // Query: /api/toys/count?status=ASSEMBLED
+            String query = exchange.getRequestURI().getQuery();
+            if (query == null || !query.startsWith("status=")) {
+                sendResponse(exchange, 400, "{\"error\":\"Missing status parameter\"}");
+                return;
+            }
+
+            try {
+                ToyStatus status = ToyStatus.valueOf(query.substring("status=".length()).toUpperCase());
+                respondWhenComplete(
+                    exchange,
+                    200,
+                    clusterClient.countToysByStatusAsync(status),
+                    Function.identity(),
+                    "Error counting toys by status");
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "{\"error\":\"Invalid status\"}");
+            } catch (Exception e) {
+                LOGGER.error("Error counting toys by status", e);
+                sendResponse(exchange, 500, "{\"error\":\"Internal server error\"}");
+            }
+        }
+    }
+
     private class HealthHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
@@ -140,6 +238,44 @@ public class GatewayService {
         }
     }
 
+    /**
+     * Respond to the exchange once the cluster has, on the executor rather than the cluster client's polling thread,
+     * so the handler thread is free for the next request while the cluster responds. A request the cluster has not
+     * responded to within the client's timeout is answered with a 504, and one which could not be queued for the
+     * cluster at all, as its queue is full or it is not connected, with a 503.
+     *
+     * @param toJson   renders the result as the response body.
+     * @param errorLog logged with the cause if the request fails.
+     */
+    private <T> void respondWhenComplete(
+            HttpExchange exchange,
+            int statusCode,
+            CompletableFuture<T> future,
+            Function<T, String> toJson,
+            String errorLog) {
+        future.whenCompleteAsync((result, throwable) -> {
+            try {
+                if (null == throwable) {
+                    sendResponse(exchange, statusCode, toJson.apply(result));
+                } else if (unwrap(throwable) instanceof TimeoutException) {
+                    sendResponse(exchange, 504, "{\"error\":\"Request timed out\"}");
+                } else if (unwrap(throwable) instanceof RejectedExecutionException) {
+                    sendResponse(exchange, 503, "{\"error\":\"Cluster unavailable\"}");
+                } else {
+                    LOGGER.error(errorLog, unwrap(throwable));
+                    sendResponse(exchange, 500, "{\"error\":\"Internal server error\"}");
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to send response: {}", e.getMessage());
+            }
+        }, executor);
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && null != throwable.getCause()
+            ? throwable.getCause() : throwable;
+    }
+
     private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.sendResponseHeaders(statusCode, response.getBytes().length);
@@ -1,67 +1,178 @@
 package io.github.andrewwormald.aerontoys.gateway.client;
 
+import io.aeron.Aeron;
+import io.aeron.Counter;
 import io.aeron.cluster.client.AeronCluster;
 import io.aeron.cluster.client.EgressListener;
+import io.aeron.driver.Configuration;
 import io.aeron.driver.MediaDriver;
 import io.aeron.logbuffer.Header;
+import io.github.andrewwormald.aerontoys.shared.ClusterMembership;
+import io.github.andrewwormald.aerontoys.shared.SharedToyView;
+import io.github.andrewwormald.aerontoys.shared.Toy;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCountByStatusDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCreatedDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsHeartbeatDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotEndDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyInfoDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyNotFoundDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysByCustomerDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysByCustomerEndDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysCreatedDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysUpdatedDecoder;
+import org.agrona.CloseHelper;
 import org.agrona.DirectBuffer;
 import org.agrona.ExpandableArrayBuffer;
+import org.agrona.collections.Hashing;
+import org.agrona.collections.Long2ObjectHashMap;
+import org.agrona.concurrent.Agent;
+import org.agrona.concurrent.AgentRunner;
+import org.agrona.concurrent.IdleStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.Executors;
 
+/**
+ * Client of the ToyFactory cluster for the gateway. Each command carries a correlationId which the cluster echoes in
+ * every response to it, so responses complete exactly the request they belong to, however many are in flight.
+ *
+ * Request threads never touch a cluster session. The client holds a pool of sessions, each owned by an agent on its
+ * own thread, and request threads enqueue commands to the {@link ClusterIngress} of one of them, which sends queued
+ * commands in batches and polls egress in the same duty cycle. A customer's requests go through the same session, so
+ * they reach the cluster in the order they were made, and other requests are spread round-robin.
+ *
+ * Every request has an asynchronous form which returns a {@link CompletableFuture} without blocking the caller, so a
+ * few threads can keep many requests in flight. Futures are completed on a session's agent, so callers should not do
+ * blocking work in their continuations without an executor of their own. Requests are timed out by their session's
+ * {@link RequestTimeouts} rather than by a blocked thread each.
+ */
 public class ClusterClient {
     private static final Logger LOGGER = LoggerFactory.getLogger(ClusterClient.class);
 
-    private AeronCluster cluster;
+    /**
+     * Hostname the cluster sends responses back to, which must be reachable from the cluster members.
+     */
+    private static final String EGRESS_HOSTNAME = System.getProperty("gateway.egress.hostname", "localhost");
+
+    /**
+     * Longest the toy read model may go without hearing from a partition before reads of its toys go to the cluster,
+     * 0 disables the read model so every read goes to the cluster.
+     */
+    private static final long READ_MODEL_MAX_STALENESS_MS = Long.getLong("gateway.read.model.max.staleness.ms", 1000);
+
+    /**
+     * Toy view published to shared memory by a cluster member on this host, the same file as the member's
+     * {@code toyfactory.view.file}, or unset to not read from one.
+     */
+    private static final String SHARED_VIEW_FILE = System.getProperty("gateway.view.file");
+
+    /**
+     * Longest a partition may go without maintaining the shared view before reads of its toys go elsewhere. The
+     * member heartbeats every millisecond while it is running, so this only needs to allow for pauses.
+     */
+    private static final long SHARED_VIEW_MAX_STALENESS_MS = Long.getLong("gateway.view.max.staleness.ms", 100);
+    private static final long SHARED_VIEW_MAX_STALENESS_NS =
+        TimeUnit.MILLISECONDS.toNanos(SHARED_VIEW_MAX_STALENESS_MS);
+
+    /**
+     * Longest from a request being queued to its response before it fails with a {@link TimeoutException}.
+     */
+    private static final long RESPONSE_TIMEOUT_MS = Long.getLong("gateway.request.timeout.ms", 5000);
+
+    /**
+     * Most queued commands sent in a duty cycle, so egress is still polled while the queue is deep.
+     */
+    private static final int COMMANDS_PER_DUTY_CYCLE = 64;
+
+    /**
+     * Idle strategy of the agents which own the cluster sessions when a duty cycle finds no work, any name understood
+     * by the media driver such as {@code spin} to busy spin for the lowest latency, {@code yield} or {@code backoff}.
+     */
+    private static final String POLLER_IDLE_STRATEGY = System.getProperty("gateway.poller.idle.strategy", "backoff");
+
+    /**
+     * Most egress fragments polled in a duty cycle, so a burst of responses is drained without idling in between.
+     */
+    private static final int POLLER_FRAGMENT_LIMIT = Integer.getInteger("gateway.poller.fragment.limit", 256);
+
+    /**
+     * Cluster sessions to spread requests across, each with its own ingress publication, egress subscription and
+     * thread.
+     */
+    private static final int SESSIONS = Integer.getInteger("gateway.sessions", 1);
+
+    /**
+     * Session whose agent maintains the read model, the only one to receive toy events.
+     */
+    private static final int READ_MODEL_SESSION = 0;
+
+    /**
+     * How requests for a customer are spread across the sessions, {@code customer} to send all of a customer's
+     * requests through the same session so they stay in order, or {@code round-robin}. Requests which are not for a
+     * customer are spread round-robin either way.
+     */
+    private static final boolean STRIPE_BY_CUSTOMER =
+        !"round-robin".equals(System.getProperty("gateway.session.striping", "customer"));
+
     private MediaDriver mediaDriver;
-    private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+    private volatile SharedToyView sharedView;
+    private volatile ClusterSession[] sessions = new ClusterSession[0];
     private final AtomicLong correlationIdGenerator = new AtomicLong(1);
     private final ConcurrentHashMap<Long, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService pollingExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
-        Thread t = new Thread(r, "cluster-poller");
-        t.setDaemon(true);
-        return t;
-    });
+    private final ConcurrentHashMap<Long, CompletableFuture<ToyPage>> pendingPageRequests = new ConcurrentHashMap<>();
+    private final ToyReadModel readModel = READ_MODEL_MAX_STALENESS_MS > 0 ?
+        new ToyReadModel(TimeUnit.MILLISECONDS.toNanos(READ_MODEL_MAX_STALENESS_MS)) : null;
+    // Writes through any session, which the shared view's member may not have applied yet
+    private final ToyWrites sharedViewWrites = new ToyWrites();
 
     public void connect() {
-        try {
-            // Calculate correct ports based on cluster configuration
-            // PORT_BASE = 20000, NODE_ID = 0, CLIENT_FACING_PORT_OFFSET = 2
-            // Port = 20000 + (0 * 100) + 2 = 20002
-            int ingressPort = 20002;
+        ClusterMembership membership = ClusterMembership.fromSystemProperties();
+        String ingressEndpoints = membership.ingressEndpoints();
 
-            LOGGER.info("Attempting to connect to cluster on port {}", ingressPort);
+        try {
+            LOGGER.info("Attempting to connect to cluster with ingress endpoints {}", ingressEndpoints);
 
             // Launch embedded media driver for the client (following BasicSubscriber pattern)
             LOGGER.info("Launching embedded media driver for gateway client");
             mediaDriver = MediaDriver.launchEmbedded();
 
-            // Create AeronCluster context with proper ingress and egress channels
+            // Ingress goes to the leader, whichever member that is, and follows it to a new leader after an election
             AeronCluster.Context ctx = new AeronCluster.Context()
-                .egressListener(new ClusterEgressListener())
-                .ingressChannel("aeron:udp?endpoint=localhost:" + ingressPort)
-                .egressChannel("aeron:udp?endpoint=localhost:0") // Let Aeron choose egress port
-                .ingressEndpoints("0=localhost:" + ingressPort)
+                .ingressChannel("aeron:udp")
+                .ingressEndpoints(ingressEndpoints)
+                .egressChannel("aeron:udp?endpoint=" + EGRESS_HOSTNAME + ":0") // Let Aeron choose egress port
                 .messageTimeoutNs(5_000_000_000L) // 5 second timeout for faster failure
                 .aeronDirectoryName(mediaDriver.aeronDirectoryName()); // Use embedded driver's directory
 
             LOGGER.info("Using Aeron directory: {}", mediaDriver.aeronDirectoryName());
 
-            cluster = AeronCluster.connect(ctx);
-
-            // Start polling the cluster to keep connection alive and receive messages
-            startPolling();
-
-            LOGGER.info("Successfully connected to ToyFactory cluster on port {}", ingressPort);
+            connect(ctx);
         } catch (Exception e) {
-            LOGGER.error("Failed to connect to cluster on port 20002. Make sure ToyFactory cluster is running first.", e);
+            LOGGER.error("Failed to connect to cluster at {}. Make sure ToyFactory cluster is running first.",
+                ingressEndpoints, e);
 
             // Clean up media driver if connection failed
             if (mediaDriver != null) {
@@ -74,92 +185,342 @@ public class ClusterClient {
         }
     }
 
+    /**
+     * Connect with channels and a media driver provided by the caller, such as an embedded cluster's client context.
+     * Each session connects with a copy of the context, with its egress listener replaced by the session's own.
+     */
+    public void connect(AeronCluster.Context ctx) {
+        if (SESSIONS < 1) {
+            throw new IllegalArgumentException("gateway.sessions must be at least 1: " + SESSIONS);
+        }
+
+        ClusterSession[] sessions = new ClusterSession[SESSIONS];
+        try {
+            for (int i = 0; i < sessions.length; i++) {
+                sessions[i] = new ClusterSession(i);
+                sessions[i].connect(ctx.clone());
+            }
+        } catch (RuntimeException e) {
+            CloseHelper.quietCloseAll(sessions);
+            throw e;
+        }
+        mapSharedView();
+
+        // Start polling the sessions to keep them alive and receive messages
+        for (ClusterSession session : sessions) {
+            session.start();
+        }
+        this.sessions = sessions;
+
+        LOGGER.info("Successfully connected to ToyFactory cluster with {} sessions striped by {}, leader is member {}",
+            sessions.length, STRIPE_BY_CUSTOMER ? "customer" : "round-robin", sessions[0].cluster.leaderMemberId());
+        LOGGER.info("Polling sessions with {} idle strategy and fragment limit {}",
+            POLLER_IDLE_STRATEGY, POLLER_FRAGMENT_LIMIT);
+    }
+
+    /**
+     * @return true while every session is connected, as each request can only go through its own session.
+     */
     public boolean isConnected() {
-        return cluster != null && !cluster.isClosed();
+        ClusterSession[] sessions = this.sessions;
+        if (sessions.length == 0) {
+            return false;
+        }
+        for (ClusterSession session : sessions) {
+            if (!session.isConnected()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public String createToy(Long customerId) {
+        return createToy(customerId, null);
+    }
+
+    /**
+     * Create a toy for a customer, blocking until the cluster responds, see {@link #createToyAsync}.
+     */
+    public String createToy(Long customerId, String idempotencyKey) {
+        return await(createToyAsync(customerId, idempotencyKey), "Error creating toy");
+    }
+
+    /**
+     * Create a toy for a customer, at most once for an idempotency key. A repeat of a key the cluster has seen
+     * recently returns the toy already created for it, so a create which timed out can be retried safely.
+     *
+     * @param idempotencyKey chosen by the caller to identify the create, or null to always create a new toy.
+     * @return completed with the toy, or exceptionally with a {@link RejectedExecutionException} if the command could
+     * not be queued, as the queue is full or the cluster is not connected, or a {@link TimeoutException} if the
+     * cluster did not respond in time.
+     */
+    public CompletableFuture<String> createToyAsync(Long customerId, String idempotencyKey) {
         if (!isConnected()) {
-            throw new RuntimeException("Cluster not connected. Cannot create toy for customer " + customerId);
+            return CompletableFuture.failedFuture(notConnected("Cannot create toy for customer " + customerId));
         }
 
-        try {
-            long correlationId = correlationIdGenerator.getAndIncrement();
-            CompletableFuture<String> future = new CompletableFuture<>();
-            pendingRequests.put(correlationId, future);
+        long customer = customerId != null ? customerId : 1L;
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(customer, correlationId);
+        CompletableFuture<String> future = newRequest(correlationId);
+        if (!session.ingress.createToy(correlationId, customer, requestId(idempotencyKey))) {
+            return sendFailed(session, correlationId);
+        }
 
-            String message = String.format("CREATE_TOY:%d", customerId != null ? customerId : 1L);
-            buffer.putStringWithoutLengthAscii(0, message);
+        return future;
+    }
 
-            long result = cluster.offer(buffer, 0, message.length());
+    public String getToy(long toyId) {
+        return await(getToyAsync(toyId), "Error getting toy");
+    }
 
-            if (result < 0) {
-                pendingRequests.remove(correlationId);
-                return "{\"error\":\"Failed to send message to cluster\"}";
+    /**
+     * Get a toy, completed straight away when it can be read locally.
+     */
+    public CompletableFuture<String> getToyAsync(long toyId) {
+        if (!isConnected()) {
+            return CompletableFuture.failedFuture(notConnected("Cannot get toy " + toyId));
+        }
+
+        // Served from shared memory while the local member is maintaining the toy's partition and has applied this
+        // gateway's writes to the toy. A toy which is not there yet, or was written through the leader since the
+        // local member's last heartbeat, is read from the read model or the cluster instead.
+        SharedToyView view = sharedView;
+        if (view != null &&
+            view.isFresh(toyId, System.currentTimeMillis(), SHARED_VIEW_MAX_STALENESS_MS) &&
+            sharedViewWrites.isApplied(toyId, view.appliedClusterTime(toyId))) {
+            Toy toy = view.get(toyId);
+            if (toy != null) {
+                return CompletableFuture.completedFuture(
+                    toyJson(toy.getId(), toy.getCustomerId(), toy.getStatus().toCode()));
             }
+        }
 
-            // Wait for response with timeout
-            String response = future.get(5, TimeUnit.SECONDS);
-            return response;
+        // Served locally while the read model is in sync with the toy's partition and has caught up with this
+        // gateway's own writes to the toy, whichever session they responded through
+        if (readModel != null && readModel.canRead(toyId, System.nanoTime())) {
+            Toy toy = readModel.get(toyId);
+            return CompletableFuture.completedFuture(toy != null ?
+                toyJson(toy.getId(), toy.getCustomerId(), toy.getStatus().toCode()) : toyNotFoundJson(toyId));
+        }
 
-        } catch (Exception e) {
-            LOGGER.error("Error creating toy", e);
-            return "{\"error\":\"Request failed\"}";
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(correlationId);
+        CompletableFuture<String> future = newRequest(correlationId);
+        if (!session.ingress.getToy(correlationId, toyId)) {
+            return sendFailed(session, correlationId);
         }
+
+        return future;
     }
 
-    public String getToy(long toyId) {
+    public String createToys(long[] customerIds) {
+        return await(createToysAsync(customerIds), "Error creating toys");
+    }
+
+    public CompletableFuture<String> createToysAsync(long[] customerIds) {
         if (!isConnected()) {
-            throw new RuntimeException("Cluster not connected. Cannot get toy " + toyId);
+            return CompletableFuture.failedFuture(notConnected("Cannot create " + customerIds.length + " toys"));
+        }
+
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(correlationId);
+        CompletableFuture<String> future = newRequest(correlationId);
+        if (!session.ingress.createToys(correlationId, customerIds)) {
+            return sendFailed(session, correlationId);
         }
 
+        return future;
+    }
+
+    public String updateToys(long[] toyIds, ToyStatus[] statuses) {
+        return await(updateToysAsync(toyIds, statuses), "Error updating toys");
+    }
+
+    public CompletableFuture<String> updateToysAsync(long[] toyIds, ToyStatus[] statuses) {
+        if (toyIds.length != statuses.length) {
+            throw new IllegalArgumentException(
+                "toyIds and statuses differ in length: " + toyIds.length + " != " + statuses.length);
+        }
+        if (!isConnected()) {
+            return CompletableFuture.failedFuture(notConnected("Cannot update " + toyIds.length + " toys"));
+        }
+
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(correlationId);
+        CompletableFuture<String> future = newRequest(correlationId);
+        if (!session.ingress.updateToys(correlationId, toyIds, statuses)) {
+            return sendFailed(session, correlationId);
+        }
+
+        return future;
+    }
+
+    /**
+     * Fetch a page of a customer's toys in creation order, blocking until the cluster responds.
+     *
+     * @param afterToyId cursor from the previous page, or {@link ToyPage#NO_CURSOR} for the first page.
+     * @param pageSize   maximum toys in the page, capped by the cluster, or 0 for the cluster default.
+     */
+    public ToyPage listToysByCustomer(long customerId, long afterToyId, int pageSize) {
         try {
-            long correlationId = correlationIdGenerator.getAndIncrement();
-            CompletableFuture<String> future = new CompletableFuture<>();
-            pendingRequests.put(correlationId, future);
+            return listToysByCustomerAsync(customerId, afterToyId, pageSize).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Failed to list toys for customer " + customerId, e.getCause());
+        }
+    }
+
+    /**
+     * Fetch a page of a customer's toys in creation order.
+     *
+     * @return completed with the page, or exceptionally with a {@link RejectedExecutionException} if the command could
+     * not be queued, as the queue is full or the cluster is not connected, or a {@link TimeoutException} if the
+     * cluster did not respond in time.
+     */
+    public CompletableFuture<ToyPage> listToysByCustomerAsync(long customerId, long afterToyId, int pageSize) {
+        if (!isConnected()) {
+            return CompletableFuture.failedFuture(notConnected("Cannot list toys for customer " + customerId));
+        }
 
-            String message = String.format("GET_TOY:%d", toyId);
-            buffer.putStringWithoutLengthAscii(0, message);
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(customerId, correlationId);
+        CompletableFuture<ToyPage> future = new CompletableFuture<>();
+        pendingPageRequests.put(correlationId, future);
+        if (!session.ingress.listToysByCustomer(correlationId, customerId, afterToyId, pageSize)) {
+            pendingPageRequests.remove(correlationId);
+            session.queueFullCounter.increment();
+            return CompletableFuture.failedFuture(ingressQueueFull());
+        }
 
-            long result = cluster.offer(buffer, 0, message.length());
-            if (result < 0) {
-                pendingRequests.remove(correlationId);
-                return "{\"error\":\"Failed to send message to cluster\"}";
-            }
+        return future;
+    }
 
-            // Wait for response with timeout
-            String response = future.get(5, TimeUnit.SECONDS);
-            return response;
+    /**
+     * Iterate over all of a customer's toys in creation order, fetching each page from the cluster only once the
+     * iterator reaches it.
+     */
+    public Iterator<Toy> toysByCustomer(long customerId, int pageSize) {
+        return new CustomerToysIterator(customerId, pageSize);
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("Error getting toy", e);
+    public String countToysByStatus(ToyStatus status) {
+        return await(countToysByStatusAsync(status), "Error counting toys by status");
+    }
+
+    public CompletableFuture<String> countToysByStatusAsync(ToyStatus status) {
+        if (!isConnected()) {
+            return CompletableFuture.failedFuture(notConnected("Cannot count toys with status " + status));
+        }
+
+        long correlationId = correlationIdGenerator.getAndIncrement();
+        ClusterSession session = session(correlationId);
+        CompletableFuture<String> future = newRequest(correlationId);
+        if (!session.ingress.countToysByStatus(correlationId, status)) {
+            return sendFailed(session, correlationId);
+        }
+
+        return future;
+    }
+
+    /**
+     * The session to send a request for a customer through, the same for all of the customer's requests when they
+     * are striped by customer.
+     */
+    private ClusterSession session(long customerId, long correlationId) {
+        if (!STRIPE_BY_CUSTOMER) {
+            return session(correlationId);
+        }
+
+        ClusterSession[] sessions = this.sessions;
+        return sessions[Math.floorMod(Hashing.hash(customerId), sessions.length)];
+    }
+
+    /**
+     * The session to send a request through, round-robin by correlationId.
+     */
+    private ClusterSession session(long correlationId) {
+        ClusterSession[] sessions = this.sessions;
+        return sessions[(int) Math.floorMod(correlationId, (long) sessions.length)];
+    }
+
+    private CompletableFuture<String> newRequest(long correlationId) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        pendingRequests.put(correlationId, future);
+        return future;
+    }
+
+    private CompletableFuture<String> sendFailed(ClusterSession session, long correlationId) {
+        pendingRequests.remove(correlationId);
+        session.queueFullCounter.increment();
+        return CompletableFuture.failedFuture(ingressQueueFull());
+    }
+
+    /**
+     * Failure of a request made while a session is disconnected, which like a full queue could not be queued at all.
+     */
+    private static RejectedExecutionException notConnected(String request) {
+        return new RejectedExecutionException("Cluster not connected. " + request);
+    }
+
+    /**
+     * Failure of a request which could not be queued, for callers to tell apart from the cluster failing to respond.
+     */
+    private static RejectedExecutionException ingressQueueFull() {
+        return new RejectedExecutionException("Failed to send message to cluster, ingress queue is full");
+    }
+
+    /**
+     * Wait for the response to a request, which times out in its session's agent rather than here.
+     */
+    private static String await(CompletableFuture<String> future, String errorMessage) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            LOGGER.error(errorMessage, e.getCause());
             return "{\"error\":\"Request failed\"}";
         }
     }
 
-    private void startPolling() {
-        // Poll the cluster every 10ms to keep connection alive and receive messages
-        pollingExecutor.scheduleWithFixedDelay(() -> {
-            try {
-                if (cluster != null && !cluster.isClosed()) {
-                    cluster.pollEgress();
-                }
-            } catch (Exception e) {
-                LOGGER.warn("Error during cluster polling", e);
-            }
-        }, 10, 10, TimeUnit.MILLISECONDS);
+    /**
+     * Fail a request which reached its deadline without a response, called by its session's agent.
+     */
+    private void onRequestTimeout(long correlationId) {
+        TimeoutException timeout = new TimeoutException(
+            "No response from cluster within " + RESPONSE_TIMEOUT_MS + "ms, correlationId=" + correlationId);
+
+        CompletableFuture<String> future = pendingRequests.remove(correlationId);
+        if (future != null) {
+            future.completeExceptionally(timeout);
+            return;
+        }
 
-        LOGGER.info("Started cluster polling");
+        CompletableFuture<ToyPage> pageFuture = pendingPageRequests.remove(correlationId);
+        if (pageFuture != null) {
+            pageFuture.completeExceptionally(timeout);
+        }
     }
 
-    public void close() {
-        pollingExecutor.shutdown();
+    private static IdleStrategy pollerIdleStrategy() {
+        return Configuration.agentIdleStrategy(POLLER_IDLE_STRATEGY, null);
+    }
 
-        if (cluster != null && !cluster.isClosed()) {
-            cluster.close();
-            LOGGER.info("Disconnected from cluster");
+    public void close() {
+        ClusterSession[] sessions = this.sessions;
+        this.sessions = new ClusterSession[0];
+        CloseHelper.closeAll(sessions);
+        if (sessions.length > 0) {
+            LOGGER.info("Disconnected {} sessions from cluster", sessions.length);
         }
 
+        IllegalStateException closed = new IllegalStateException("Cluster client closed");
+        pendingRequests.values().forEach(future -> future.completeExceptionally(closed));
+        pendingRequests.clear();
+        pendingPageRequests.values().forEach(future -> future.completeExceptionally(closed));
+        pendingPageRequests.clear();
+
+        // Left mapped rather than unmapped under request threads which may still be reading it
+        sharedView = null;
+
         if (mediaDriver != null) {
             mediaDriver.close();
             mediaDriver = null;
@@ -167,7 +528,296 @@ public class ClusterClient {
         }
     }
 
+    private void mapSharedView() {
+        if (SHARED_VIEW_FILE == null) {
+            return;
+        }
+
+        File file = new File(SHARED_VIEW_FILE);
+        if (!file.exists()) {
+            LOGGER.warn("Shared toy view {} does not exist, reading toys from the cluster", file);
+            return;
+        }
+
+        try {
+            sharedView = SharedToyView.open(file);
+            LOGGER.info("Reading toys from shared view {} with capacity {}", file, sharedView.capacity());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Cannot map shared toy view {}, reading toys from the cluster", file, e);
+        }
+    }
+
+    /**
+     * Hash an idempotency key of any length to the 64-bit request id carried in the command.
+     */
+    static long requestId(String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return CreateToyCommandEncoder.requestIdNullValue();
+        }
+
+        UUID hash = UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8));
+        long requestId = hash.getMostSignificantBits() ^ hash.getLeastSignificantBits();
+        return requestId != CreateToyCommandEncoder.requestIdNullValue() ? requestId : 0;
+    }
+
+    private static String toyJson(long toyId, long customerId, ToyStatusCode status) {
+        return String.format(
+            "{\"id\":\"%d\",\"customerId\":\"%d\",\"status\":\"%s\"}",
+            toyId, customerId, ToyStatus.fromCode(status));
+    }
+
+    private static String toyNotFoundJson(long toyId) {
+        return String.format("{\"error\":\"Toy not found\",\"toyId\":\"%d\"}", toyId);
+    }
+
+    /**
+     * A cluster session and the agent which owns it on a thread of its own, sending the session's queued commands,
+     * polling its egress and timing out its requests each duty cycle. The first session also maintains the read
+     * model. Duty cycles, egress fragments, idle cycles, whether the session is connected, back pressure and requests
+     * rejected by a full queue are published as counters per session.
+     */
+    private class ClusterSession implements Agent, ClusterIngress.Listener, AutoCloseable {
+        private final int index;
+        private final ClusterIngress ingress =
+            ClusterIngress.fromSystemProperties(TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT_MS));
+        // Used only by the session's agent
+        private final RequestTimeouts requestTimeouts = new RequestTimeouts(System.nanoTime(), this::onRequestTimeout);
+        private final ClusterEgressListener egressListener = new ClusterEgressListener(this);
+        // The read model is maintained from the agent of the first session, so it offers its requests directly
+        private final ExpandableArrayBuffer readModelBuffer = new ExpandableArrayBuffer();
+        private final MessageHeaderEncoder readModelHeaderEncoder = new MessageHeaderEncoder();
+        private final ToyEventsSnapshotCommandEncoder toyEventsSnapshotCommandEncoder =
+            new ToyEventsSnapshotCommandEncoder();
+        private long sharedViewWritesPrunedNs;
+        private AeronCluster cluster;
+        private AgentRunner runner;
+        private boolean connected;
+        private Counter dutyCyclesCounter;
+        private Counter fragmentsCounter;
+        private Counter idleCyclesCounter;
+        private Counter connectedCounter;
+        private Counter backPressureCounter;
+        private Counter queueFullCounter;
+
+        ClusterSession(int index) {
+            this.index = index;
+        }
+
+        void connect(AeronCluster.Context ctx) {
+            cluster = AeronCluster.connect(ctx.egressListener(egressListener));
+            connected = true;
+
+            Aeron aeron = cluster.context().aeron();
+            String session = " for cluster session " + cluster.clusterSessionId();
+            dutyCyclesCounter = aeron.addCounter(
+                GatewayCounters.POLLER_DUTY_CYCLES_TYPE_ID, "Gateway poller duty cycles" + session);
+            fragmentsCounter = aeron.addCounter(
+                GatewayCounters.POLLER_FRAGMENTS_TYPE_ID, "Gateway poller egress fragments" + session);
+            idleCyclesCounter = aeron.addCounter(
+                GatewayCounters.POLLER_IDLE_CYCLES_TYPE_ID, "Gateway poller idle cycles" + session);
+            connectedCounter = aeron.addCounter(
+                GatewayCounters.SESSION_CONNECTED_TYPE_ID, "Gateway session connected" + session);
+            backPressureCounter = aeron.addCounter(
+                GatewayCounters.SESSION_BACK_PRESSURE_TYPE_ID, "Gateway session back pressure" + session);
+            queueFullCounter = aeron.addCounter(
+                GatewayCounters.SESSION_QUEUE_FULL_TYPE_ID, "Gateway session queue full" + session);
+            connectedCounter.setOrdered(1);
+        }
+
+        void start() {
+            runner = new AgentRunner(
+                pollerIdleStrategy(),
+                e -> LOGGER.warn("Error during cluster polling of session {}", index, e),
+                null,
+                this);
+            AgentRunner.startOnThread(runner, r -> {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        boolean isConnected() {
+            return cluster != null && !cluster.isClosed();
+        }
+
+        @Override
+        public int doWork() {
+            long nowNs = System.nanoTime();
+            if (cluster.isClosed()) {
+                if (connected) {
+                    connected = false;
+                    LOGGER.warn("Cluster session {} closed", index);
+                    if (!connectedCounter.isClosed()) {
+                        connectedCounter.setOrdered(0);
+                    }
+                }
+                // Requests can no longer be sent or answered, so they fail rather than wait for their deadlines
+                return ingress.expire(this, COMMANDS_PER_DUTY_CYCLE) + requestTimeouts.poll(nowNs);
+            }
+
+            int workCount = ingress.send(cluster, nowNs, this, COMMANDS_PER_DUTY_CYCLE);
+            int fragments = pollEgress();
+            workCount += fragments + requestTimeouts.poll(nowNs);
+            if (index == READ_MODEL_SESSION) {
+                workCount += pollReadModel() + pruneSharedViewWrites(nowNs);
+            }
+
+            dutyCyclesCounter.incrementOrdered();
+            if (fragments > 0) {
+                fragmentsCounter.getAndAddOrdered(fragments);
+            }
+            if (workCount == 0) {
+                idleCyclesCounter.incrementOrdered();
+            }
+
+            return workCount;
+        }
+
+        /**
+         * Poll egress until it is drained or the fragment limit is reached, as each poll of the session takes only a
+         * small batch of fragments.
+         */
+        private int pollEgress() {
+            int fragments = 0;
+            int polled;
+            do {
+                polled = cluster.pollEgress();
+                fragments += polled;
+            } while (polled > 0 && fragments < POLLER_FRAGMENT_LIMIT);
+
+            return fragments;
+        }
+
+        /**
+         * Forget the writes the shared view has applied which have not been read since, at most once per staleness
+         * bound so the writes are only scanned occasionally.
+         */
+        private int pruneSharedViewWrites(long nowNs) {
+            SharedToyView view = sharedView;
+            if (view == null || nowNs - sharedViewWritesPrunedNs <= SHARED_VIEW_MAX_STALENESS_NS) {
+                return 0;
+            }
+
+            sharedViewWritesPrunedNs = nowNs;
+            sharedViewWrites.prune(view::appliedClusterTime);
+            return 1;
+        }
+
+        private int pollReadModel() {
+            if (readModel == null) {
+                return 0;
+            }
+
+            int workCount = 0;
+            long nowNs = System.nanoTime();
+            readModel.pruneWrites(nowNs);
+            if (readModel.shouldSubscribe(nowNs)) {
+                requestToyEvents(ToyEventsSnapshotCommandEncoder.partitionIdNullValue(), 0);
+                workCount++;
+            }
+
+            int partitionId = readModel.partitionToResync(nowNs);
+            if (partitionId >= 0) {
+                requestToyEvents(partitionId, 0);
+                workCount++;
+            }
+
+            return workCount;
+        }
+
+        /**
+         * Subscribe to toy events and request a page of toys, for one partition or all when the partitionId is null.
+         * Requests which cannot be sent are retried when the read model sees no progress.
+         */
+        private void requestToyEvents(int partitionId, int fromIndex) {
+            toyEventsSnapshotCommandEncoder.wrapAndApplyHeader(readModelBuffer, 0, readModelHeaderEncoder)
+                .partitionId(partitionId)
+                .fromIndex(fromIndex);
+
+            long result = cluster.offer(
+                readModelBuffer,
+                0,
+                MessageHeaderEncoder.ENCODED_LENGTH + toyEventsSnapshotCommandEncoder.encodedLength());
+            if (result < 0) {
+                LOGGER.warn("Failed to request toy events for partition {} from index {}: {}",
+                    partitionId, fromIndex, result);
+            }
+        }
+
+        private void onRequestTimeout(long correlationId) {
+            egressListener.discard(correlationId);
+            ClusterClient.this.onRequestTimeout(correlationId);
+        }
+
+        @Override
+        public void onSent(long correlationId, long deadlineNs) {
+            requestTimeouts.schedule(correlationId, deadlineNs);
+        }
+
+        @Override
+        public void onExpired(long correlationId) {
+            onRequestTimeout(correlationId);
+        }
+
+        @Override
+        public void onBackPressured() {
+            backPressureCounter.incrementOrdered();
+        }
+
+        @Override
+        public String roleName() {
+            return "cluster-poller-" + index;
+        }
+
+        /**
+         * Stop the agent before the session it owns is closed.
+         */
+        @Override
+        public void close() {
+            CloseHelper.close(runner);
+            CloseHelper.closeAll(
+                dutyCyclesCounter,
+                fragmentsCounter,
+                idleCyclesCounter,
+                connectedCounter,
+                backPressureCounter,
+                queueFullCounter);
+            if (cluster != null && !cluster.isClosed()) {
+                cluster.close();
+            }
+        }
+    }
+
     private class ClusterEgressListener implements EgressListener {
+        private final ClusterSession session;
+        private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+        private final ToyCreatedDecoder toyCreatedDecoder = new ToyCreatedDecoder();
+        private final ToyInfoDecoder toyInfoDecoder = new ToyInfoDecoder();
+        private final ToyNotFoundDecoder toyNotFoundDecoder = new ToyNotFoundDecoder();
+        private final ToysCreatedDecoder toysCreatedDecoder = new ToysCreatedDecoder();
+        private final ToysUpdatedDecoder toysUpdatedDecoder = new ToysUpdatedDecoder();
+        private final ToysByCustomerDecoder toysByCustomerDecoder = new ToysByCustomerDecoder();
+        private final ToysByCustomerEndDecoder toysByCustomerEndDecoder = new ToysByCustomerEndDecoder();
+        // Responses in progress by correlationId, as the chunks of pages and the shares of partitioned responses to
+        // different requests can arrive interleaved from different partitions
+        private final Long2ObjectHashMap<List<Toy>> pageToysByCorrelationId = new Long2ObjectHashMap<>();
+        private final Long2ObjectHashMap<PartitionedResponse> partitionedResponses = new Long2ObjectHashMap<>();
+        private final PartitionedResponse lateResponse = new PartitionedResponse();
+        private final List<Toy> lateToys = new ArrayList<>();
+        private final ToyCountByStatusDecoder toyCountByStatusDecoder = new ToyCountByStatusDecoder();
+        private final ToyEventsDecoder toyEventsDecoder = new ToyEventsDecoder();
+        private final ToyEventsSnapshotDecoder toyEventsSnapshotDecoder = new ToyEventsSnapshotDecoder();
+        private final ToyEventsSnapshotEndDecoder toyEventsSnapshotEndDecoder = new ToyEventsSnapshotEndDecoder();
+        private final ToyEventsHeartbeatDecoder toyEventsHeartbeatDecoder = new ToyEventsHeartbeatDecoder();
+
+        // Cluster time of the message being handled
+        private long timestamp;
+
+        ClusterEgressListener(ClusterSession session) {
+            this.session = session;
+        }
+
         @Override
         public void onMessage(
                 long clusterSessionId,
@@ -177,93 +827,303 @@ public class ClusterClient {
                 int length,
                 Header header) {
 
-            String message = buffer.getStringWithoutLengthAscii(offset, length);
+            this.timestamp = timestamp;
 
-            // Process different message types
-            if (message.startsWith("TOY_CREATED:")) {
-                handleToyCreatedResponse(message);
-            } else if (message.startsWith("TOY_INFO:")) {
-                handleToyInfoResponse(message);
-            } else if (message.startsWith("TOY_NOT_FOUND:")) {
-                handleToyNotFoundResponse(message);
+            // A message may hold several responses which the cluster coalesced while this client was lagging
+            final int limit = offset + length;
+            int responseOffset = offset;
+            while (responseOffset < limit) {
+                responseOffset = onResponse(buffer, responseOffset);
             }
         }
 
-        private void handleToyCreatedResponse(String message) {
-            try {
-                // Parse: TOY_CREATED:toyId:customerId:status
-                String[] parts = message.split(":");
-                if (parts.length >= 4) {
-                    String toyId = parts[1];
-                    String customerId = parts[2];
-                    String status = parts[3];
+        @Override
+        public void onNewLeader(
+                long clusterSessionId,
+                long leadershipTermId,
+                int leaderMemberId,
+                String ingressEndpoints) {
+            LOGGER.info("Cluster leader is now member {} for leadershipTermId={}", leaderMemberId, leadershipTermId);
+        }
 
-                    String jsonResponse = String.format(
-                        "{\"id\":\"%s\",\"customerId\":\"%s\",\"status\":\"%s\"}",
-                        toyId, customerId, status
-                    );
+        /**
+         * Handle the response at an offset.
+         *
+         * @return the offset following the response, or {@link Integer#MAX_VALUE} if it could not be decoded.
+         */
+        private int onResponse(DirectBuffer buffer, int offset) {
+            headerDecoder.wrap(buffer, offset);
+            if (headerDecoder.schemaId() != MessageHeaderDecoder.SCHEMA_ID) {
+                LOGGER.warn("Ignoring response with unknown schemaId: {}", headerDecoder.schemaId());
+                return Integer.MAX_VALUE;
+            }
 
-                    // Complete the first pending request (simple approach)
-                    completeNextPendingRequest(jsonResponse);
-                }
-            } catch (Exception e) {
-                LOGGER.error("Error parsing TOY_CREATED response", e);
+            // Process different message types
+            switch (headerDecoder.templateId()) {
+                case ToyCreatedDecoder.TEMPLATE_ID:
+                    toyCreatedDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    onWrite(toyCreatedDecoder.toyId());
+                    completeRequest(toyCreatedDecoder.correlationId(), toyJson(
+                        toyCreatedDecoder.toyId(), toyCreatedDecoder.customerId(), toyCreatedDecoder.status()));
+                    return toyCreatedDecoder.limit();
+
+                case ToyInfoDecoder.TEMPLATE_ID:
+                    toyInfoDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    completeRequest(toyInfoDecoder.correlationId(), toyJson(
+                        toyInfoDecoder.toyId(), toyInfoDecoder.customerId(), toyInfoDecoder.status()));
+                    return toyInfoDecoder.limit();
+
+                case ToyNotFoundDecoder.TEMPLATE_ID:
+                    toyNotFoundDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    completeRequest(toyNotFoundDecoder.correlationId(), toyNotFoundJson(toyNotFoundDecoder.toyId()));
+                    return toyNotFoundDecoder.limit();
+
+                case ToysCreatedDecoder.TEMPLATE_ID:
+                    toysCreatedDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    final long toysCreatedCorrelationId = toysCreatedDecoder.correlationId();
+                    final PartitionedResponse toysCreated = partitionedResponse(toysCreatedCorrelationId);
+                    for (ToysCreatedDecoder.ToysDecoder toy : toysCreatedDecoder.toys()) {
+                        onWrite(toy.toyId());
+                        toysCreated.appendItem(toyJson(toy.toyId(), toy.customerId(), toy.status()));
+                    }
+                    if (toysCreated.onPartitionResponse(toysCreatedDecoder.partitionCount())) {
+                        partitionedResponses.remove(toysCreatedCorrelationId);
+                        completeRequest(toysCreatedCorrelationId, "{\"toys\":[" + toysCreated.takeItems() + "]}");
+                    }
+                    return toysCreatedDecoder.limit();
+
+                case ToysUpdatedDecoder.TEMPLATE_ID:
+                    toysUpdatedDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    final long toysUpdatedCorrelationId = toysUpdatedDecoder.correlationId();
+                    final PartitionedResponse toysUpdated = partitionedResponse(toysUpdatedCorrelationId);
+                    for (ToysUpdatedDecoder.ResultsDecoder result : toysUpdatedDecoder.results()) {
+                        onWrite(result.toyId());
+                        toysUpdated.appendItem(String.format(
+                            "{\"id\":\"%d\",\"status\":\"%s\",\"result\":\"%s\"}",
+                            result.toyId(), ToyStatus.fromCode(result.status()), result.result()));
+                    }
+                    if (toysUpdated.onPartitionResponse(toysUpdatedDecoder.partitionCount())) {
+                        partitionedResponses.remove(toysUpdatedCorrelationId);
+                        completeRequest(toysUpdatedCorrelationId, "{\"results\":[" + toysUpdated.takeItems() + "]}");
+                    }
+                    return toysUpdatedDecoder.limit();
+
+                case ToysByCustomerDecoder.TEMPLATE_ID:
+                    toysByCustomerDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    final long customerId = toysByCustomerDecoder.customerId();
+                    final List<Toy> pageToys = pageToys(toysByCustomerDecoder.correlationId());
+                    for (ToysByCustomerDecoder.ToysDecoder toy : toysByCustomerDecoder.toys()) {
+                        pageToys.add(new Toy(toy.toyId(), customerId, ToyStatus.fromCode(toy.status())));
+                    }
+                    return toysByCustomerDecoder.limit();
+
+                case ToysByCustomerEndDecoder.TEMPLATE_ID:
+                    toysByCustomerEndDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    completePage(toysByCustomerEndDecoder.correlationId(), toyPage(toysByCustomerEndDecoder));
+                    return toysByCustomerEndDecoder.limit();
+
+                case ToyCountByStatusDecoder.TEMPLATE_ID:
+                    toyCountByStatusDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    final long toyCountCorrelationId = toyCountByStatusDecoder.correlationId();
+                    final PartitionedResponse toyCount = partitionedResponse(toyCountCorrelationId);
+                    toyCount.add(toyCountByStatusDecoder.count());
+                    if (toyCount.onPartitionResponse(toyCountByStatusDecoder.partitionCount())) {
+                        partitionedResponses.remove(toyCountCorrelationId);
+                        completeRequest(toyCountCorrelationId, String.format(
+                            "{\"status\":\"%s\",\"count\":%d}",
+                            ToyStatus.fromCode(toyCountByStatusDecoder.status()), toyCount.takeTotal()));
+                    }
+                    return toyCountByStatusDecoder.limit();
+
+                case ToyEventsDecoder.TEMPLATE_ID:
+                    toyEventsDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    if (!readModel.onEvents(toyEventsDecoder, System.nanoTime())) {
+                        session.requestToyEvents(toyEventsDecoder.partitionId(), 0);
+                    }
+                    return toyEventsDecoder.limit();
+
+                case ToyEventsSnapshotDecoder.TEMPLATE_ID:
+                    toyEventsSnapshotDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    readModel.onSnapshot(toyEventsSnapshotDecoder);
+                    return toyEventsSnapshotDecoder.limit();
+
+                case ToyEventsSnapshotEndDecoder.TEMPLATE_ID:
+                    toyEventsSnapshotEndDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    final int nextIndex = readModel.onSnapshotEnd(toyEventsSnapshotEndDecoder, System.nanoTime());
+                    if (nextIndex != ToyReadModel.NO_PAGE) {
+                        session.requestToyEvents(toyEventsSnapshotEndDecoder.partitionId(), nextIndex);
+                    }
+                    return toyEventsSnapshotEndDecoder.limit();
+
+                case ToyEventsHeartbeatDecoder.TEMPLATE_ID:
+                    toyEventsHeartbeatDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                    if (!readModel.onHeartbeat(toyEventsHeartbeatDecoder, System.nanoTime())) {
+                        session.requestToyEvents(toyEventsHeartbeatDecoder.partitionId(), 0);
+                    }
+                    return toyEventsHeartbeatDecoder.limit();
+
+                default:
+                    LOGGER.debug("Ignoring response with templateId: {}", headerDecoder.templateId());
+                    return Integer.MAX_VALUE;
             }
         }
 
-        private void handleToyInfoResponse(String message) {
-            try {
-                // Parse: TOY_INFO:toyId:customerId:status
-                String[] parts = message.split(":");
-                if (parts.length >= 4) {
-                    String toyId = parts[1];
-                    String customerId = parts[2];
-                    String status = parts[3];
+        /**
+         * Note a write answered through this session, before its request is completed, for the shared view to wait
+         * until its member has applied it and the read model to wait for its event when it arrives through another
+         * session.
+         */
+        private void onWrite(long toyId) {
+            if (sharedView != null) {
+                sharedViewWrites.onWrite(toyId, timestamp);
+            }
+            if (readModel != null && session.index != READ_MODEL_SESSION) {
+                readModel.onWrite(toyId, timestamp);
+            }
+        }
 
-                    String jsonResponse = String.format(
-                        "{\"id\":\"%s\",\"customerId\":\"%s\",\"status\":\"%s\"}",
-                        toyId, customerId, status
-                    );
+        private ToyPage toyPage(ToysByCustomerEndDecoder decoder) {
+            List<Toy> pageToys = pageToysByCorrelationId.remove(decoder.correlationId());
+            if (pageToys == null) {
+                pageToys = Collections.emptyList();
+            }
+            if (pageToys.size() != decoder.pageToyCount()) {
+                LOGGER.warn("Page of toys for customer {} has {} toys, expected {}",
+                    decoder.customerId(), pageToys.size(), decoder.pageToyCount());
+            }
 
-                    completeNextPendingRequest(jsonResponse);
-                }
-            } catch (Exception e) {
-                LOGGER.error("Error parsing TOY_INFO response", e);
+            return new ToyPage(
+                decoder.customerId(),
+                decoder.toyCount(),
+                Collections.unmodifiableList(pageToys),
+                decoder.nextAfterToyId());
+        }
+
+        /**
+         * Gathers a request's shares of a partitioned response, or discards a share which arrives after the request
+         * has timed out, so it is not kept waiting for shares which were discarded before it.
+         */
+        private PartitionedResponse partitionedResponse(long correlationId) {
+            if (!pendingRequests.containsKey(correlationId)) {
+                lateResponse.takeItems();
+                lateResponse.takeTotal();
+                return lateResponse;
             }
+
+            return partitionedResponses.computeIfAbsent(correlationId, id -> new PartitionedResponse());
         }
 
-        private void handleToyNotFoundResponse(String message) {
-            try {
-                // Parse: TOY_NOT_FOUND:toyId
-                String[] parts = message.split(":");
-                if (parts.length >= 2) {
-                    String toyId = parts[1];
-                    String jsonResponse = String.format(
-                        "{\"error\":\"Toy not found\",\"toyId\":\"%s\"}",
-                        toyId
-                    );
+        private List<Toy> pageToys(long correlationId) {
+            if (!pendingPageRequests.containsKey(correlationId)) {
+                lateToys.clear();
+                return lateToys;
+            }
 
-                    completeNextPendingRequest(jsonResponse);
-                }
-            } catch (Exception e) {
-                LOGGER.error("Error parsing TOY_NOT_FOUND response", e);
+            return pageToysByCorrelationId.computeIfAbsent(correlationId, id -> new ArrayList<>());
+        }
+
+        /**
+         * Drop anything gathered so far for a request which has timed out.
+         */
+        void discard(long correlationId) {
+            pageToysByCorrelationId.remove(correlationId);
+            partitionedResponses.remove(correlationId);
+        }
+
+        private void completePage(long correlationId, ToyPage page) {
+            session.requestTimeouts.cancel(correlationId);
+            CompletableFuture<ToyPage> future = pendingPageRequests.remove(correlationId);
+            if (future != null) {
+                future.complete(page);
+            } else {
+                LOGGER.warn("Received page of toys for customer {} but no pending request for correlationId {}",
+                    page.getCustomerId(), correlationId);
             }
         }
 
-        private void completeNextPendingRequest(String response) {
-            // Simple approach: complete the first pending request
-            // In a real implementation, you'd match by correlation ID
-            if (!pendingRequests.isEmpty()) {
-                Long firstKey = pendingRequests.keys().nextElement();
-                CompletableFuture<String> future = pendingRequests.remove(firstKey);
-                if (future != null) {
-                    future.complete(response);
-                } else {
-                    LOGGER.warn("Found null future for key: {}", firstKey);
-                }
+        private void completeRequest(long correlationId, String response) {
+            session.requestTimeouts.cancel(correlationId);
+            CompletableFuture<String> future = pendingRequests.remove(correlationId);
+            if (future != null) {
+                future.complete(response);
             } else {
-                LOGGER.warn("Received response but no pending requests: {}", response);
+                // Normally a response which arrived after its request timed out
+                LOGGER.warn("Received response but no pending request for correlationId {}: {}",
+                    correlationId, response);
+            }
+        }
+    }
+
+    /**
+     * Gathers the share of a result each partition of the cluster responds with to a batch command or count, until
+     * every partition has responded.
+     */
+    private static class PartitionedResponse {
+        private final StringBuilder items = new StringBuilder();
+        private long total;
+        private int responseCount;
+
+        void appendItem(String itemJson) {
+            if (items.length() > 0) {
+                items.append(',');
+            }
+            items.append(itemJson);
+        }
+
+        void add(long value) {
+            total += value;
+        }
+
+        /**
+         * @param partitionCount from the response, or its null value if the cluster is not partitioned.
+         * @return true once every partition has responded and the result can be taken.
+         */
+        boolean onPartitionResponse(int partitionCount) {
+            return ++responseCount >= Math.max(1, partitionCount);
+        }
+
+        String takeItems() {
+            String json = items.toString();
+            items.setLength(0);
+            responseCount = 0;
+            return json;
+        }
+
+        long takeTotal() {
+            long result = total;
+            total = 0;
+            responseCount = 0;
+            return result;
+        }
+    }
+
+    private class CustomerToysIterator implements Iterator<Toy> {
+        private final long customerId;
+        private final int pageSize;
+        private ToyPage page;
+        private Iterator<Toy> pageIterator = Collections.emptyIterator();
+
+        CustomerToysIterator(long customerId, int pageSize) {
+            this.customerId = customerId;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!pageIterator.hasNext() && (page == null || page.hasNextPage())) {
+                long afterToyId = page == null ? ToyPage.NO_CURSOR : page.getNextAfterToyId();
+                page = listToysByCustomer(customerId, afterToyId, pageSize);
+                pageIterator = page.getToys().iterator();
+            }
+            return pageIterator.hasNext();
+        }
+
+        @Override
+        public Toy next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            return pageIterator.next();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,376 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+import io.aeron.cluster.client.AeronCluster;
+import io.aeron.logbuffer.BufferClaim;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.shared.codecs.CountToysByStatusCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToysCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.GetToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ListToysByCustomerCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.UpdateToysCommandEncoder;
+import org.agrona.BitUtil;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.AtomicBuffer;
+import org.agrona.concurrent.ControlledMessageHandler;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.ManyToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Queue of commands for the cluster, enqueued by any number of request threads and sent by the single thread which
+ * owns the cluster session, as {@link AeronCluster} is not thread safe.
+ *
+ * Each command is a compact record in an off-heap {@link ManyToOneRingBuffer}, the message type id is the template id
+ * of the command and the record starts with its correlationId. The sending thread drains as many commands as the
+ * ingress publication accepts each duty cycle, encoding each straight into the publication with
+ * {@link AeronCluster#tryClaim}, and leaves the rest queued in order when it is back-pressured. Enqueuing never blocks,
+ * it fails when the queue is full.
+ *
+ * Each record also carries the deadline for the response to the command. The sending thread is told of each command
+ * sent, to time out its response, and a command still queued at its deadline is dropped rather than sent.
+ */
+class ClusterIngress implements ControlledMessageHandler {
+    private static final int CORRELATION_ID_OFFSET = 0;
+    private static final int DEADLINE_OFFSET = CORRELATION_ID_OFFSET + Long.BYTES;
+    private static final int FIELDS_OFFSET = DEADLINE_OFFSET + Long.BYTES;
+    private static final int UPDATE_LENGTH = Long.BYTES + Long.BYTES;
+
+    private final RingBuffer ringBuffer;
+    private final long timeoutNs;
+    private final BufferClaim bufferClaim = new BufferClaim();
+    private final ExpandableArrayBuffer offerBuffer = new ExpandableArrayBuffer();
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final CreateToyCommandEncoder createToyCommandEncoder = new CreateToyCommandEncoder();
+    private final GetToyCommandEncoder getToyCommandEncoder = new GetToyCommandEncoder();
+    private final CreateToysCommandEncoder createToysCommandEncoder = new CreateToysCommandEncoder();
+    private final UpdateToysCommandEncoder updateToysCommandEncoder = new UpdateToysCommandEncoder();
+    private final ListToysByCustomerCommandEncoder listToysByCustomerCommandEncoder =
+        new ListToysByCustomerCommandEncoder();
+    private final CountToysByStatusCommandEncoder countToysByStatusCommandEncoder =
+        new CountToysByStatusCommandEncoder();
+    private AeronCluster cluster;
+    private Listener listener;
+    private long nowNs;
+
+    /**
+     * Told by the sending thread what became of each command it took from the queue.
+     */
+    interface Listener {
+        /**
+         * @param deadlineNs by which the response to the command is due, in {@link System#nanoTime()}.
+         */
+        void onSent(long correlationId, long deadlineNs);
+
+        /**
+         * The command reached its deadline before it could be sent, or the session closed, and was dropped.
+         */
+        void onExpired(long correlationId);
+
+        /**
+         * The ingress publication could not take a command, which stays queued to be sent in a later duty cycle.
+         */
+        void onBackPressured();
+    }
+
+    /**
+     * @param capacity  in bytes of the queue, rounded up to a power of two.
+     * @param timeoutNs from enqueuing a command to the deadline for its response.
+     */
+    ClusterIngress(int capacity, long timeoutNs) {
+        int length = BitUtil.findNextPositivePowerOfTwo(capacity) + RingBufferDescriptor.TRAILER_LENGTH;
+        this.ringBuffer = new ManyToOneRingBuffer(new UnsafeBuffer(ByteBuffer.allocateDirect(length)));
+        this.timeoutNs = timeoutNs;
+    }
+
+    static ClusterIngress fromSystemProperties(long timeoutNs) {
+        return new ClusterIngress(Integer.getInteger("gateway.ingress.capacity", 1024 * 1024), timeoutNs);
+    }
+
+    /**
+     * @return true if queued or false if the queue is full.
+     */
+    boolean createToy(long correlationId, long customerId, long requestId) {
+        int index = claim(CreateToyCommandEncoder.TEMPLATE_ID, correlationId, 2);
+        if (index < 0) {
+            return false;
+        }
+
+        AtomicBuffer ringBuffer = this.ringBuffer.buffer();
+        ringBuffer.putLong(index + FIELDS_OFFSET, customerId);
+        ringBuffer.putLong(index + FIELDS_OFFSET + Long.BYTES, requestId);
+        this.ringBuffer.commit(index);
+        return true;
+    }
+
+    boolean getToy(long correlationId, long toyId) {
+        int index = claim(GetToyCommandEncoder.TEMPLATE_ID, correlationId, 1);
+        if (index < 0) {
+            return false;
+        }
+
+        ringBuffer.buffer().putLong(index + FIELDS_OFFSET, toyId);
+        ringBuffer.commit(index);
+        return true;
+    }
+
+    boolean createToys(long correlationId, long[] customerIds) {
+        int index = claim(CreateToysCommandEncoder.TEMPLATE_ID, correlationId, customerIds.length);
+        if (index < 0) {
+            return false;
+        }
+
+        AtomicBuffer ringBuffer = this.ringBuffer.buffer();
+        for (int i = 0; i < customerIds.length; i++) {
+            ringBuffer.putLong(index + FIELDS_OFFSET + i * Long.BYTES, customerIds[i]);
+        }
+        this.ringBuffer.commit(index);
+        return true;
+    }
+
+    boolean updateToys(long correlationId, long[] toyIds, ToyStatus[] statuses) {
+        int index = claim(UpdateToysCommandEncoder.TEMPLATE_ID, correlationId, toyIds.length * 2);
+        if (index < 0) {
+            return false;
+        }
+
+        AtomicBuffer ringBuffer = this.ringBuffer.buffer();
+        for (int i = 0; i < toyIds.length; i++) {
+            int updateOffset = index + FIELDS_OFFSET + i * UPDATE_LENGTH;
+            ringBuffer.putLong(updateOffset, toyIds[i]);
+            ringBuffer.putLong(updateOffset + Long.BYTES, statuses[i].getValue());
+        }
+        this.ringBuffer.commit(index);
+        return true;
+    }
+
+    boolean listToysByCustomer(long correlationId, long customerId, long afterToyId, int pageSize) {
+        int index = claim(ListToysByCustomerCommandEncoder.TEMPLATE_ID, correlationId, 3);
+        if (index < 0) {
+            return false;
+        }
+
+        AtomicBuffer ringBuffer = this.ringBuffer.buffer();
+        ringBuffer.putLong(index + FIELDS_OFFSET, customerId);
+        ringBuffer.putLong(index + FIELDS_OFFSET + Long.BYTES, afterToyId);
+        ringBuffer.putLong(index + FIELDS_OFFSET + 2 * Long.BYTES, pageSize);
+        this.ringBuffer.commit(index);
+        return true;
+    }
+
+    boolean countToysByStatus(long correlationId, ToyStatus status) {
+        int index = claim(CountToysByStatusCommandEncoder.TEMPLATE_ID, correlationId, 1);
+        if (index < 0) {
+            return false;
+        }
+
+        ringBuffer.buffer().putLong(index + FIELDS_OFFSET, status.getValue());
+        ringBuffer.commit(index);
+        return true;
+    }
+
+    /**
+     * Send queued commands in order until the limit is reached or the cluster is back-pressured. Only to be called
+     * by the thread which owns the cluster session.
+     *
+     * @return the number of commands sent or dropped.
+     */
+    int send(AeronCluster cluster, long nowNs, Listener listener, int limit) {
+        this.cluster = cluster;
+        this.nowNs = nowNs;
+        this.listener = listener;
+        return ringBuffer.controlledRead(this, limit);
+    }
+
+    /**
+     * Drop queued commands without sending them, such as when the session has closed.
+     *
+     * @return the number of commands dropped.
+     */
+    int expire(Listener listener, int limit) {
+        return ringBuffer.read(
+            (msgTypeId, buffer, index, length) -> listener.onExpired(buffer.getLong(index + CORRELATION_ID_OFFSET)),
+            limit);
+    }
+
+    /**
+     * @return bytes of commands queued and not yet sent.
+     */
+    int depth() {
+        return ringBuffer.size();
+    }
+
+    @Override
+    public Action onMessage(int msgTypeId, MutableDirectBuffer buffer, int index, int length) {
+        long correlationId = buffer.getLong(index + CORRELATION_ID_OFFSET);
+        long deadlineNs = buffer.getLong(index + DEADLINE_OFFSET);
+        if (nowNs - deadlineNs >= 0) {
+            listener.onExpired(correlationId);
+            return Action.CONTINUE;
+        }
+
+        Action action = encode(msgTypeId, buffer, index + FIELDS_OFFSET, length - FIELDS_OFFSET, correlationId);
+        if (Action.CONTINUE == action) {
+            listener.onSent(correlationId, deadlineNs);
+        } else {
+            listener.onBackPressured();
+        }
+
+        return action;
+    }
+
+    /**
+     * Encode a command from its record into the ingress publication.
+     *
+     * @return {@link Action#CONTINUE} if sent, or {@link Action#ABORT} to retry it when back-pressured.
+     */
+    private Action encode(
+            int msgTypeId, MutableDirectBuffer buffer, int fieldsIndex, int fieldsLength, long correlationId) {
+        switch (msgTypeId) {
+            case CreateToyCommandEncoder.TEMPLATE_ID: {
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + CreateToyCommandEncoder.BLOCK_LENGTH;
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                createToyCommandEncoder.wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .customerId(buffer.getLong(fieldsIndex))
+                    .requestId(buffer.getLong(fieldsIndex + Long.BYTES))
+                    .correlationId(correlationId);
+                return commitIngress(claimed, encodedLength);
+            }
+
+            case GetToyCommandEncoder.TEMPLATE_ID: {
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + GetToyCommandEncoder.BLOCK_LENGTH;
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                getToyCommandEncoder.wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .toyId(buffer.getLong(fieldsIndex))
+                    .correlationId(correlationId);
+                return commitIngress(claimed, encodedLength);
+            }
+
+            case CreateToysCommandEncoder.TEMPLATE_ID: {
+                int customerCount = fieldsLength / Long.BYTES;
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + CreateToysCommandEncoder.BLOCK_LENGTH +
+                    CreateToysCommandEncoder.CustomersEncoder.HEADER_SIZE +
+                    customerCount * CreateToysCommandEncoder.CustomersEncoder.sbeBlockLength();
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                CreateToysCommandEncoder.CustomersEncoder customers = createToysCommandEncoder
+                    .wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .correlationId(correlationId)
+                    .customersCount(customerCount);
+                for (int i = 0; i < customerCount; i++) {
+                    customers.next().customerId(buffer.getLong(fieldsIndex + i * Long.BYTES));
+                }
+                return commitIngress(claimed, encodedLength);
+            }
+
+            case UpdateToysCommandEncoder.TEMPLATE_ID: {
+                int updateCount = fieldsLength / UPDATE_LENGTH;
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + UpdateToysCommandEncoder.BLOCK_LENGTH +
+                    UpdateToysCommandEncoder.UpdatesEncoder.HEADER_SIZE +
+                    updateCount * UpdateToysCommandEncoder.UpdatesEncoder.sbeBlockLength();
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                UpdateToysCommandEncoder.UpdatesEncoder updates = updateToysCommandEncoder
+                    .wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .correlationId(correlationId)
+                    .updatesCount(updateCount);
+                for (int i = 0; i < updateCount; i++) {
+                    int updateIndex = fieldsIndex + i * UPDATE_LENGTH;
+                    updates.next()
+                        .toyId(buffer.getLong(updateIndex))
+                        .status(ToyStatus.fromValue((int) buffer.getLong(updateIndex + Long.BYTES)).toCode());
+                }
+                return commitIngress(claimed, encodedLength);
+            }
+
+            case ListToysByCustomerCommandEncoder.TEMPLATE_ID: {
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + ListToysByCustomerCommandEncoder.BLOCK_LENGTH;
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                listToysByCustomerCommandEncoder.wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .customerId(buffer.getLong(fieldsIndex))
+                    .afterToyId(buffer.getLong(fieldsIndex + Long.BYTES))
+                    .pageSize((int) buffer.getLong(fieldsIndex + 2 * Long.BYTES))
+                    .correlationId(correlationId);
+                return commitIngress(claimed, encodedLength);
+            }
+
+            case CountToysByStatusCommandEncoder.TEMPLATE_ID: {
+                int encodedLength = MessageHeaderEncoder.ENCODED_LENGTH + CountToysByStatusCommandEncoder.BLOCK_LENGTH;
+                MutableDirectBuffer claimed = claimIngress(encodedLength);
+                if (claimed == null) {
+                    return Action.ABORT;
+                }
+                countToysByStatusCommandEncoder.wrapAndApplyHeader(claimed, claimOffset(claimed), headerEncoder)
+                    .status(ToyStatus.fromValue((int) buffer.getLong(fieldsIndex)).toCode())
+                    .correlationId(correlationId);
+                return commitIngress(claimed, encodedLength);
+            }
+
+            default:
+                throw new IllegalStateException("Unknown command in ingress queue: templateId=" + msgTypeId);
+        }
+    }
+
+    /**
+     * Claim a record for a command with a correlationId and deadline followed by a number of long fields.
+     *
+     * @return the index of the record, or a negative value if the queue is full.
+     */
+    private int claim(int templateId, long correlationId, int fieldCount) {
+        int index = ringBuffer.tryClaim(templateId, FIELDS_OFFSET + fieldCount * Long.BYTES);
+        if (RingBuffer.INSUFFICIENT_CAPACITY == index) {
+            return index;
+        }
+
+        AtomicBuffer buffer = ringBuffer.buffer();
+        buffer.putLong(index + CORRELATION_ID_OFFSET, correlationId);
+        buffer.putLong(index + DEADLINE_OFFSET, System.nanoTime() + timeoutNs);
+        return index;
+    }
+
+    /**
+     * Claim space in the ingress publication for a command, or the scratch buffer for a command too large to claim,
+     * which is then offered.
+     *
+     * @return the buffer to encode the command into at {@link #claimOffset}, or null if back-pressured.
+     */
+    private MutableDirectBuffer claimIngress(int encodedLength) {
+        if (AeronCluster.SESSION_HEADER_LENGTH + encodedLength > cluster.ingressPublication().maxPayloadLength()) {
+            return offerBuffer;
+        }
+
+        return cluster.tryClaim(encodedLength, bufferClaim) > 0 ? bufferClaim.buffer() : null;
+    }
+
+    private int claimOffset(MutableDirectBuffer claimed) {
+        return claimed == offerBuffer ? 0 : bufferClaim.offset() + AeronCluster.SESSION_HEADER_LENGTH;
+    }
+
+    private Action commitIngress(MutableDirectBuffer claimed, int encodedLength) {
+        if (claimed != offerBuffer) {
+            bufferClaim.commit();
+            return Action.CONTINUE;
+        }
+
+        // Encoding is repeated if the offer is back-pressured, which is rare for large batches
+        return cluster.offer(offerBuffer, 0, encodedLength) > 0 ? Action.CONTINUE : Action.ABORT;
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+/**
+ * Type ids for the counters published by a gateway, visible with AeronStat on the gateway's media driver. Ids below
+ * 1000 are reserved for Aeron and ids from 1000 are used by the toyfactory, which may share the driver.
+ */
+public final class GatewayCounters {
+    /**
+     * Duty cycles of the agent which owns a cluster session, each of which polls its egress.
+     */
+    public static final int POLLER_DUTY_CYCLES_TYPE_ID = 2001;
+
+    /**
+     * Egress fragments received by the agent which owns a cluster session.
+     */
+    public static final int POLLER_FRAGMENTS_TYPE_ID = 2002;
+
+    /**
+     * Duty cycles of the agent which owns a cluster session which found no work and idled.
+     */
+    public static final int POLLER_IDLE_CYCLES_TYPE_ID = 2003;
+
+    /**
+     * 1 while a cluster session is connected, and 0 once it has closed.
+     */
+    public static final int SESSION_CONNECTED_TYPE_ID = 2004;
+
+    /**
+     * Times a cluster session's ingress publication was back-pressured, leaving commands queued.
+     */
+    public static final int SESSION_BACK_PRESSURE_TYPE_ID = 2005;
+
+    /**
+     * Requests rejected because a cluster session's queue of commands was full.
+     */
+    public static final int SESSION_QUEUE_FULL_TYPE_ID = 2006;
+
+    private GatewayCounters() {
+    }
+}
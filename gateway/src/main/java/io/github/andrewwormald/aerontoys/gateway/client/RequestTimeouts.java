@@ -0,0 +1,92 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+import org.agrona.DeadlineTimerWheel;
+import org.agrona.collections.Long2LongHashMap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Deadlines for the responses to requests in flight, by correlationId, held in a {@link DeadlineTimerWheel} so any
+ * number of requests can be timed out by the thread which owns the cluster session, rather than a blocked thread per
+ * request. A request's timer is cancelled when its response arrives, and expires at about the tick resolution after
+ * its deadline otherwise.
+ *
+ * Not thread safe, only to be used by the thread which owns the cluster session.
+ */
+class RequestTimeouts implements DeadlineTimerWheel.TimerHandler {
+    private static final long TICK_RESOLUTION_NS = 1L << 20;
+    private static final int TICKS_PER_WHEEL = 1024;
+    private static final int EXPIRY_LIMIT = 1024;
+
+    private final DeadlineTimerWheel timerWheel;
+    private final Long2LongHashMap timerIdByCorrelationId = new Long2LongHashMap(NULL_VALUE);
+    private final Long2LongHashMap correlationIdByTimerId = new Long2LongHashMap(NULL_VALUE);
+    private final LongConsumer onTimeout;
+
+    /**
+     * @param nowNs     current {@link System#nanoTime()}, from which the wheel starts.
+     * @param onTimeout called with the correlationId of each request which reaches its deadline without a response.
+     */
+    RequestTimeouts(long nowNs, LongConsumer onTimeout) {
+        this.timerWheel = new DeadlineTimerWheel(TimeUnit.NANOSECONDS, nowNs, TICK_RESOLUTION_NS, TICKS_PER_WHEEL);
+        this.onTimeout = onTimeout;
+    }
+
+    /**
+     * @param deadlineNs in {@link System#nanoTime()} by which the response to the request is due.
+     */
+    void schedule(long correlationId, long deadlineNs) {
+        long timerId = timerWheel.scheduleTimer(deadlineNs);
+        timerIdByCorrelationId.put(correlationId, timerId);
+        correlationIdByTimerId.put(timerId, correlationId);
+    }
+
+    /**
+     * Cancel the deadline of a request which has been responded to, if it has one.
+     */
+    void cancel(long correlationId) {
+        long timerId = timerIdByCorrelationId.remove(correlationId);
+        if (NULL_VALUE != timerId) {
+            correlationIdByTimerId.remove(timerId);
+            timerWheel.cancelTimer(timerId);
+        }
+    }
+
+    /**
+     * Time out the requests which have reached their deadlines. The wheel advances a tick at a time, so it is caught
+     * up to the current time in one poll after the thread has been idle.
+     *
+     * @return the number of requests timed out.
+     */
+    int poll(long nowNs) {
+        if (0 == timerWheel.timerCount()) {
+            timerWheel.currentTickTime(nowNs);
+            return 0;
+        }
+
+        int timedOut = 0;
+        do {
+            timedOut += timerWheel.poll(nowNs, this, EXPIRY_LIMIT - timedOut);
+        } while (timerWheel.currentTickTime() <= nowNs && timedOut < EXPIRY_LIMIT);
+
+        return timedOut;
+    }
+
+    /**
+     * @return the number of requests with a deadline.
+     */
+    int size() {
+        return timerIdByCorrelationId.size();
+    }
+
+    @Override
+    public boolean onTimerExpiry(TimeUnit timeUnit, long now, long timerId) {
+        long correlationId = correlationIdByTimerId.remove(timerId);
+        timerIdByCorrelationId.remove(correlationId);
+        onTimeout.accept(correlationId);
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+import io.github.andrewwormald.aerontoys.shared.Toy;
+import io.github.andrewwormald.aerontoys.shared.codecs.ListToysByCustomerCommandEncoder;
+
+import java.util.List;
+
+/**
+ * A page of a customer's toys in creation order, reassembled from the chunks the cluster streams it in.
+ */
+public class ToyPage {
+    /**
+     * Cursor which starts from a customer's first toy, and which a page returns when it is the last.
+     */
+    public static final long NO_CURSOR = ListToysByCustomerCommandEncoder.afterToyIdNullValue();
+
+    private final long customerId;
+    private final int toyCount;
+    private final List<Toy> toys;
+    private final long nextAfterToyId;
+
+    public ToyPage(long customerId, int toyCount, List<Toy> toys, long nextAfterToyId) {
+        this.customerId = customerId;
+        this.toyCount = toyCount;
+        this.toys = toys;
+        this.nextAfterToyId = nextAfterToyId;
+    }
+
+    public long getCustomerId() {
+        return customerId;
+    }
+
+    /**
+     * @return the total number of toys the customer has, across all pages.
+     */
+    public int getToyCount() {
+        return toyCount;
+    }
+
+    public List<Toy> getToys() {
+        return toys;
+    }
+
+    /**
+     * @return cursor to request the next page with, or {@link #NO_CURSOR} if this is the last page.
+     */
+    public long getNextAfterToyId() {
+        return nextAfterToyId;
+    }
+
+    public boolean hasNextPage() {
+        return NO_CURSOR != nextAfterToyId;
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder(String.format(
+            "{\"customerId\":\"%d\",\"toyCount\":%d,\"toys\":[", customerId, toyCount));
+        for (Toy toy : toys) {
+            if (json.charAt(json.length() - 1) != '[') {
+                json.append(',');
+            }
+            json.append(String.format(
+                "{\"id\":\"%d\",\"customerId\":\"%d\",\"status\":\"%s\"}",
+                toy.getId(), toy.getCustomerId(), toy.getStatus()));
+        }
+        json.append("],\"nextAfterToyId\":");
+        json.append(hasNextPage() ? "\"" + nextAfterToyId + "\"" : "null");
+        return json.append('}').toString();
+    }
+}
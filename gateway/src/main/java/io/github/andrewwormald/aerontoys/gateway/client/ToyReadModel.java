@@ -0,0 +1,283 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+import io.github.andrewwormald.aerontoys.shared.Toy;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsHeartbeatDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotEndDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local view of every toy in the cluster, kept up to date from the toy events each partition streams to the gateway,
+ * so toys can be read without sending a command through the log.
+ *
+ * A partition's view is built by paging through its toys while applying its events, then kept in sync by checking
+ * each event and heartbeat continues the partition's sequence. A gap means a message was lost, for example in a
+ * leader election, and the partition is paged through again from the start, ignoring pages still in flight from
+ * before. Reads of a partition are only served while it is in sync and has been heard from within the staleness
+ * bound, otherwise they go to the cluster. A partition which makes no progress for longer than the bound is resynced.
+ *
+ * Only one session receives the events, so a write answered through another session can respond before the view has
+ * its event. Such writes are noted in {@link ToyWrites}, and the toy is read from the cluster until its partition has
+ * been heard from at a later cluster time, by when the event has been applied as a partition sends its events in log
+ * order and before any later message.
+ *
+ * The egress poller applies events while request threads read, so the toys are held in a concurrent map and
+ * replaced rather than modified.
+ */
+public class ToyReadModel {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ToyReadModel.class);
+
+    /**
+     * Index to request a partition's next page from, or none when there are no more pages.
+     */
+    public static final int NO_PAGE = ToyEventsSnapshotEndDecoder.nextIndexNullValue();
+
+    private static final long UNKNOWN_SEQUENCE = -1;
+
+    private final long maxStalenessNs;
+    private final ConcurrentHashMap<Long, Toy> toys = new ConcurrentHashMap<>();
+    private final ToyWrites writes = new ToyWrites();
+    private volatile PartitionView[] partitions = new PartitionView[0];
+    private long subscribeRequestedNs;
+    private long writesPrunedNs;
+
+    /**
+     * @param maxStalenessNs longest a partition may go without being heard from before its reads go to the cluster.
+     */
+    public ToyReadModel(long maxStalenessNs) {
+        this.maxStalenessNs = maxStalenessNs;
+    }
+
+    /**
+     * @return true if a read of the toy can be served from the view.
+     */
+    public boolean canRead(long toyId, long nowNs) {
+        final PartitionView[] partitions = this.partitions;
+        if (0 == partitions.length) {
+            return false;
+        }
+
+        // Toys are owned by the partition their id maps to, the same as in the cluster
+        final PartitionView partition = partitions[(int) Math.floorMod(toyId, (long) partitions.length)];
+        return null != partition &&
+            partition.isSynced &&
+            nowNs - partition.lastProgressNs <= maxStalenessNs &&
+            writes.isApplied(toyId, partition.timestamp);
+    }
+
+    /**
+     * Note a write to a toy answered through a session other than the one receiving the events, which is read from
+     * the cluster until the view has caught up with it.
+     *
+     * @param timestamp cluster time of the write's response.
+     */
+    public void onWrite(long toyId, long timestamp) {
+        writes.onWrite(toyId, timestamp);
+    }
+
+    /**
+     * Forget the writes the view has caught up with which have not been read since, at most once per staleness
+     * bound so the noted writes are only scanned occasionally.
+     */
+    public void pruneWrites(long nowNs) {
+        if (nowNs - writesPrunedNs <= maxStalenessNs) {
+            return;
+        }
+        writesPrunedNs = nowNs;
+
+        final PartitionView[] partitions = this.partitions;
+        if (0 != partitions.length) {
+            writes.prune(toyId -> {
+                final PartitionView partition = partitions[(int) Math.floorMod(toyId, (long) partitions.length)];
+                return null != partition ? partition.timestamp : Long.MIN_VALUE;
+            });
+        }
+    }
+
+    /**
+     * @return the toy, or null if it did not exist as of the view.
+     */
+    public Toy get(long toyId) {
+        return toys.get(toyId);
+    }
+
+    /**
+     * @return true if the subscription to every partition should be requested, initially and until one responds.
+     */
+    public boolean shouldSubscribe(long nowNs) {
+        if (0 == partitions.length && (0 == subscribeRequestedNs || nowNs - subscribeRequestedNs > maxStalenessNs)) {
+            subscribeRequestedNs = nowNs;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return a partition whose events have stopped, so it should be paged through again, or -1 if there is none.
+     */
+    public int partitionToResync(long nowNs) {
+        final PartitionView[] partitions = this.partitions;
+        for (int partitionId = 0; partitionId < partitions.length; partitionId++) {
+            final PartitionView partition = partitions[partitionId];
+            if (null != partition &&
+                nowNs - partition.lastProgressNs > maxStalenessNs &&
+                nowNs - partition.resyncRequestedNs > maxStalenessNs) {
+                LOGGER.warn("No progress from toy partition {} for {}ms, resyncing",
+                    partitionId, (nowNs - partition.lastProgressNs) / 1_000_000);
+                partition.resync(nowNs);
+                return partitionId;
+            }
+        }
+
+        return -1;
+    }
+
+    public void onSnapshot(ToyEventsSnapshotDecoder decoder) {
+        for (ToyEventsSnapshotDecoder.ToysDecoder toy : decoder.toys()) {
+            put(toy.toyId(), toy.customerId(), toy.status());
+        }
+    }
+
+    /**
+     * @return index to request the partition's next page from, which is 0 if it must be paged through from the start
+     * again, or {@link #NO_PAGE} if there are no more pages.
+     */
+    public int onSnapshotEnd(ToyEventsSnapshotEndDecoder decoder, long nowNs) {
+        final PartitionView partition = partition(decoder.partitionId(), decoder.partitionCount(), nowNs);
+        if (decoder.fromIndex() != partition.expectedFromIndex) {
+            return NO_PAGE;
+        }
+
+        if (UNKNOWN_SEQUENCE != partition.sequence && partition.sequence != decoder.sequence()) {
+            onGap(decoder.partitionId(), partition, decoder.sequence(), nowNs);
+            return 0;
+        }
+
+        final int nextIndex = decoder.nextIndex();
+        partition.sequence = decoder.sequence();
+        partition.expectedFromIndex = nextIndex;
+        partition.lastProgressNs = nowNs;
+        partition.timestamp = Math.max(partition.timestamp, decoder.timestamp());
+        if (NO_PAGE == nextIndex && !partition.isSynced) {
+            partition.isSynced = true;
+            LOGGER.info("Toy read model in sync with partition {} at sequence {}",
+                decoder.partitionId(), partition.sequence);
+        }
+
+        return nextIndex;
+    }
+
+    /**
+     * @return true if the events continued the partition's sequence, false if it must be paged through again.
+     */
+    public boolean onEvents(ToyEventsDecoder decoder, long nowNs) {
+        final PartitionView partition = partitionOrNull(decoder.partitionId());
+        final ToyEventsDecoder.ToysDecoder toysDecoder = decoder.toys();
+        boolean isInSequence = true;
+        if (null != partition && UNKNOWN_SEQUENCE != partition.sequence) {
+            isInSequence = decoder.firstSequence() == partition.sequence + 1;
+            if (isInSequence) {
+                partition.sequence += toysDecoder.count();
+                partition.lastProgressNs = nowNs;
+                partition.timestamp = Math.max(partition.timestamp, decoder.timestamp());
+            } else {
+                onGap(decoder.partitionId(), partition, decoder.firstSequence() - 1, nowNs);
+            }
+        }
+
+        // Events from before a page are older than its toys, so they can be applied in the order they arrive. The
+        // toys are decoded even after a gap so the decoder's limit moves past them.
+        for (ToyEventsDecoder.ToysDecoder toy : toysDecoder) {
+            if (isInSequence) {
+                put(toy.toyId(), toy.customerId(), toy.status());
+            }
+        }
+
+        return isInSequence;
+    }
+
+    /**
+     * @return true if the heartbeat matched the partition's sequence, false if it must be paged through again.
+     */
+    public boolean onHeartbeat(ToyEventsHeartbeatDecoder decoder, long nowNs) {
+        final PartitionView partition = partition(decoder.partitionId(), decoder.partitionCount(), nowNs);
+        if (UNKNOWN_SEQUENCE == partition.sequence) {
+            return true;
+        }
+
+        if (decoder.sequence() != partition.sequence) {
+            onGap(decoder.partitionId(), partition, decoder.sequence(), nowNs);
+            return false;
+        }
+        partition.lastProgressNs = nowNs;
+        partition.timestamp = Math.max(partition.timestamp, decoder.timestamp());
+
+        return true;
+    }
+
+    private void put(long toyId, long customerId, ToyStatusCode status) {
+        toys.put(toyId, new Toy(toyId, customerId, ToyStatus.fromCode(status)));
+    }
+
+    private void onGap(int partitionId, PartitionView partition, long sequence, long nowNs) {
+        LOGGER.warn("Toy events from partition {} jumped from sequence {} to {}, resyncing",
+            partitionId, partition.sequence, sequence);
+        partition.resync(nowNs);
+    }
+
+    private PartitionView partitionOrNull(int partitionId) {
+        final PartitionView[] partitions = this.partitions;
+        return partitionId >= 0 && partitionId < partitions.length ? partitions[partitionId] : null;
+    }
+
+    private PartitionView partition(int partitionId, int partitionCount, long nowNs) {
+        PartitionView[] partitions = this.partitions;
+        if (partitions.length != partitionCount) {
+            if (0 != partitions.length) {
+                LOGGER.warn("Toy partition count changed from {} to {}", partitions.length, partitionCount);
+            }
+            partitions = new PartitionView[partitionCount];
+            this.partitions = partitions;
+        }
+
+        PartitionView partition = partitions[partitionId];
+        if (null == partition) {
+            partition = new PartitionView(nowNs);
+            partitions[partitionId] = partition;
+        }
+
+        return partition;
+    }
+
+    private static final class PartitionView {
+        volatile boolean isSynced;
+        volatile long lastProgressNs;
+        // Latest cluster time the partition has been heard from at, while in sequence
+        volatile long timestamp = Long.MIN_VALUE;
+        long sequence = UNKNOWN_SEQUENCE;
+        int expectedFromIndex;
+        long resyncRequestedNs;
+
+        PartitionView(long nowNs) {
+            this.lastProgressNs = nowNs;
+            this.resyncRequestedNs = nowNs;
+        }
+
+        /**
+         * Page through the partition from the start again, which the caller requests.
+         */
+        void resync(long nowNs) {
+            isSynced = false;
+            sequence = UNKNOWN_SEQUENCE;
+            expectedFromIndex = 0;
+            resyncRequestedNs = nowNs;
+        }
+    }
+}
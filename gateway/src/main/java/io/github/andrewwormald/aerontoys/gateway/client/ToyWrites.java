@@ -0,0 +1,54 @@
+package io.github.andrewwormald.aerontoys.gateway.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Cluster time of the latest response to each of this gateway's recent writes to a toy, so a local view of the toys
+ * serves a toy only once it has applied the gateway's writes to it.
+ *
+ * A view has applied a write once it has applied a log message from a later cluster time than the write's response,
+ * as the toy's partition applies messages in log order. A message from the same cluster time is not enough, as
+ * several log messages can share a cluster time.
+ *
+ * Writes are noted by the session agents and checked by request threads, so they are held in a concurrent map.
+ */
+class ToyWrites {
+    private final ConcurrentHashMap<Long, Long> timestampByToyId = new ConcurrentHashMap<>();
+
+    /**
+     * @param timestamp cluster time of the write's response.
+     */
+    void onWrite(long toyId, long timestamp) {
+        timestampByToyId.merge(toyId, timestamp, Math::max);
+    }
+
+    /**
+     * @param appliedTimestamp latest cluster time of the log messages the view has applied for the toy's partition.
+     * @return true if the view has applied the gateway's writes to the toy, after which they are forgotten.
+     */
+    boolean isApplied(long toyId, long appliedTimestamp) {
+        final Long writeTimestamp = timestampByToyId.get(toyId);
+        if (null == writeTimestamp) {
+            return true;
+        }
+
+        if (appliedTimestamp > writeTimestamp) {
+            timestampByToyId.remove(toyId, writeTimestamp);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget the writes a view has applied which have not been read since, scanning every write so it should only
+     * be called occasionally.
+     *
+     * @param appliedTimestampByToyId latest cluster time the view has applied for a toy's partition.
+     */
+    void prune(LongUnaryOperator appliedTimestampByToyId) {
+        timestampByToyId.entrySet().removeIf(
+            write -> appliedTimestampByToyId.applyAsLong(write.getKey()) > write.getValue());
+    }
+}
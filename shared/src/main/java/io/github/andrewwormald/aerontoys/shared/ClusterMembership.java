@@ -0,0 +1,114 @@
+package io.github.andrewwormald.aerontoys.shared;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Members of the ToyFactory cluster and the ports they listen on, configured the same way for the cluster nodes and
+ * their clients so that both agree on where each member's ingress is.
+ *
+ * Member ids are the positions in the hostname list. Each member uses a range of ports from the port base, so
+ * several members can run on one host.
+ */
+public final class ClusterMembership {
+    /**
+     * Ports reserved for each member from the port base, matching the layout of the toyfactory ClusterConfig.
+     */
+    public static final int PORTS_PER_MEMBER = 100;
+
+    /**
+     * Offset of a member's client facing ingress port within its range.
+     */
+    public static final int INGRESS_PORT_OFFSET = 2;
+
+    private final List<String> hostnames;
+    private final List<String> internalHostnames;
+    private final int portBase;
+
+    /**
+     * @param hostnames         which receive client ingress, one per member.
+     * @param internalHostnames which receive consensus and replication traffic, one per member.
+     * @param portBase          port the first member's range starts from.
+     */
+    public ClusterMembership(List<String> hostnames, List<String> internalHostnames, int portBase) {
+        if (hostnames.isEmpty() || hostnames.size() != internalHostnames.size()) {
+            throw new IllegalArgumentException(
+                "hostnames=" + hostnames + " and internalHostnames=" + internalHostnames + " must be the same size");
+        }
+
+        this.hostnames = Collections.unmodifiableList(new ArrayList<>(hostnames));
+        this.internalHostnames = Collections.unmodifiableList(new ArrayList<>(internalHostnames));
+        this.portBase = portBase;
+    }
+
+    /**
+     * Membership from {@code toyfactory.cluster.hostnames} (comma separated, default {@code localhost}),
+     * {@code toyfactory.cluster.internal.hostnames} (defaults to the hostnames) and
+     * {@code toyfactory.cluster.port.base} (default 20000).
+     */
+    public static ClusterMembership fromSystemProperties() {
+        final String hostnames = System.getProperty("toyfactory.cluster.hostnames", "localhost");
+
+        return new ClusterMembership(
+            split(hostnames),
+            split(System.getProperty("toyfactory.cluster.internal.hostnames", hostnames)),
+            Integer.getInteger("toyfactory.cluster.port.base", 20000));
+    }
+
+    public int memberCount() {
+        return hostnames.size();
+    }
+
+    public List<String> hostnames() {
+        return hostnames;
+    }
+
+    public List<String> internalHostnames() {
+        return internalHostnames;
+    }
+
+    public int portBase() {
+        return portBase;
+    }
+
+    public int ingressPort(int memberId) {
+        return portBase + (memberId * PORTS_PER_MEMBER) + INGRESS_PORT_OFFSET;
+    }
+
+    /**
+     * @return ingress endpoints of every member in the form used by {@code AeronCluster.Context.ingressEndpoints}.
+     */
+    public String ingressEndpoints() {
+        final StringBuilder sb = new StringBuilder();
+        for (int memberId = 0; memberId < hostnames.size(); memberId++) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(memberId).append('=').append(hostnames.get(memberId)).append(':').append(ingressPort(memberId));
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterMembership{" +
+            "hostnames=" + hostnames +
+            ", internalHostnames=" + internalHostnames +
+            ", portBase=" + portBase +
+            '}';
+    }
+
+    private static List<String> split(String hostnames) {
+        final List<String> result = new ArrayList<>();
+        for (String hostname : Arrays.asList(hostnames.split(","))) {
+            if (!hostname.isBlank()) {
+                result.add(hostname.trim());
+            }
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+package io.github.andrewwormald.aerontoys.shared;
+
+import org.agrona.IoUtil;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import java.io.File;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Toy state published by the cluster service into a memory-mapped file, so a client on the same host can read a toy
+ * straight from shared memory rather than sending a command through the cluster.
+ *
+ * The file is a header followed by a fixed-width record per toyId, so a toy is found by offset without an index. Each
+ * record is written by a single writer, the partition which owns the toy, under a seqlock: the record's version is
+ * odd while it is being written and advanced to the next even value once written, so a reader which sees the same
+ * even version before and after reading the fields has a consistent record. A record with version 0 has never been
+ * written. Toys with ids beyond the capacity are not published.
+ *
+ * The header holds a heartbeat per partition, updated while the partition's service is running, so a reader can tell
+ * when the view is no longer being maintained and read from the cluster instead. Each heartbeat carries the cluster
+ * time of the latest log message the partition has applied, so a reader can tell whether the view has caught up with
+ * a write it made through the leader, as the member may be a follower.
+ */
+public final class SharedToyView implements AutoCloseable {
+    public static final int MAX_PARTITIONS = 63;
+
+    private static final int LAYOUT_VERSION = 2;
+    private static final int LAYOUT_VERSION_OFFSET = 0;
+    private static final int PARTITION_COUNT_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEARTBEAT_SLOT_LENGTH = 64;
+    private static final int HEARTBEAT_EPOCH_MS_OFFSET = 0;
+    private static final int HEARTBEAT_CLUSTER_TIME_OFFSET = 8;
+    private static final int HEADER_LENGTH = 4096;
+
+    private static final int RECORD_VERSION_OFFSET = 0;
+    private static final int RECORD_TOY_ID_OFFSET = 8;
+    private static final int RECORD_CUSTOMER_ID_OFFSET = 16;
+    private static final int RECORD_STATUS_OFFSET = 24;
+    private static final int RECORD_LENGTH = 32;
+
+    private static final int MAX_READ_ATTEMPTS = 16;
+
+    private final MappedByteBuffer mappedBuffer;
+    private final UnsafeBuffer buffer;
+    private final long capacity;
+    private final int partitionCount;
+
+    private SharedToyView(MappedByteBuffer mappedBuffer) {
+        this.mappedBuffer = mappedBuffer;
+        this.buffer = new UnsafeBuffer(mappedBuffer);
+        if (LAYOUT_VERSION != buffer.getIntVolatile(LAYOUT_VERSION_OFFSET)) {
+            throw new IllegalStateException("unexpected shared toy view layout version: " +
+                buffer.getInt(LAYOUT_VERSION_OFFSET));
+        }
+        this.capacity = buffer.getLong(CAPACITY_OFFSET);
+        this.partitionCount = buffer.getInt(PARTITION_COUNT_OFFSET);
+    }
+
+    /**
+     * Map the view for the cluster service to write, clearing any toys from a previous run. An existing file of the
+     * right length is reused rather than replaced, so readers which already have it mapped see the new toys.
+     *
+     * @param file           to map, normally on a memory backed file system such as /dev/shm.
+     * @param capacity       toys which can be published, ids from 0 up to the capacity.
+     * @param partitionCount of the services which write to the view.
+     */
+    public static SharedToyView create(File file, int capacity, int partitionCount) {
+        if (partitionCount < 1 || partitionCount > MAX_PARTITIONS) {
+            throw new IllegalArgumentException(
+                "partitionCount=" + partitionCount + " must be from 1 to " + MAX_PARTITIONS);
+        }
+
+        final long length = HEADER_LENGTH + ((long) capacity * RECORD_LENGTH);
+        if (capacity < 0 || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity=" + capacity + " must fit in a single mapping");
+        }
+
+        final MappedByteBuffer mappedBuffer = file.length() == length ?
+            IoUtil.mapExistingFile(file, "shared toy view") :
+            IoUtil.mapNewFile(file, length, false);
+
+        // Readers which already have the file mapped see it as invalid until it has been cleared
+        final UnsafeBuffer buffer = new UnsafeBuffer(mappedBuffer);
+        buffer.putIntVolatile(LAYOUT_VERSION_OFFSET, 0);
+        buffer.setMemory(Integer.BYTES, (int) length - Integer.BYTES, (byte) 0);
+        buffer.putInt(PARTITION_COUNT_OFFSET, partitionCount);
+        buffer.putLong(CAPACITY_OFFSET, capacity);
+        buffer.putIntVolatile(LAYOUT_VERSION_OFFSET, LAYOUT_VERSION);
+
+        return new SharedToyView(mappedBuffer);
+    }
+
+    /**
+     * Map a view written by a cluster service on this host, for reading.
+     */
+    public static SharedToyView open(File file) {
+        return new SharedToyView(IoUtil.mapExistingFile(file, "shared toy view"));
+    }
+
+    /**
+     * Publish the current state of a toy. Only the partition which owns the toy may write it.
+     *
+     * @return true if published, false if the toyId is beyond the capacity of the view.
+     */
+    public boolean put(long toyId, long customerId, ToyStatus status) {
+        if (toyId < 0 || toyId >= capacity) {
+            return false;
+        }
+
+        final int offset = recordOffset(toyId);
+        final long version = buffer.getLong(offset + RECORD_VERSION_OFFSET);
+        buffer.putLongOrdered(offset + RECORD_VERSION_OFFSET, version + 1);
+        VarHandle.storeStoreFence();
+
+        buffer.putLong(offset + RECORD_TOY_ID_OFFSET, toyId);
+        buffer.putLong(offset + RECORD_CUSTOMER_ID_OFFSET, customerId);
+        buffer.putInt(offset + RECORD_STATUS_OFFSET, status.getValue());
+
+        buffer.putLongOrdered(offset + RECORD_VERSION_OFFSET, version + 2);
+
+        return true;
+    }
+
+    /**
+     * Record that a partition's service is running and keeping its toys up to date.
+     *
+     * @param clusterTime of the latest log message the partition has applied.
+     */
+    public void heartbeat(int partitionId, long epochMs, long clusterTime) {
+        final int offset = heartbeatOffset(partitionId);
+        buffer.putLongOrdered(offset + HEARTBEAT_CLUSTER_TIME_OFFSET, clusterTime);
+        buffer.putLongOrdered(offset + HEARTBEAT_EPOCH_MS_OFFSET, epochMs);
+    }
+
+    /**
+     * @return true if the partition which owns the toy has maintained the view within the staleness bound.
+     */
+    public boolean isFresh(long toyId, long nowMs, long maxStalenessMs) {
+        if (toyId < 0 || toyId >= capacity || 0 == partitionCount) {
+            return false;
+        }
+
+        final long heartbeatMs = buffer.getLongVolatile(ownerHeartbeatOffset(toyId) + HEARTBEAT_EPOCH_MS_OFFSET);
+        return nowMs - heartbeatMs <= maxStalenessMs;
+    }
+
+    /**
+     * @return cluster time of the latest log message applied by the partition which owns the toy, as of its last
+     * heartbeat, or {@link Long#MIN_VALUE} if the toy is beyond the view.
+     */
+    public long appliedClusterTime(long toyId) {
+        if (toyId < 0 || toyId >= capacity || 0 == partitionCount) {
+            return Long.MIN_VALUE;
+        }
+
+        return buffer.getLongVolatile(ownerHeartbeatOffset(toyId) + HEARTBEAT_CLUSTER_TIME_OFFSET);
+    }
+
+    /**
+     * Read a consistent copy of a toy, retrying a bounded number of times while it is being written.
+     *
+     * @return the toy, or null if it has not been published or a consistent read was not possible.
+     */
+    public Toy get(long toyId) {
+        if (toyId < 0 || toyId >= capacity) {
+            return null;
+        }
+
+        final int offset = recordOffset(toyId);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final long version = buffer.getLongVolatile(offset + RECORD_VERSION_OFFSET);
+            if (0 == version) {
+                return null;
+            }
+
+            if (0 == (version & 1)) {
+                final long recordToyId = buffer.getLong(offset + RECORD_TOY_ID_OFFSET);
+                final long customerId = buffer.getLong(offset + RECORD_CUSTOMER_ID_OFFSET);
+                final int status = buffer.getInt(offset + RECORD_STATUS_OFFSET);
+                VarHandle.loadLoadFence();
+
+                if (buffer.getLongVolatile(offset + RECORD_VERSION_OFFSET) == version && recordToyId == toyId) {
+                    return new Toy(toyId, customerId, ToyStatus.fromValue(status));
+                }
+            }
+
+            Thread.onSpinWait();
+        }
+
+        return null;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() {
+        IoUtil.unmap(mappedBuffer);
+    }
+
+    private static int recordOffset(long toyId) {
+        return HEADER_LENGTH + (int) (toyId * RECORD_LENGTH);
+    }
+
+    private static int heartbeatOffset(int partitionId) {
+        return HEARTBEAT_SLOT_LENGTH * (partitionId + 1);
+    }
+
+    /**
+     * Heartbeat of the partition which owns a toy, the partition its id maps to, the same as in the cluster.
+     */
+    private int ownerHeartbeatOffset(long toyId) {
+        return heartbeatOffset((int) Math.floorMod(toyId, (long) partitionCount));
+    }
+}
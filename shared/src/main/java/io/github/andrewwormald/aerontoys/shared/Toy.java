@@ -1,20 +1,31 @@
 package io.github.andrewwormald.aerontoys.shared;
 
-import java.time.Instant;
-
 public class Toy {
+    /**
+     * Timestamp of a toy whose creation or last update time is not known, such as one read from a view without them.
+     */
+    public static final long UNKNOWN_TIMESTAMP = 0;
+
     private final long id;
     private final long customerId;
     private ToyStatus status;
-    private final Instant createdAt;
-    private Instant updatedAt;
+    private final long createdAt;
+    private long updatedAt;
 
     public Toy(long id, long customerId, ToyStatus status) {
+        this(id, customerId, status, UNKNOWN_TIMESTAMP, UNKNOWN_TIMESTAMP);
+    }
+
+    /**
+     * @param createdAt cluster time the toy was created, in the cluster's time unit, which is epoch millis by default.
+     * @param updatedAt cluster time the toy last changed status.
+     */
+    public Toy(long id, long customerId, ToyStatus status, long createdAt, long updatedAt) {
         this.id = id;
         this.customerId = customerId;
         this.status = status;
-        this.createdAt = Instant.now();
-        this.updatedAt = Instant.now();
+        this.createdAt = createdAt;
+        this.updatedAt = updatedAt;
     }
 
     public long getId() {
@@ -29,22 +40,25 @@ public class Toy {
         return status;
     }
 
-    public void setStatus(ToyStatus status) {
+    /**
+     * @param timestamp cluster time of the change, so every replica stamps it the same.
+     */
+    public void setStatus(ToyStatus status, long timestamp) {
         this.status = status;
-        this.updatedAt = Instant.now();
+        this.updatedAt = timestamp;
     }
 
-    public Instant getCreatedAt() {
+    public long getCreatedAt() {
         return createdAt;
     }
 
-    public Instant getUpdatedAt() {
+    public long getUpdatedAt() {
         return updatedAt;
     }
 
     @Override
     public String toString() {
-        return String.format("Toy{id=%d, customerId=%d, status=%s, createdAt=%s, updatedAt=%s}",
+        return String.format("Toy{id=%d, customerId=%d, status=%s, createdAt=%d, updatedAt=%d}",
                 id, customerId, status, createdAt, updatedAt);
     }
-}
\ No newline at end of file
+}
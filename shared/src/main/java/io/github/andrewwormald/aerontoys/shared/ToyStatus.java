@@ -1,5 +1,7 @@
 package io.github.andrewwormald.aerontoys.shared;
 
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+
 public enum ToyStatus {
     UNKNOWN(0),
     PENDING(1),
@@ -7,6 +9,8 @@ public enum ToyStatus {
     ASSEMBLED(3),
     COMPLETED(4);
 
+    private static final ToyStatus[] VALUES = values();
+
     private final int value;
 
     ToyStatus(int value) {
@@ -17,16 +21,28 @@ public enum ToyStatus {
         return value;
     }
 
+    /**
+     * Values are dense from 0, so the lookup is an index into a cached array rather than a scan of
+     * {@link #values()}, which allocates a copy on every call.
+     */
     public static ToyStatus fromValue(int value) {
-        for (ToyStatus status : values()) {
-            if (status.value == value) {
-                return status;
-            }
-        }
-        return UNKNOWN;
+        return value >= 0 && value < VALUES.length ? VALUES[value] : UNKNOWN;
+    }
+
+    /**
+     * Map a status decoded from the wire protocol, the null code maps to {@link #UNKNOWN}. A raw value the schema
+     * does not define cannot be decoded as a {@link ToyStatusCode} at all, so statuses from untrusted clients are
+     * read with the decoder's {@code statusRaw()} and mapped with {@link #fromValue} instead.
+     */
+    public static ToyStatus fromCode(ToyStatusCode code) {
+        return fromValue(code.value());
+    }
+
+    public ToyStatusCode toCode() {
+        return ToyStatusCode.get((short) value);
     }
 
     public boolean isValid() {
         return this != UNKNOWN;
     }
-}
\ No newline at end of file
+}
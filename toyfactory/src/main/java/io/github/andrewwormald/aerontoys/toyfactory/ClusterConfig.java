@@ -18,6 +18,7 @@ package io.github.andrewwormald.aerontoys.toyfactory;
 import io.aeron.CommonContext;
 import io.aeron.archive.Archive;
 import io.aeron.archive.client.AeronArchive;
+import io.aeron.cluster.ClusterMember;
 import io.aeron.cluster.ConsensusModule;
 import io.aeron.cluster.service.ClusteredService;
 import io.aeron.cluster.service.ClusteredServiceContainer;
@@ -173,7 +174,7 @@ public final class ClusterConfig
             .clusterDir(new File(baseDir, CLUSTER_SUB_DIR))
             .archiveContext(aeronArchiveContext.clone())
             .serviceCount(1 + additionalServices.length)
-            .ingressChannel("aeron:udp?endpoint=" + hostname + ":" + (portBase + CLIENT_FACING_PORT_OFFSET))
+            .ingressChannel(udpChannel(memberId, ingressHostname, portBase, CLIENT_FACING_PORT_OFFSET))
             .replicationChannel("aeron:udp?endpoint=" + hostname + ":0");
 
         final List<ClusteredServiceContainer.Context> serviceContexts = new ArrayList<>();
@@ -286,6 +287,21 @@ public final class ClusterConfig
         this.clusteredServiceContexts.forEach(ctx -> ctx.aeronDirectoryName(aeronDir));
     }
 
+    /**
+     * Apply a performance profile to the media driver, archive, consensus module and clustered service contexts.
+     *
+     * @param profile to apply, leaving any knob set by its Aeron system property.
+     */
+    public void performanceProfile(final PerformanceProfile profile)
+    {
+        profile.apply(
+            mediaDriverContext,
+            archiveContext,
+            consensusModuleContext,
+            clusteredServiceContexts,
+            ClusterMember.parse(consensusModuleContext.clusterMembers()).length);
+    }
+
     /**
      * Set the base directory for cluster and archive.
      *
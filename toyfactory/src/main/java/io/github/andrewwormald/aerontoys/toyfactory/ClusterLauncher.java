@@ -0,0 +1,177 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.github.andrewwormald.aerontoys.shared.ClusterMembership;
+import org.agrona.concurrent.ShutdownSignalBarrier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a multi-member cluster on the local host, with each member as a separate {@link ClusterNode} process so a
+ * member can be killed and restarted independently of the others.
+ *
+ * Members are given the same JVM options as the launcher, with {@code toyfactory.cluster.hostnames} set to one
+ * {@code localhost} per member unless it is already configured. Each member derives its own port range, Aeron
+ * directory and cluster directory from its member id, so they do not conflict.
+ */
+public class ClusterLauncher implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterLauncher.class);
+
+    private static final long STOP_TIMEOUT_MS = 10_000;
+
+    private final int memberCount;
+    private final ClusterMembership membership;
+    private final File workingDir;
+    private final List<String> jvmArgs;
+    private final Process[] processes;
+
+    /**
+     * @param memberCount of the cluster, normally 3 or 5.
+     * @param workingDir  the members run in, under which they keep their cluster state and logs.
+     */
+    public ClusterLauncher(int memberCount, File workingDir) {
+        this.memberCount = memberCount;
+        this.membership = membership(memberCount);
+        this.workingDir = workingDir;
+        this.jvmArgs = memberJvmArgs(membership);
+        this.processes = new Process[memberCount];
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int memberCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+        try (ClusterLauncher launcher = new ClusterLauncher(memberCount, new File(System.getProperty("user.dir")))) {
+            launcher.startAll();
+            LOGGER.info("Launched a {} member cluster, logs are in {}", memberCount, launcher.workingDir);
+            new ShutdownSignalBarrier().await();
+        }
+    }
+
+    public int memberCount() {
+        return memberCount;
+    }
+
+    /**
+     * @return the membership the members are configured with, for clients to connect with.
+     */
+    public ClusterMembership membership() {
+        return membership;
+    }
+
+    public void startAll() throws Exception {
+        for (int memberId = 0; memberId < memberCount; memberId++) {
+            start(memberId);
+        }
+    }
+
+    /**
+     * Start a member, which rejoins the cluster from its existing state if it has been run before.
+     */
+    public void start(int memberId) throws Exception {
+        if (isRunning(memberId)) {
+            throw new IllegalStateException("member " + memberId + " is already running");
+        }
+
+        final List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ClusterNode.class.getName());
+        command.add(Integer.toString(memberId));
+
+        processes[memberId] = new ProcessBuilder(command)
+            .directory(workingDir)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(workingDir, "node-" + memberId + ".log")))
+            .start();
+
+        LOGGER.info("Started member {} with pid {}", memberId, processes[memberId].pid());
+    }
+
+    /**
+     * Kill a member without letting it shut down cleanly, as if its host had failed.
+     */
+    public void kill(int memberId) throws InterruptedException {
+        final Process process = processes[memberId];
+        if (null != process) {
+            process.destroyForcibly().waitFor();
+            processes[memberId] = null;
+            LOGGER.info("Killed member {}", memberId);
+        }
+    }
+
+    /**
+     * Stop a member, letting it shut down cleanly.
+     */
+    public void stop(int memberId) throws InterruptedException {
+        final Process process = processes[memberId];
+        if (null != process) {
+            process.destroy();
+            if (!process.waitFor(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Member {} did not stop within {}ms, killing it", memberId, STOP_TIMEOUT_MS);
+                process.destroyForcibly().waitFor();
+            }
+            processes[memberId] = null;
+        }
+    }
+
+    public boolean isRunning(int memberId) {
+        return null != processes[memberId] && processes[memberId].isAlive();
+    }
+
+    /**
+     * Stop every member. If interrupted while waiting for one to stop, the rest are killed without waiting and the
+     * interrupt is restored, so no member outlives the launcher and close does not throw {@link InterruptedException}.
+     */
+    @Override
+    public void close() {
+        for (int memberId = 0; memberId < memberCount; memberId++) {
+            try {
+                stop(memberId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int i = memberId; i < memberCount; i++) {
+                    if (null != processes[i]) {
+                        processes[i].destroyForcibly();
+                        processes[i] = null;
+                    }
+                }
+                LOGGER.warn("Interrupted while stopping member {}, killed the remaining members", memberId);
+                return;
+            }
+        }
+    }
+
+    private static ClusterMembership membership(int memberCount) {
+        if (null == System.getProperty("toyfactory.cluster.hostnames")) {
+            final List<String> hostnames = Collections.nCopies(memberCount, "localhost");
+            return new ClusterMembership(
+                hostnames, hostnames, ClusterMembership.fromSystemProperties().portBase());
+        }
+
+        final ClusterMembership membership = ClusterMembership.fromSystemProperties();
+        if (membership.memberCount() != memberCount) {
+            throw new IllegalArgumentException(
+                "toyfactory.cluster.hostnames has " + membership.memberCount() + " members, expected " + memberCount);
+        }
+
+        return membership;
+    }
+
+    private static List<String> memberJvmArgs(ClusterMembership membership) {
+        final List<String> jvmArgs = new ArrayList<>(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        if (null == System.getProperty("toyfactory.cluster.hostnames")) {
+            jvmArgs.add("-Dtoyfactory.cluster.hostnames=" + String.join(",", membership.hostnames()));
+        }
+
+        return jvmArgs;
+    }
+}
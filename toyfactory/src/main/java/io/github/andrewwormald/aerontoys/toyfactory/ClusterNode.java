@@ -1,20 +1,30 @@
 package io.github.andrewwormald.aerontoys.toyfactory;
 
+import io.aeron.Aeron;
 import io.aeron.cluster.ClusteredMediaDriver;
 import io.aeron.cluster.service.ClusteredServiceContainer;
+import io.github.andrewwormald.aerontoys.shared.ClusterMembership;
+import io.github.andrewwormald.aerontoys.shared.SharedToyView;
 import io.github.andrewwormald.aerontoys.toyfactory.bicycle.BicycleService;
+import org.agrona.CloseHelper;
 import org.agrona.ErrorHandler;
+import org.agrona.PropertyAction;
+import org.agrona.SystemUtil;
+import org.agrona.concurrent.AgentRunner;
 import org.agrona.concurrent.ShutdownSignalBarrier;
+import org.agrona.concurrent.SleepingMillisIdleStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public class ClusterNode {
     private static final Logger LOGGER = LoggerFactory.getLogger(ClusterNode.class);
 
-    private static final int PORT_BASE = 20000;
+    private static final long SNAPSHOT_SCHEDULER_IDLE_MS = 10;
 
     private static ErrorHandler errorHandler(final String context) {
         return (Throwable throwable) -> {
@@ -22,33 +32,58 @@ public class ClusterNode {
         };
     }
 
+    /**
+     * Run a cluster node.
+     *
+     * @param args the node id, default 0, followed by any properties files to configure the node from. System
+     *             properties set on the command line take precedence over the files.
+     */
     public static void main(String[] args) {
         final int nodeId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
-        final List<String> hostnames = Arrays.asList("localhost");
-        final List<String> internalHostnames = Arrays.asList("localhost");
+        if (args.length > 1) {
+            SystemUtil.loadPropertiesFiles(PropertyAction.PRESERVE, Arrays.copyOfRange(args, 1, args.length));
+        }
 
-        LOGGER.info("Starting toys cluster node {} ...", nodeId);
+        final ClusterMembership membership = ClusterMembership.fromSystemProperties();
+        final int partitions = Integer.getInteger("toyfactory.partitions", 1);
 
-        final BicycleService bicycleService = new BicycleService();
-        final ClusterConfig clusterConfig = ClusterConfig.create(
-            nodeId, hostnames, internalHostnames, PORT_BASE, bicycleService);
+        LOGGER.info("Starting toys cluster node {} of {} ...", nodeId, membership);
 
-        clusterConfig.mediaDriverContext().errorHandler(errorHandler("Media Driver"));
-        clusterConfig.archiveContext().errorHandler(errorHandler("Archive"));
-        clusterConfig.aeronArchiveContext().errorHandler(errorHandler("Aeron Archive"));
-        clusterConfig.consensusModuleContext().errorHandler(errorHandler("Consensus Module"));
-        clusterConfig.clusteredServiceContext().errorHandler(errorHandler("Clustered Service"));
+        final EventJournal journal = EventJournal.fromSystemProperties();
+        final SharedToyView view = sharedToyViewFromSystemProperties(partitions);
+        final ClusterConfig clusterConfig = clusterConfig(
+            nodeId, membership, new File(System.getProperty("user.dir")), journal, view, partitions);
 
         final ShutdownSignalBarrier barrier = new ShutdownSignalBarrier();
 
-        try (ClusteredMediaDriver clusteredMediaDriver = ClusteredMediaDriver.launch(
+        try (SharedToyView ignore = view;
+             ClusteredMediaDriver clusteredMediaDriver = ClusteredMediaDriver.launch(
                  clusterConfig.mediaDriverContext().terminationHook(barrier::signalAll),
                  clusterConfig.archiveContext(),
                  clusterConfig.consensusModuleContext().terminationHook(barrier::signalAll));
-             ClusteredServiceContainer container = ClusteredServiceContainer.launch(
-                 clusterConfig.clusteredServiceContext().terminationHook(barrier::signalAll))) {
+             AutoCloseable containers = launchServiceContainers(clusterConfig, barrier::signalAll);
+             Aeron aeron = Aeron.connect(
+                 new Aeron.Context().aeronDirectoryName(clusterConfig.mediaDriverContext().aeronDirectoryName()));
+             AgentRunner snapshotSchedulerRunner = new AgentRunner(
+                 new SleepingMillisIdleStrategy(SNAPSHOT_SCHEDULER_IDLE_MS),
+                 errorHandler("Snapshot Scheduler"),
+                 null,
+                 new SnapshotScheduler(
+                     SnapshotPolicy.fromSystemProperties(),
+                     aeron,
+                     clusterConfig.aeronArchiveContext(),
+                     clusterConfig.consensusModuleContext().clusterDir(),
+                     clusterConfig.consensusModuleContext().clusterId(),
+                     clusterConfig.consensusModuleContext().serviceCount()));
+             AgentRunner eventJournalRunner = new AgentRunner(
+                 EventJournalRenderer.idleStrategyFromSystemProperties(),
+                 errorHandler("Event Journal"),
+                 null,
+                 new EventJournalRenderer(journal, aeron, clusterConfig.consensusModuleContext().clusterId()))) {
 
-            LOGGER.info("Toys cluster node {} started successfully with background egress processing", nodeId);
+            AgentRunner.startOnThread(snapshotSchedulerRunner);
+            AgentRunner.startOnThread(eventJournalRunner);
+            LOGGER.info("Toys cluster node {} started successfully with {} partitions", nodeId, partitions);
             barrier.await();
             LOGGER.info("Shutting down toys cluster node {} ...", nodeId);
         } catch (Exception e) {
@@ -56,4 +91,85 @@ public class ClusterNode {
             System.exit(1);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Map the {@link SharedToyView} for the partitions to publish their toys to, if
+     * {@code toyfactory.view.file} is set, such as to a file under /dev/shm. Its capacity in toys is set by
+     * {@code toyfactory.view.capacity}, which must match between runs for a gateway to keep the same file mapped.
+     *
+     * @return the view, or null if toys are not to be published.
+     */
+    static SharedToyView sharedToyViewFromSystemProperties(int partitions) {
+        final String viewFile = System.getProperty("toyfactory.view.file");
+        if (null == viewFile) {
+            return null;
+        }
+
+        final int capacity = Integer.getInteger("toyfactory.view.capacity", 1 << 20);
+        LOGGER.info("Publishing up to {} toys to shared view {}", capacity, viewFile);
+        return SharedToyView.create(new File(viewFile), capacity, partitions);
+    }
+
+    /**
+     * Configure a member with a {@link BicycleService} per partition, the {@link PerformanceProfile} from system
+     * properties and errors logged by context.
+     *
+     * @param parentDir under which the member keeps its archive and cluster state.
+     * @param view      for the partitions to publish their toys to, or null.
+     */
+    static ClusterConfig clusterConfig(
+            int nodeId,
+            ClusterMembership membership,
+            File parentDir,
+            EventJournal journal,
+            SharedToyView view,
+            int partitions) {
+        final BicycleService[] bicycleServices = new BicycleService[partitions];
+        for (int i = 0; i < partitions; i++) {
+            bicycleServices[i] = new BicycleService(journal, view, i, partitions);
+        }
+        final ClusterConfig clusterConfig = ClusterConfig.create(
+            0,
+            nodeId,
+            membership.hostnames(),
+            membership.internalHostnames(),
+            membership.portBase(),
+            parentDir,
+            bicycleServices[0],
+            Arrays.copyOfRange(bicycleServices, 1, partitions));
+
+        final PerformanceProfile profile = PerformanceProfile.fromSystemProperties();
+        LOGGER.info("Applying {} performance profile", profile);
+        clusterConfig.performanceProfile(profile);
+
+        clusterConfig.mediaDriverContext().errorHandler(errorHandler("Media Driver"));
+        clusterConfig.archiveContext().errorHandler(errorHandler("Archive"));
+        clusterConfig.aeronArchiveContext().errorHandler(errorHandler("Aeron Archive"));
+        clusterConfig.consensusModuleContext().errorHandler(errorHandler("Consensus Module"));
+        for (ClusteredServiceContainer.Context serviceContext : clusterConfig.clusteredServiceContexts()) {
+            serviceContext.errorHandler(errorHandler("Clustered Service " + serviceContext.serviceId()));
+        }
+
+        return clusterConfig;
+    }
+
+    /**
+     * Launch a container for each clustered service, one per partition, so each runs on its own thread.
+     *
+     * @param terminationHook run when a container is terminated by the cluster.
+     * @return to close the containers that were launched.
+     */
+    static AutoCloseable launchServiceContainers(ClusterConfig clusterConfig, Runnable terminationHook) {
+        final List<ClusteredServiceContainer> containers = new ArrayList<>();
+        try {
+            for (ClusteredServiceContainer.Context serviceContext : clusterConfig.clusteredServiceContexts()) {
+                containers.add(ClusteredServiceContainer.launch(serviceContext.terminationHook(terminationHook)));
+            }
+        } catch (RuntimeException e) {
+            CloseHelper.quietCloseAll(containers);
+            throw e;
+        }
+
+        return () -> CloseHelper.closeAll(containers);
+    }
+}
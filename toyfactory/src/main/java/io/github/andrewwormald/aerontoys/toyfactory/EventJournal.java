@@ -0,0 +1,99 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import org.agrona.BitUtil;
+import org.agrona.concurrent.AtomicBuffer;
+import org.agrona.concurrent.MessageHandler;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.ManyToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured binary journal of service events, written by the clustered service thread and rendered to text
+ * elsewhere by an {@link EventJournalRenderer}, so no formatting or log I/O happens on the hot path.
+ *
+ * Each event is a fixed-size record of four longs in an off-heap {@link ManyToOneRingBuffer}, the message type id
+ * is the event type. Recording never blocks: when the renderer falls behind and the buffer is full the event is
+ * dropped and counted instead.
+ */
+public class EventJournal {
+    public static final int COMMAND_RECEIVED = 1;
+    public static final int TOY_CREATED = 2;
+    public static final int TOY_UPDATED = 3;
+    public static final int STAGE_COMPLETE = 4;
+    public static final int RESPONSE_SENT = 5;
+    public static final int RESPONSE_QUEUED = 6;
+    public static final int CREATE_REPEATED = 7;
+
+    public static final int TIMESTAMP_OFFSET = 0;
+    public static final int SUBJECT_ID_OFFSET = TIMESTAMP_OFFSET + Long.BYTES;
+    public static final int VALUE1_OFFSET = SUBJECT_ID_OFFSET + Long.BYTES;
+    public static final int VALUE2_OFFSET = VALUE1_OFFSET + Long.BYTES;
+    public static final int EVENT_LENGTH = VALUE2_OFFSET + Long.BYTES;
+
+    private final RingBuffer ringBuffer;
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /**
+     * @param capacity in bytes of the event buffer, rounded up to a power of two.
+     */
+    public EventJournal(int capacity) {
+        final int length = BitUtil.findNextPositivePowerOfTwo(capacity) + RingBufferDescriptor.TRAILER_LENGTH;
+        this.ringBuffer = new ManyToOneRingBuffer(new UnsafeBuffer(ByteBuffer.allocateDirect(length)));
+    }
+
+    public static EventJournal fromSystemProperties() {
+        return new EventJournal(Integer.getInteger("toyfactory.journal.capacity", 1024 * 1024));
+    }
+
+    /**
+     * Record an event, the meaning of the subject and values depends on the event type.
+     *
+     * @param type      one of the event type constants.
+     * @param timestamp cluster time of the event.
+     * @param subjectId toy or client session the event is about.
+     * @return true if recorded or false if the journal is full and the event was dropped.
+     */
+    public boolean record(int type, long timestamp, long subjectId, long value1, long value2) {
+        final int index = ringBuffer.tryClaim(type, EVENT_LENGTH);
+        if (RingBuffer.INSUFFICIENT_CAPACITY == index) {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+
+        final AtomicBuffer buffer = ringBuffer.buffer();
+        buffer.putLong(index + TIMESTAMP_OFFSET, timestamp);
+        buffer.putLong(index + SUBJECT_ID_OFFSET, subjectId);
+        buffer.putLong(index + VALUE1_OFFSET, value1);
+        buffer.putLong(index + VALUE2_OFFSET, value2);
+        ringBuffer.commit(index);
+
+        return true;
+    }
+
+    /**
+     * Read up to a limit of events in the order they were recorded.
+     *
+     * @return the number of events read.
+     */
+    public int read(MessageHandler handler, int limit) {
+        return ringBuffer.read(handler, limit);
+    }
+
+    /**
+     * @return bytes of events recorded and not yet read.
+     */
+    public int depth() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * @return the number of events dropped because the journal was full.
+     */
+    public long droppedEvents() {
+        return droppedEvents.get();
+    }
+}
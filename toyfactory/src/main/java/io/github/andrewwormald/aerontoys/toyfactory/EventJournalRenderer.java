@@ -0,0 +1,130 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.Aeron;
+import io.aeron.Counter;
+import io.aeron.cluster.service.ClusterCounters;
+import io.aeron.driver.Configuration;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import org.agrona.CloseHelper;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.Agent;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.MessageHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Agent which drains an {@link EventJournal} in batches and renders each event as a log line, taking the formatting
+ * and appender I/O off the clustered service thread. The journal depth and dropped events are published as counters.
+ */
+public class EventJournalRenderer implements Agent, MessageHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventJournalRenderer.class);
+
+    private static final int EVENTS_PER_POLL = 256;
+
+    private final EventJournal journal;
+    private final Aeron aeron;
+    private final int clusterId;
+    private final ExpandableArrayBuffer tempBuffer = new ExpandableArrayBuffer();
+
+    private Counter depthCounter;
+    private Counter droppedCounter;
+    private long reportedDroppedEvents;
+
+    public EventJournalRenderer(EventJournal journal, Aeron aeron, int clusterId) {
+        this.journal = journal;
+        this.aeron = aeron;
+        this.clusterId = clusterId;
+    }
+
+    /**
+     * Idle strategy for the renderer from {@code toyfactory.journal.idle.strategy}, any name understood by the media
+     * driver such as {@code backoff}, {@code sleep-ms} or {@code spin}. Defaults to {@code sleep-ms}.
+     */
+    public static IdleStrategy idleStrategyFromSystemProperties() {
+        return Configuration.agentIdleStrategy(System.getProperty("toyfactory.journal.idle.strategy", "sleep-ms"), null);
+    }
+
+    @Override
+    public void onStart() {
+        depthCounter = ClusterCounters.allocate(
+            aeron, tempBuffer, "Event journal depth in bytes", ToyFactoryCounters.JOURNAL_DEPTH_TYPE_ID, clusterId);
+        droppedCounter = ClusterCounters.allocate(
+            aeron, tempBuffer, "Event journal dropped events", ToyFactoryCounters.JOURNAL_DROPPED_TYPE_ID, clusterId);
+    }
+
+    @Override
+    public int doWork() {
+        depthCounter.setOrdered(journal.depth());
+        int workCount = journal.read(this, EVENTS_PER_POLL);
+
+        final long droppedEvents = journal.droppedEvents();
+        if (droppedEvents != reportedDroppedEvents) {
+            LOGGER.warn("Event journal full, dropped {} events", droppedEvents - reportedDroppedEvents);
+            droppedCounter.setOrdered(droppedEvents);
+            reportedDroppedEvents = droppedEvents;
+            workCount++;
+        }
+
+        return workCount;
+    }
+
+    @Override
+    public void onClose() {
+        while (doWork() > 0) {
+            // drain events recorded before shutdown
+        }
+        CloseHelper.closeAll(depthCounter, droppedCounter);
+    }
+
+    @Override
+    public String roleName() {
+        return "event-journal-renderer";
+    }
+
+    @Override
+    public void onMessage(int type, MutableDirectBuffer buffer, int index, int length) {
+        final long timestamp = buffer.getLong(index + EventJournal.TIMESTAMP_OFFSET);
+        final long subjectId = buffer.getLong(index + EventJournal.SUBJECT_ID_OFFSET);
+        final long value1 = buffer.getLong(index + EventJournal.VALUE1_OFFSET);
+        final long value2 = buffer.getLong(index + EventJournal.VALUE2_OFFSET);
+
+        switch (type) {
+            case EventJournal.COMMAND_RECEIVED:
+                LOGGER.info("[{}] Received message from session {}: templateId={}, length={}",
+                    timestamp, subjectId, value1, value2);
+                break;
+
+            case EventJournal.TOY_CREATED:
+                LOGGER.info("[{}] Created toy {} for customer {} with status {}",
+                    timestamp, subjectId, value1, ToyStatus.fromValue((int) value2));
+                break;
+
+            case EventJournal.TOY_UPDATED:
+                LOGGER.info("[{}] Updated toy {} to status {}", timestamp, subjectId, ToyStatus.fromValue((int) value1));
+                break;
+
+            case EventJournal.STAGE_COMPLETE:
+                LOGGER.info("[{}] Workflow advanced toy {} from {} to {}",
+                    timestamp, subjectId, ToyStatus.fromValue((int) value1), ToyStatus.fromValue((int) value2));
+                break;
+
+            case EventJournal.RESPONSE_SENT:
+                LOGGER.info("[{}] Sent response to session {}: templateId={}", timestamp, subjectId, value1);
+                break;
+
+            case EventJournal.RESPONSE_QUEUED:
+                LOGGER.warn("[{}] Queued response to back-pressured session {}: templateId={}",
+                    timestamp, subjectId, value1);
+                break;
+
+            case EventJournal.CREATE_REPEATED:
+                LOGGER.info("[{}] Repeated create request {} returned toy {}", timestamp, value1, subjectId);
+                break;
+
+            default:
+                LOGGER.warn("Unknown event type {} in journal", type);
+        }
+    }
+}
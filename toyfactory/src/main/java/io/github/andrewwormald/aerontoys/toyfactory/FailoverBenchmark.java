@@ -0,0 +1,290 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.cluster.client.AeronCluster;
+import io.aeron.cluster.client.EgressListener;
+import io.aeron.driver.MediaDriver;
+import io.aeron.logbuffer.Header;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCreatedDecoder;
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Measures the sustained throughput and response latency of a local multi-member cluster, then kills the leader and
+ * measures how long the cluster stalls while a new leader is elected.
+ *
+ * Toys are created at a fixed rate, and each command's latency is measured from when it was due to be sent, so time
+ * spent unable to send during the election counts against the commands that were held up. Each command's
+ * correlationId is its sequence number, which the response echoes, so responses are matched even when commands in
+ * flight to the failed leader are lost.
+ *
+ * Comparing runs with 1, 3 and 5 members shows the replication cost of the extra members. Election timing depends
+ * on the consensus module timeouts, such as {@code aeron.cluster.leader.heartbeat.timeout}, which are passed on to
+ * the members like any other system property.
+ */
+public class FailoverBenchmark implements EgressListener {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailoverBenchmark.class);
+
+    private static final long CONNECT_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(60);
+    private static final long DRAIN_NS = TimeUnit.SECONDS.toNanos(5);
+    private static final long BASELINE_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private final int rate;
+    private final long killAtNs;
+    private final long[] dueNs;
+    private final long[] respondedNs;
+    private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final CreateToyCommandEncoder createToyCommandEncoder = new CreateToyCommandEncoder();
+    private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+    private final ToyCreatedDecoder toyCreatedDecoder = new ToyCreatedDecoder();
+
+    private long startNs;
+    private int sentCount;
+    private long killedNs = NULL_VALUE;
+    private long newLeaderNs = NULL_VALUE;
+    private int killedMemberId = NULL_VALUE;
+    private int newLeaderMemberId = NULL_VALUE;
+
+    FailoverBenchmark(int rate, int durationSeconds, int killAtSeconds) {
+        this.rate = rate;
+        this.killAtNs = TimeUnit.SECONDS.toNanos(killAtSeconds);
+        this.dueNs = new long[rate * durationSeconds];
+        this.respondedNs = new long[dueNs.length];
+    }
+
+    /**
+     * @param args member count (default 3), commands per second (default 10000), duration in seconds (default 40)
+     *             and seconds after which the leader is killed (default 10).
+     */
+    public static void main(String[] args) throws Exception {
+        final int memberCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        final int rate = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        final int durationSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 40;
+        final int killAtSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        final File workingDir = Files.createTempDirectory("toyfactory-failover").toFile();
+        final FailoverBenchmark benchmark = new FailoverBenchmark(rate, durationSeconds, killAtSeconds);
+        LOGGER.info("Running {} members at {} commands/s for {}s, killing the leader after {}s, in {}",
+            memberCount, rate, durationSeconds, killAtSeconds, workingDir);
+
+        try (ClusterLauncher launcher = new ClusterLauncher(memberCount, workingDir);
+             MediaDriver mediaDriver = MediaDriver.launchEmbedded()) {
+            launcher.startAll();
+
+            final AeronCluster cluster = connect(launcher, mediaDriver, benchmark);
+            try {
+                benchmark.run(cluster, launcher);
+            } finally {
+                CloseHelper.quietClose(cluster);
+            }
+        } finally {
+            IoUtil.delete(workingDir, true);
+        }
+
+        benchmark.report();
+    }
+
+    @Override
+    public void onMessage(
+            long clusterSessionId,
+            long timestamp,
+            DirectBuffer buffer,
+            int offset,
+            int length,
+            Header header) {
+        final long nowNs = System.nanoTime();
+        final int limit = offset + length;
+        int responseOffset = offset;
+        while (responseOffset < limit) {
+            headerDecoder.wrap(buffer, responseOffset);
+            if (ToyCreatedDecoder.TEMPLATE_ID != headerDecoder.templateId()) {
+                return;
+            }
+
+            toyCreatedDecoder.wrapAndApplyHeader(buffer, responseOffset, headerDecoder);
+            final long sequence = toyCreatedDecoder.correlationId();
+            if (sequence >= 0 && sequence < respondedNs.length && 0 == respondedNs[(int) sequence]) {
+                respondedNs[(int) sequence] = nowNs;
+            }
+            responseOffset = toyCreatedDecoder.limit();
+        }
+    }
+
+    @Override
+    public void onNewLeader(long clusterSessionId, long leadershipTermId, int leaderMemberId, String ingressEndpoints) {
+        if (NULL_VALUE != killedNs && NULL_VALUE == newLeaderNs) {
+            newLeaderNs = System.nanoTime();
+            newLeaderMemberId = leaderMemberId;
+        }
+        LOGGER.info("New leader is member {} for leadershipTermId={}", leaderMemberId, leadershipTermId);
+    }
+
+    private static AeronCluster connect(ClusterLauncher launcher, MediaDriver mediaDriver, EgressListener listener)
+        throws InterruptedException {
+        final long deadlineNs = System.nanoTime() + CONNECT_TIMEOUT_NS;
+        while (true) {
+            try {
+                return AeronCluster.connect(new AeronCluster.Context()
+                    .egressListener(listener)
+                    .ingressChannel("aeron:udp")
+                    .ingressEndpoints(launcher.membership().ingressEndpoints())
+                    .egressChannel("aeron:udp?endpoint=localhost:0")
+                    .aeronDirectoryName(mediaDriver.aeronDirectoryName()));
+            } catch (RuntimeException e) {
+                if (System.nanoTime() > deadlineNs) {
+                    throw e;
+                }
+                LOGGER.info("Waiting for the cluster to elect a leader: {}", e.getMessage());
+                Thread.sleep(1000);
+            }
+        }
+    }
+
+    private void run(AeronCluster cluster, ClusterLauncher launcher) throws InterruptedException {
+        final IdleStrategy idleStrategy = new BackoffIdleStrategy();
+        final long intervalNs = TimeUnit.SECONDS.toNanos(1) / rate;
+        startNs = System.nanoTime();
+        for (int i = 0; i < dueNs.length; i++) {
+            dueNs[i] = startNs + (i * intervalNs);
+        }
+
+        int sequence = 0;
+        long drainUntilNs = NULL_VALUE;
+        while (!cluster.isClosed()) {
+            final long nowNs = System.nanoTime();
+            int workCount = cluster.pollEgress();
+
+            if (NULL_VALUE == killedNs && nowNs - startNs >= killAtNs) {
+                killedMemberId = cluster.leaderMemberId();
+                killedNs = System.nanoTime();
+                launcher.kill(killedMemberId);
+            }
+
+            while (sequence < dueNs.length && dueNs[sequence] <= nowNs) {
+                createToyCommandEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                    .customerId(sequence)
+                    .requestId(CreateToyCommandEncoder.requestIdNullValue())
+                    .correlationId(sequence);
+                if (cluster.offer(buffer, 0, MessageHeaderEncoder.ENCODED_LENGTH +
+                    createToyCommandEncoder.encodedLength()) < 0) {
+                    break;
+                }
+                sequence++;
+                sentCount = sequence;
+                workCount++;
+            }
+
+            if (sequence == dueNs.length) {
+                if (NULL_VALUE == drainUntilNs) {
+                    drainUntilNs = nowNs + DRAIN_NS;
+                } else if (nowNs > drainUntilNs) {
+                    break;
+                }
+            }
+
+            idleStrategy.idle(workCount);
+        }
+
+        if (cluster.isClosed()) {
+            LOGGER.warn("Cluster session closed after sending {} of {} commands", sequence, dueNs.length);
+        }
+    }
+
+    private void report() {
+        int responses = 0;
+        long lastResponseBeforeKillNs = startNs;
+        long firstResponseAfterKillNs = NULL_VALUE;
+        final long[] baselineLatenciesNs = new long[dueNs.length];
+        final long[] recoveryLatenciesNs = new long[dueNs.length];
+        int baselineCount = 0;
+        int recoveryCount = 0;
+        final int seconds = (int) TimeUnit.NANOSECONDS.toSeconds(dueNs[dueNs.length - 1] - startNs) + 1;
+        final int[] responsesPerSecond = new int[seconds + (int) TimeUnit.NANOSECONDS.toSeconds(DRAIN_NS) + 1];
+
+        for (int i = 0; i < dueNs.length; i++) {
+            final long responded = respondedNs[i];
+            if (0 == responded) {
+                continue;
+            }
+
+            responses++;
+            final int second = (int) TimeUnit.NANOSECONDS.toSeconds(responded - startNs);
+            if (second < responsesPerSecond.length) {
+                responsesPerSecond[second]++;
+            }
+
+            final long latencyNs = responded - dueNs[i];
+            if (NULL_VALUE == killedNs || dueNs[i] < killedNs) {
+                lastResponseBeforeKillNs = Math.max(lastResponseBeforeKillNs, responded);
+                if (dueNs[i] >= killedNs - BASELINE_NS) {
+                    baselineLatenciesNs[baselineCount++] = latencyNs;
+                }
+            } else {
+                if (responded > killedNs &&
+                    (NULL_VALUE == firstResponseAfterKillNs || responded < firstResponseAfterKillNs)) {
+                    firstResponseAfterKillNs = responded;
+                }
+                recoveryLatenciesNs[recoveryCount++] = latencyNs;
+            }
+        }
+
+        LOGGER.info("Responses per second: {}", Arrays.toString(responsesPerSecond));
+        LOGGER.info("Commands: {} sent, {} responded, {} lost", sentCount, responses, sentCount - responses);
+        LOGGER.info("Baseline latency over {}s before the kill: {}",
+            TimeUnit.NANOSECONDS.toSeconds(BASELINE_NS), percentiles(baselineLatenciesNs, baselineCount));
+
+        if (NULL_VALUE == killedNs) {
+            return;
+        }
+
+        if (NULL_VALUE == newLeaderNs) {
+            LOGGER.warn("Killed leader member {}, no new leader was elected", killedMemberId);
+        } else {
+            LOGGER.info("Killed leader member {}, new leader member {} after {}ms",
+                killedMemberId, newLeaderMemberId, toMillis(newLeaderNs - killedNs));
+        }
+        if (NULL_VALUE != firstResponseAfterKillNs) {
+            LOGGER.info("Response gap: {}ms from the last response before the kill to the first after it",
+                toMillis(firstResponseAfterKillNs - lastResponseBeforeKillNs));
+        }
+        LOGGER.info("Latency of commands due after the kill: {}", percentiles(recoveryLatenciesNs, recoveryCount));
+    }
+
+    static String percentiles(long[] latenciesNs, int count) {
+        if (0 == count) {
+            return "no responses";
+        }
+
+        Arrays.sort(latenciesNs, 0, count);
+        return String.format("p50=%.3fms p99=%.3fms p99.9=%.3fms max=%.3fms (%d samples)",
+            toMillis(latenciesNs[percentileIndex(count, 0.5)]),
+            toMillis(latenciesNs[percentileIndex(count, 0.99)]),
+            toMillis(latenciesNs[percentileIndex(count, 0.999)]),
+            toMillis(latenciesNs[count - 1]),
+            count);
+    }
+
+    private static int percentileIndex(int count, double percentile) {
+        return Math.min(count - 1, (int) Math.ceil(count * percentile) - 1);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
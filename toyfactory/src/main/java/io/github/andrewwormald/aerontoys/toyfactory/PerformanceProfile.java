@@ -0,0 +1,210 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.archive.Archive;
+import io.aeron.archive.ArchiveThreadingMode;
+import io.aeron.cluster.ConsensusModule;
+import io.aeron.cluster.service.ClusteredServiceContainer;
+import io.aeron.driver.Configuration;
+import io.aeron.driver.MediaDriver;
+import io.aeron.driver.ThreadingMode;
+import org.agrona.concurrent.IdleStrategy;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Named tuning of the media driver, archive, consensus module and clustered services of a node, applied consistently
+ * across them by {@link ClusterConfig#performanceProfile}, so a node can be tuned for a dedicated low latency host or
+ * a shared test host without changing code.
+ *
+ * A profile only sets a knob whose Aeron system property is not set, such as {@code aeron.threading.mode},
+ * {@code aeron.sender.idle.strategy}, {@code aeron.archive.recorder.idle.strategy}, {@code aeron.cluster.idle.strategy}
+ * or {@code aeron.cluster.log.channel}, so any knob can still be overridden individually on the command line. Idle
+ * strategies are given by the names the media driver understands, and each agent gets its own instance.
+ *
+ * The MTU and the archive's file sync level are deliberately left at Aeron's defaults by every profile. A larger MTU
+ * only helps on a network with jumbo frames end to end, and responses and events are sized to fit a single fragment
+ * at the default. Syncing the archive's files costs latency on every write, while the log is already made durable by
+ * replication to a majority of members. Both can still be set with {@code aeron.mtu.length} and
+ * {@code aeron.archive.file.sync.level}.
+ */
+public enum PerformanceProfile {
+    /**
+     * Dedicated threads which busy spin, or never idle where they have their own core, pre-allocated term buffers
+     * and larger socket buffers, with IPC for ingress and, on a single member cluster, for the log. Needs a core for
+     * each of the driver's conductor, sender and receiver, the archive recorder, the consensus module and each
+     * clustered service.
+     */
+    LOW_LATENCY(
+        ThreadingMode.DEDICATED, "spin", "noop", null,
+        ArchiveThreadingMode.DEDICATED, "backoff", "spin",
+        "spin", false, null, 2 * 1024 * 1024, true),
+
+    /**
+     * Aeron's defaults: dedicated driver threads which back off when idle.
+     */
+    BALANCED(
+        null, null, null, null,
+        null, null, null,
+        null, null, null, null, false),
+
+    /**
+     * As few threads as possible, all backing off when idle, and smaller term buffers, for hosts shared with other
+     * processes.
+     */
+    LOW_CPU(
+        ThreadingMode.SHARED, null, null, "backoff",
+        ArchiveThreadingMode.SHARED, "backoff", null,
+        "backoff", true, 4 * 1024 * 1024, null, false);
+
+    public static final String PROP_NAME = "toyfactory.performance.profile";
+
+    private static final String LOG_CHANNEL_IPC = "aeron:ipc?term-length=64m";
+
+    private final ThreadingMode threadingMode;
+    private final String conductorIdleStrategy;
+    private final String networkIdleStrategy;
+    private final String sharedIdleStrategy;
+    private final ArchiveThreadingMode archiveThreadingMode;
+    private final String archiveIdleStrategy;
+    private final String recorderIdleStrategy;
+    private final String clusterIdleStrategy;
+    private final Boolean termBufferSparseFile;
+    private final Integer termBufferLength;
+    private final Integer socketBufferLength;
+    private final boolean preferIpc;
+
+    /**
+     * Null for any knob leaves Aeron's default.
+     *
+     * @param networkIdleStrategy for the sender and receiver, or the shared network thread.
+     * @param sharedIdleStrategy  for the single driver thread in shared threading mode.
+     * @param clusterIdleStrategy for the consensus module and the clustered services.
+     * @param termBufferLength    for network and IPC publications whose channel does not set a term length.
+     * @param preferIpc           to allow IPC ingress, and use an IPC log when there is a single member.
+     */
+    PerformanceProfile(
+            ThreadingMode threadingMode,
+            String conductorIdleStrategy,
+            String networkIdleStrategy,
+            String sharedIdleStrategy,
+            ArchiveThreadingMode archiveThreadingMode,
+            String archiveIdleStrategy,
+            String recorderIdleStrategy,
+            String clusterIdleStrategy,
+            Boolean termBufferSparseFile,
+            Integer termBufferLength,
+            Integer socketBufferLength,
+            boolean preferIpc) {
+        this.threadingMode = threadingMode;
+        this.conductorIdleStrategy = conductorIdleStrategy;
+        this.networkIdleStrategy = networkIdleStrategy;
+        this.sharedIdleStrategy = sharedIdleStrategy;
+        this.archiveThreadingMode = archiveThreadingMode;
+        this.archiveIdleStrategy = archiveIdleStrategy;
+        this.recorderIdleStrategy = recorderIdleStrategy;
+        this.clusterIdleStrategy = clusterIdleStrategy;
+        this.termBufferSparseFile = termBufferSparseFile;
+        this.termBufferLength = termBufferLength;
+        this.socketBufferLength = socketBufferLength;
+        this.preferIpc = preferIpc;
+    }
+
+    /**
+     * Profile from {@code toyfactory.performance.profile}, {@code BALANCED} by default.
+     */
+    public static PerformanceProfile fromSystemProperties() {
+        return valueOf(System.getProperty(PROP_NAME, BALANCED.name()).toUpperCase());
+    }
+
+    void apply(
+            MediaDriver.Context mediaDriverContext,
+            Archive.Context archiveContext,
+            ConsensusModule.Context consensusModuleContext,
+            List<ClusteredServiceContainer.Context> clusteredServiceContexts,
+            int memberCount) {
+        if (null != threadingMode && isUnset(Configuration.THREADING_MODE_PROP_NAME)) {
+            mediaDriverContext.threadingMode(threadingMode);
+        }
+        if (null != conductorIdleStrategy && isUnset(Configuration.CONDUCTOR_IDLE_STRATEGY_PROP_NAME)) {
+            mediaDriverContext.conductorIdleStrategy(idleStrategy(conductorIdleStrategy));
+        }
+        if (null != networkIdleStrategy) {
+            if (isUnset(Configuration.SENDER_IDLE_STRATEGY_PROP_NAME)) {
+                mediaDriverContext.senderIdleStrategy(idleStrategy(networkIdleStrategy));
+            }
+            if (isUnset(Configuration.RECEIVER_IDLE_STRATEGY_PROP_NAME)) {
+                mediaDriverContext.receiverIdleStrategy(idleStrategy(networkIdleStrategy));
+            }
+            if (isUnset(Configuration.SHARED_NETWORK_IDLE_STRATEGY_PROP_NAME)) {
+                mediaDriverContext.sharedNetworkIdleStrategy(idleStrategy(networkIdleStrategy));
+            }
+        }
+        if (null != sharedIdleStrategy && isUnset(Configuration.SHARED_IDLE_STRATEGY_PROP_NAME)) {
+            mediaDriverContext.sharedIdleStrategy(idleStrategy(sharedIdleStrategy));
+        }
+        if (null != termBufferSparseFile && isUnset(Configuration.TERM_BUFFER_SPARSE_FILE_PROP_NAME)) {
+            mediaDriverContext.termBufferSparseFile(termBufferSparseFile);
+        }
+        if (null != termBufferLength) {
+            if (isUnset(Configuration.TERM_BUFFER_LENGTH_PROP_NAME)) {
+                mediaDriverContext.publicationTermBufferLength(termBufferLength);
+            }
+            if (isUnset(Configuration.IPC_TERM_BUFFER_LENGTH_PROP_NAME)) {
+                mediaDriverContext.ipcTermBufferLength(termBufferLength);
+            }
+        }
+        if (null != socketBufferLength) {
+            if (isUnset(Configuration.SOCKET_SNDBUF_LENGTH_PROP_NAME)) {
+                mediaDriverContext.socketSndbufLength(socketBufferLength);
+            }
+            if (isUnset(Configuration.SOCKET_RCVBUF_LENGTH_PROP_NAME)) {
+                mediaDriverContext.socketRcvbufLength(socketBufferLength);
+            }
+        }
+
+        if (null != archiveThreadingMode && isUnset(Archive.Configuration.THREADING_MODE_PROP_NAME)) {
+            archiveContext.threadingMode(archiveThreadingMode);
+        }
+        if (null != archiveIdleStrategy) {
+            if (isUnset(Archive.Configuration.ARCHIVE_IDLE_STRATEGY_PROP_NAME)) {
+                archiveContext.idleStrategySupplier(idleStrategySupplier(archiveIdleStrategy));
+            }
+            if (isUnset(Archive.Configuration.ARCHIVE_REPLAYER_IDLE_STRATEGY_PROP_NAME)) {
+                archiveContext.replayerIdleStrategySupplier(idleStrategySupplier(archiveIdleStrategy));
+            }
+        }
+        if (null != recorderIdleStrategy && isUnset(Archive.Configuration.ARCHIVE_RECORDER_IDLE_STRATEGY_PROP_NAME)) {
+            archiveContext.recorderIdleStrategySupplier(idleStrategySupplier(recorderIdleStrategy));
+        }
+
+        if (null != clusterIdleStrategy &&
+            isUnset(ClusteredServiceContainer.Configuration.CLUSTER_IDLE_STRATEGY_PROP_NAME)) {
+            consensusModuleContext.idleStrategySupplier(idleStrategySupplier(clusterIdleStrategy));
+            for (ClusteredServiceContainer.Context serviceContext : clusteredServiceContexts) {
+                serviceContext.idleStrategySupplier(idleStrategySupplier(clusterIdleStrategy));
+            }
+        }
+
+        if (preferIpc) {
+            if (isUnset(ConsensusModule.Configuration.CLUSTER_INGRESS_IPC_ALLOWED_PROP_NAME)) {
+                consensusModuleContext.isIpcIngressAllowed(true);
+            }
+            if (1 == memberCount && isUnset(ConsensusModule.Configuration.LOG_CHANNEL_PROP_NAME)) {
+                consensusModuleContext.logChannel(LOG_CHANNEL_IPC);
+            }
+        }
+    }
+
+    private static boolean isUnset(String propName) {
+        return null == System.getProperty(propName);
+    }
+
+    private static IdleStrategy idleStrategy(String name) {
+        return Configuration.agentIdleStrategy(name, null);
+    }
+
+    private static Supplier<IdleStrategy> idleStrategySupplier(String name) {
+        return () -> idleStrategy(name);
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+/**
+ * When the {@link SnapshotScheduler} should take a snapshot. A snapshot is due when any enabled threshold has been
+ * reached since the previous snapshot, a threshold of 0 disables it.
+ *
+ * Each threshold can be set from a system property, e.g. {@code -Dtoyfactory.snapshot.interval.ms=600000}.
+ */
+public final class SnapshotPolicy {
+    public static final String INTERVAL_MS_PROP_NAME = "toyfactory.snapshot.interval.ms";
+    public static final long INTERVAL_MS_DEFAULT = 60 * 60 * 1000L;
+
+    public static final String LOG_BYTES_PROP_NAME = "toyfactory.snapshot.log.bytes";
+    public static final long LOG_BYTES_DEFAULT = 256 * 1024 * 1024L;
+
+    public static final String COMMANDS_PROP_NAME = "toyfactory.snapshot.commands";
+    public static final long COMMANDS_DEFAULT = 0;
+
+    public static final String PURGE_LOG_PROP_NAME = "toyfactory.snapshot.purge.log";
+    public static final boolean PURGE_LOG_DEFAULT = true;
+
+    private final long intervalMs;
+    private final long logBytes;
+    private final long commands;
+    private final boolean purgeLog;
+
+    public SnapshotPolicy(long intervalMs, long logBytes, long commands, boolean purgeLog) {
+        this.intervalMs = intervalMs;
+        this.logBytes = logBytes;
+        this.commands = commands;
+        this.purgeLog = purgeLog;
+    }
+
+    public static SnapshotPolicy fromSystemProperties() {
+        return new SnapshotPolicy(
+            Long.getLong(INTERVAL_MS_PROP_NAME, INTERVAL_MS_DEFAULT),
+            Long.getLong(LOG_BYTES_PROP_NAME, LOG_BYTES_DEFAULT),
+            Long.getLong(COMMANDS_PROP_NAME, COMMANDS_DEFAULT),
+            Boolean.parseBoolean(System.getProperty(PURGE_LOG_PROP_NAME, String.valueOf(PURGE_LOG_DEFAULT))));
+    }
+
+    /**
+     * Is a snapshot due given the progress since the previous one.
+     *
+     * @param elapsedMs since the previous snapshot, or since the node started.
+     * @param logBytes  committed to the log since the previous snapshot.
+     * @param commands  applied by the services since the previous snapshot.
+     * @return true if any enabled threshold has been reached.
+     */
+    public boolean isDue(long elapsedMs, long logBytes, long commands) {
+        return (this.intervalMs > 0 && elapsedMs >= this.intervalMs) ||
+            (this.logBytes > 0 && logBytes >= this.logBytes) ||
+            (this.commands > 0 && commands >= this.commands);
+    }
+
+    /**
+     * Should log segments before the previous snapshot be purged from the archive once a new one is taken.
+     */
+    public boolean purgeLog() {
+        return purgeLog;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotPolicy{intervalMs=" + intervalMs + ", logBytes=" + logBytes + ", commands=" + commands +
+            ", purgeLog=" + purgeLog + "}";
+    }
+}
@@ -0,0 +1,385 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.Aeron;
+import io.aeron.Counter;
+import io.aeron.archive.client.AeronArchive;
+import io.aeron.cluster.ClusterControl;
+import io.aeron.cluster.ConsensusModule;
+import io.aeron.cluster.ElectionState;
+import io.aeron.cluster.RecordingLog;
+import io.aeron.cluster.service.Cluster;
+import io.aeron.cluster.service.ClusterCounters;
+import org.agrona.CloseHelper;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.collections.IntArrayList;
+import org.agrona.concurrent.Agent;
+import org.agrona.concurrent.EpochClock;
+import org.agrona.concurrent.SystemEpochClock;
+import org.agrona.concurrent.status.AtomicCounter;
+import org.agrona.concurrent.status.CountersReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+import static io.aeron.Aeron.NULL_VALUE;
+import static org.agrona.concurrent.status.CountersReader.NULL_COUNTER_ID;
+
+/**
+ * Agent which takes cluster snapshots according to a {@link SnapshotPolicy} and then purges the log segments that
+ * precede the previous snapshot from the archive, so restart time and disk usage are bounded by live state.
+ *
+ * Progress is tracked from the consensus module counters of the local node. Only the leader requests snapshots via
+ * the cluster control toggle, but every member purges its own log once it has taken its part of the snapshot.
+ *
+ * A member cannot see how far the other members have got, and a lagging or rejoining member catches up by replaying
+ * the leader's log from its own position, so the log is only purged up to the second latest snapshot rather than the
+ * latest. A member which has fallen behind the latest snapshot can still catch up from the log, at the cost of keeping
+ * up to two snapshots' worth of log on disk. A member further behind than that must be re-seeded from a snapshot.
+ *
+ * The archive is connected asynchronously and its failures are logged rather than thrown, so a slow or unavailable
+ * archive never stalls the agent. A connection which fails is retried after a backoff, and a snapshot whose length and
+ * purge are still pending is processed once the archive is connected again.
+ */
+public class SnapshotScheduler implements Agent {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotScheduler.class);
+
+    private static final long SNAPSHOT_REQUEST_TIMEOUT_MS = 60_000;
+    private static final long ARCHIVE_CONNECT_BACKOFF_MS = 10_000;
+
+    private final SnapshotPolicy policy;
+    private final Aeron aeron;
+    private final AeronArchive.Context archiveContext;
+    private final File clusterDir;
+    private final int clusterId;
+    private final int serviceCount;
+    private final EpochClock epochClock = SystemEpochClock.INSTANCE;
+    private final ExpandableArrayBuffer tempBuffer = new ExpandableArrayBuffer();
+
+    private AeronArchive archive;
+    private AeronArchive.AsyncConnect archiveConnect;
+    private long nextArchiveConnectMs;
+    private boolean isSnapshotArchivePending = false;
+    private Counter snapshotDurationCounter;
+    private Counter snapshotLengthCounter;
+    private Counter replayLengthCounter;
+    private AtomicCounter controlToggle;
+    private int roleCounterId = NULL_COUNTER_ID;
+    private int electionStateCounterId = NULL_COUNTER_ID;
+    private int commitPositionCounterId = NULL_COUNTER_ID;
+    private int snapshotCounterId = NULL_COUNTER_ID;
+    private final IntArrayList commandsCounterIds = new IntArrayList();
+
+    private boolean isReplayLengthRecorded = false;
+    private long lastSnapshotCount;
+    private long lastSnapshotTimeMs;
+    private long lastSnapshotLogPosition;
+    private long lastSnapshotCommands;
+    private long snapshotRequestedMs = NULL_VALUE;
+
+    public SnapshotScheduler(
+        SnapshotPolicy policy,
+        Aeron aeron,
+        AeronArchive.Context archiveContext,
+        File clusterDir,
+        int clusterId,
+        int serviceCount) {
+        this.policy = policy;
+        this.aeron = aeron;
+        this.archiveContext = archiveContext;
+        this.clusterDir = clusterDir;
+        this.clusterId = clusterId;
+        this.serviceCount = serviceCount;
+    }
+
+    @Override
+    public void onStart() {
+        snapshotDurationCounter = ClusterCounters.allocate(
+            aeron, tempBuffer, "Last snapshot duration in ms", ToyFactoryCounters.SNAPSHOT_DURATION_TYPE_ID, clusterId);
+        snapshotLengthCounter = ClusterCounters.allocate(
+            aeron, tempBuffer, "Last snapshot length in bytes", ToyFactoryCounters.SNAPSHOT_LENGTH_TYPE_ID, clusterId);
+        replayLengthCounter = ClusterCounters.allocate(
+            aeron, tempBuffer, "Log replay length in bytes at last start", ToyFactoryCounters.REPLAY_LENGTH_TYPE_ID,
+            clusterId);
+
+        LOGGER.info("Snapshot scheduler started with {}", policy);
+    }
+
+    @Override
+    public int doWork() {
+        if (!resolveCounters()) {
+            return 0;
+        }
+
+        final CountersReader counters = aeron.countersReader();
+        final long nowMs = epochClock.time();
+        int workCount = 0;
+
+        if (!isReplayLengthRecorded &&
+            ElectionState.CLOSED == ElectionState.get(counters.getCounterValue(electionStateCounterId))) {
+            recordReplayLength();
+            workCount++;
+        }
+
+        workCount += pollArchive(nowMs);
+
+        final long snapshotCount = counters.getCounterValue(snapshotCounterId);
+        if (snapshotCount != lastSnapshotCount) {
+            onSnapshotTaken(snapshotCount, nowMs);
+            workCount++;
+        } else if (NULL_VALUE != snapshotRequestedMs) {
+            if (nowMs - snapshotRequestedMs > SNAPSHOT_REQUEST_TIMEOUT_MS) {
+                LOGGER.warn("Snapshot requested {}ms ago was not taken, will retry", nowMs - snapshotRequestedMs);
+                snapshotRequestedMs = NULL_VALUE;
+            }
+        } else if (Cluster.Role.LEADER == Cluster.Role.get(counters.getCounterValue(roleCounterId))) {
+            final long logBytes = counters.getCounterValue(commitPositionCounterId) - lastSnapshotLogPosition;
+            final long commands = commands(counters) - lastSnapshotCommands;
+
+            if (policy.isDue(nowMs - lastSnapshotTimeMs, logBytes, commands) &&
+                ClusterControl.ToggleState.SNAPSHOT.toggle(controlToggle)) {
+                LOGGER.info("Requested snapshot: logBytes={}, commands={}", logBytes, commands);
+                snapshotRequestedMs = nowMs;
+                workCount++;
+            }
+        }
+
+        return workCount;
+    }
+
+    @Override
+    public void onClose() {
+        CloseHelper.closeAll(
+            archiveConnect, archive, snapshotDurationCounter, snapshotLengthCounter, replayLengthCounter);
+    }
+
+    @Override
+    public String roleName() {
+        return "snapshot-scheduler";
+    }
+
+    private boolean resolveCounters() {
+        if (null != controlToggle) {
+            return true;
+        }
+
+        final CountersReader counters = aeron.countersReader();
+        roleCounterId = ClusterCounters.find(
+            counters, ConsensusModule.Configuration.CLUSTER_NODE_ROLE_TYPE_ID, clusterId);
+        electionStateCounterId = ClusterCounters.find(
+            counters, ConsensusModule.Configuration.ELECTION_STATE_TYPE_ID, clusterId);
+        commitPositionCounterId = ClusterCounters.find(
+            counters, ConsensusModule.Configuration.COMMIT_POSITION_TYPE_ID, clusterId);
+        snapshotCounterId = ClusterCounters.find(
+            counters, ConsensusModule.Configuration.SNAPSHOT_COUNTER_TYPE_ID, clusterId);
+
+        if (NULL_COUNTER_ID == roleCounterId || NULL_COUNTER_ID == electionStateCounterId ||
+            NULL_COUNTER_ID == commitPositionCounterId || NULL_COUNTER_ID == snapshotCounterId) {
+            return false;
+        }
+
+        final AtomicCounter toggle = ClusterControl.findControlToggle(counters, clusterId);
+        if (null == toggle) {
+            return false;
+        }
+
+        lastSnapshotCount = counters.getCounterValue(snapshotCounterId);
+        lastSnapshotTimeMs = epochClock.time();
+        try (RecordingLog recordingLog = new RecordingLog(clusterDir, false)) {
+            final RecordingLog.Entry snapshot = recordingLog.getLatestSnapshot(ConsensusModule.Configuration.SERVICE_ID);
+            lastSnapshotLogPosition = null != snapshot ? snapshot.logPosition : 0;
+        }
+        controlToggle = toggle;
+
+        return true;
+    }
+
+    /**
+     * @return commands applied across all the services of the node, each of which has its own counter.
+     */
+    private long commands(CountersReader counters) {
+        if (commandsCounterIds.size() < serviceCount) {
+            commandsCounterIds.clear();
+            counters.forEach((counterId, typeId, keyBuffer, label) -> {
+                if (ToyFactoryCounters.COMMANDS_TYPE_ID == typeId && clusterId == keyBuffer.getInt(0)) {
+                    commandsCounterIds.addInt(counterId);
+                }
+            });
+        }
+
+        long commands = 0;
+        for (int i = 0; i < commandsCounterIds.size(); i++) {
+            commands += counters.getCounterValue(commandsCounterIds.getInt(i));
+        }
+
+        return commands;
+    }
+
+    private void recordReplayLength() {
+        try (RecordingLog recordingLog = new RecordingLog(clusterDir, false)) {
+            final RecordingLog.Entry snapshot = recordingLog.getLatestSnapshot(ConsensusModule.Configuration.SERVICE_ID);
+            final RecordingLog.Entry lastTerm = recordingLog.findLastTerm();
+            final long replayStart = null != snapshot ? snapshot.logPosition : 0;
+            final long replayEnd = null != lastTerm ? lastTerm.termBaseLogPosition : 0;
+            final long replayLength = Math.max(0, replayEnd - replayStart);
+
+            replayLengthCounter.setOrdered(replayLength);
+            isReplayLengthRecorded = true;
+            LOGGER.info("Replayed {} bytes of log from position {} at start", replayLength, replayStart);
+        }
+    }
+
+    private void onSnapshotTaken(long snapshotCount, long nowMs) {
+        lastSnapshotCount = snapshotCount;
+        lastSnapshotTimeMs = nowMs;
+        lastSnapshotCommands = commands(aeron.countersReader());
+
+        if (NULL_VALUE != snapshotRequestedMs) {
+            snapshotDurationCounter.setOrdered(nowMs - snapshotRequestedMs);
+            snapshotRequestedMs = NULL_VALUE;
+        }
+
+        try (RecordingLog recordingLog = new RecordingLog(clusterDir, false)) {
+            final RecordingLog.Entry snapshot = recordingLog.getLatestSnapshot(ConsensusModule.Configuration.SERVICE_ID);
+            if (null == snapshot) {
+                return;
+            }
+
+            lastSnapshotLogPosition = snapshot.logPosition;
+            LOGGER.info("Snapshot taken at logPosition={}, duration={}ms",
+                snapshot.logPosition, snapshotDurationCounter.get());
+        }
+
+        isSnapshotArchivePending = true;
+        if (null != archive) {
+            processSnapshotInArchive(nowMs);
+        }
+    }
+
+    /**
+     * Connect to the archive without blocking, retrying a failed connection after a backoff, and process a snapshot
+     * which was taken while it was not connected.
+     */
+    private int pollArchive(long nowMs) {
+        if (null != archive) {
+            if (isSnapshotArchivePending) {
+                processSnapshotInArchive(nowMs);
+                return 1;
+            }
+            return 0;
+        }
+
+        if (null == archiveConnect) {
+            if (nowMs < nextArchiveConnectMs) {
+                return 0;
+            }
+            archiveConnect = AeronArchive.asyncConnect(archiveContext.clone().aeron(aeron).ownsAeronClient(false));
+        }
+
+        try {
+            archive = archiveConnect.poll();
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to connect to the archive, retrying in {}ms", ARCHIVE_CONNECT_BACKOFF_MS, e);
+            CloseHelper.quietClose(archiveConnect);
+            archiveConnect = null;
+            nextArchiveConnectMs = nowMs + ARCHIVE_CONNECT_BACKOFF_MS;
+            return 1;
+        }
+
+        if (null == archive) {
+            return 0;
+        }
+
+        archiveConnect = null;
+        LOGGER.info("Connected to the archive with controlSessionId={}", archive.controlSessionId());
+        return 1;
+    }
+
+    /**
+     * Record the length of the latest snapshot and purge the log before the previous one. An archive which fails is
+     * reconnected after a backoff and the snapshot processed again, which is safe as purging is idempotent.
+     */
+    private void processSnapshotInArchive(long nowMs) {
+        try (RecordingLog recordingLog = new RecordingLog(clusterDir, false)) {
+            long snapshotLength = 0;
+            for (int serviceId = ConsensusModule.Configuration.SERVICE_ID; serviceId < serviceCount; serviceId++) {
+                final RecordingLog.Entry entry = recordingLog.getLatestSnapshot(serviceId);
+                if (null != entry) {
+                    snapshotLength += archive.getStopPosition(entry.recordingId) -
+                        archive.getStartPosition(entry.recordingId);
+                }
+            }
+            snapshotLengthCounter.setOrdered(snapshotLength);
+            LOGGER.info("Snapshot length={} bytes", snapshotLength);
+
+            if (policy.purgeLog()) {
+                final long purgeLogPosition = previousSnapshotLogPosition(recordingLog);
+                if (NULL_VALUE != purgeLogPosition) {
+                    purgeLog(recordingLog.findLastTermRecordingId(), purgeLogPosition);
+                }
+            }
+            isSnapshotArchivePending = false;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to process snapshot in the archive, reconnecting in {}ms",
+                ARCHIVE_CONNECT_BACKOFF_MS, e);
+            CloseHelper.quietClose(archive);
+            archive = null;
+            nextArchiveConnectMs = nowMs + ARCHIVE_CONNECT_BACKOFF_MS;
+        }
+    }
+
+    /**
+     * @return log position of the valid consensus module snapshot before the latest, or {@link Aeron#NULL_VALUE} if
+     * there has not been one.
+     */
+    private static long previousSnapshotLogPosition(RecordingLog recordingLog) {
+        long latestLogPosition = NULL_VALUE;
+        long previousLogPosition = NULL_VALUE;
+        for (final RecordingLog.Entry entry : recordingLog.entries()) {
+            if (RecordingLog.ENTRY_TYPE_SNAPSHOT != entry.type ||
+                ConsensusModule.Configuration.SERVICE_ID != entry.serviceId ||
+                !entry.isValid) {
+                continue;
+            }
+
+            if (entry.logPosition > latestLogPosition) {
+                previousLogPosition = latestLogPosition;
+                latestLogPosition = entry.logPosition;
+            } else if (entry.logPosition < latestLogPosition && entry.logPosition > previousLogPosition) {
+                previousLogPosition = entry.logPosition;
+            }
+        }
+
+        return previousLogPosition;
+    }
+
+    private void purgeLog(long logRecordingId, long logPosition) {
+        if (NULL_VALUE == logRecordingId) {
+            return;
+        }
+
+        final long[] startPosition = new long[1];
+        final int[] termBufferLength = new int[1];
+        final int[] segmentFileLength = new int[1];
+        final int found = archive.listRecording(logRecordingId,
+            (controlSessionId, correlationId, recordingId, startTimestamp, stopTimestamp, start, stop, initialTermId,
+             segmentLength, termLength, mtuLength, sessionId, streamId, strippedChannel, originalChannel,
+             sourceIdentity) -> {
+                startPosition[0] = start;
+                termBufferLength[0] = termLength;
+                segmentFileLength[0] = segmentLength;
+            });
+
+        if (0 == found) {
+            return;
+        }
+
+        final long newStartPosition = AeronArchive.segmentFileBasePosition(
+            startPosition[0], logPosition, termBufferLength[0], segmentFileLength[0]);
+
+        if (newStartPosition > startPosition[0]) {
+            final long deletedSegments = archive.purgeSegments(logRecordingId, newStartPosition);
+            LOGGER.info("Purged {} log segments before position {}", deletedSegments, newStartPosition);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+/**
+ * Type ids for the counters published by a toyfactory node, visible with AeronStat alongside the Aeron counters.
+ * Ids below 1000 are reserved for Aeron.
+ */
+public final class ToyFactoryCounters {
+    /**
+     * Commands applied by a BicycleService since the process started, one counter per partition.
+     */
+    public static final int COMMANDS_TYPE_ID = 1001;
+
+    /**
+     * Duration in milliseconds from requesting the last snapshot to it completing.
+     */
+    public static final int SNAPSHOT_DURATION_TYPE_ID = 1002;
+
+    /**
+     * Length in bytes of the recordings that make up the last snapshot.
+     */
+    public static final int SNAPSHOT_LENGTH_TYPE_ID = 1003;
+
+    /**
+     * Length in bytes of log replayed on top of the latest snapshot when the node last started.
+     */
+    public static final int REPLAY_LENGTH_TYPE_ID = 1004;
+
+    /**
+     * Bytes of events recorded to the event journal and not yet rendered.
+     */
+    public static final int JOURNAL_DEPTH_TYPE_ID = 1005;
+
+    /**
+     * Events dropped because the event journal was full.
+     */
+    public static final int JOURNAL_DROPPED_TYPE_ID = 1006;
+
+    /**
+     * Bytes of responses queued for a back-pressured client session, one counter per session which has lagged.
+     */
+    public static final int SESSION_EGRESS_LAG_TYPE_ID = 1007;
+
+    /**
+     * Toys completed, one counter per partition.
+     */
+    public static final int TOYS_COMPLETED_TYPE_ID = 1008;
+
+    /**
+     * Mean milliseconds of cluster time from a toy being created to it being completed, one counter per partition.
+     */
+    public static final int MEAN_LEAD_TIME_TYPE_ID = 1009;
+
+    /**
+     * Longest milliseconds of cluster time from a toy being created to it being completed, one counter per partition.
+     */
+    public static final int MAX_LEAD_TIME_TYPE_ID = 1010;
+
+    private ToyFactoryCounters() {
+    }
+}
@@ -2,67 +2,219 @@ package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
 
 import io.aeron.cluster.service.ClientSession;
 import io.aeron.cluster.service.Cluster;
+import io.aeron.cluster.service.ClusterCounters;
 import io.aeron.cluster.service.ClusteredService;
 import io.aeron.cluster.codecs.CloseReason;
 import io.aeron.logbuffer.Header;
+import io.aeron.Counter;
 import io.aeron.ExclusivePublication;
 import io.aeron.Image;
+import org.agrona.CloseHelper;
 import org.agrona.collections.Hashing;
 import org.agrona.ExpandableArrayBuffer;
 import org.agrona.concurrent.UnsafeBuffer;
-import io.github.andrewwormald.aerontoys.shared.Toy;
+import org.agrona.sbe.MessageEncoderFlyweight;
+import io.github.andrewwormald.aerontoys.shared.SharedToyView;
 import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.toyfactory.EventJournal;
+import io.github.andrewwormald.aerontoys.toyfactory.ToyFactoryCounters;
+import io.github.andrewwormald.aerontoys.shared.codecs.CountToysByStatusCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToysCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.GetToyCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ListToysByCustomerCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCountByStatusEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCreatedEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyInfoEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyNotFoundEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyUpdatedEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysByCustomerEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysByCustomerEndEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysCreatedEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToysUpdatedEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.UpdateResult;
+import io.github.andrewwormald.aerontoys.shared.codecs.UpdateToyCommandDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.UpdateToysCommandDecoder;
 import org.agrona.DirectBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.aeron.Aeron.NULL_VALUE;
 
 /**
  * BicycleService - Logical service for managing toy manufacturing
  *
- * API Commands (send as messages to this service):
- * - CREATE_TOY:{customerId} -> Creates new toy, returns TOY_CREATED:{toyId}:{customerId}:{status}
- * - UPDATE_TOY:{toyId}:{newStatus} -> Updates toy status, returns TOY_UPDATED:{toyId}:{status}
- * - GET_TOY:{toyId} -> Retrieves toy info, returns TOY_INFO:{toyId}:{customerId}:{status}
+ * API Commands (SBE messages from aerontoys-codecs.xml in the shared module):
+ * - CreateToyCommand{customerId} -> Creates new toy, returns ToyCreated{toyId, customerId, status}
+ * - UpdateToyCommand{toyId, status} -> Updates toy status, returns ToyUpdated{toyId, status, result}
+ * - GetToyCommand{toyId} -> Retrieves toy info, returns ToyInfo{toyId, customerId, status}
+ * - CreateToysCommand{customers[customerId]} -> Creates a toy per customer, returns ToysCreated{toys[...]}
+ * - UpdateToysCommand{updates[toyId, status]} -> Updates many toys, returns ToysUpdated{results[toyId, status, result]}
+ * - ListToysByCustomerCommand{customerId, afterToyId, pageSize} -> Lists a page of a customer's toys after a cursor,
+ *   streamed as ToysByCustomer{customerId, toys[...]} chunks followed by
+ *   ToysByCustomerEnd{customerId, toyCount, pageToyCount, nextAfterToyId}
+ * - CountToysByStatusCommand{status} -> Counts toys in a status, returns ToyCountByStatus{status, count}
+ * - ToyEventsSnapshotCommand{partitionId, fromIndex} -> Subscribes the session to ToyEvents for every change to a toy
+ *   and streams a page of all toys as ToyEventsSnapshot chunks followed by ToyEventsSnapshotEnd, see
+ *   {@link ToyEventPublisher}
+ * Commands referencing an unknown toy return ToyNotFound{toyId}.
+ *
+ * Every command except ToyEventsSnapshotCommand may carry a correlationId, which is echoed in each of its responses,
+ * including every partition's share and every chunk of a page, so a client can match responses to many commands in
+ * flight at once.
+ *
+ * A CreateToyCommand may carry a requestId, and a repeat of a customer's recent request returns the toy created for
+ * it, with its current status, rather than creating another, see {@link CreateRequestCache}, so clients can retry
+ * creates which timed out.
+ *
+ * Several instances may run as separate clustered services, each owning a {@link ToyPartition} of the toys and
+ * applying only the commands for that partition on its own thread. Commands for a single toy or customer are answered
+ * by the owning partition alone, while batch commands and counts are applied by every partition in parallel and each
+ * responds with its share of the result and the partition count, for the client to gather.
+ *
+ * Each member can also publish its toys to a {@link SharedToyView} in shared memory, for a gateway on the same host to
+ * read directly. The view is rebuilt from the toys on start and updated as each change is applied from the log, on
+ * followers as well as the leader, and its heartbeat is kept up in background work while the service is running.
+ *
+ * Toys are stamped with the cluster time of the command or timer which changed them, never the wall clock, so every
+ * member holds the same state as the leader, including when replaying the log, and writes byte-identical snapshots.
+ * Lead times are derived from those timestamps, see {@link LeadTimeStats}.
+ *
+ * Command handling is allocation free in steady state: codecs, buffers and toy flyweights are reused, and per-command
+ * events are recorded to a binary {@link EventJournal} which is rendered to text on another thread.
  */
 public class BicycleService implements ClusteredService {
     private static final Logger LOGGER = LoggerFactory.getLogger(BicycleService.class);
 
     public static final int SERVICE_ID = 100;
 
-    private final Map<Long, Toy> toys = new ConcurrentHashMap<>();
-    private final AtomicLong toyIdGenerator = new AtomicLong(1);
+    private static final int INITIAL_TOY_CAPACITY = Integer.getInteger("toyfactory.toys.initialCapacity", 1024);
+
+    /**
+     * Toys in a page when a query does not ask for a page size, and the most it may ask for.
+     */
+    private static final int DEFAULT_PAGE_SIZE = Integer.getInteger("toyfactory.query.page.size", 1000);
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("toyfactory.query.page.size.max", 10_000);
+
+    /**
+     * Pages are streamed in chunks which fit a single egress fragment at the default MTU, so no response is
+     * fragmented and reassembled by the client, however large the page.
+     */
+    private static final int MAX_CHUNK_LENGTH = 1024;
+    private static final int TOYS_PER_CHUNK = (MAX_CHUNK_LENGTH - MessageHeaderEncoder.ENCODED_LENGTH -
+        ToysByCustomerEncoder.BLOCK_LENGTH - ToysByCustomerEncoder.ToysEncoder.HEADER_SIZE) /
+        ToysByCustomerEncoder.ToysEncoder.sbeBlockLength();
+
+    private static final long VIEW_HEARTBEAT_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ToyPartition partition;
+    private final ToyStore toys;
+    private final SessionEgress sessionEgress;
+    private final ManufacturingWorkflow workflow;
+    private final ToyEventPublisher events;
+    private final CreateRequestCache createRequests = CreateRequestCache.fromSystemProperties();
+    private final LeadTimeStats leadTimes;
+    private final AtomicLong toyIdGenerator;
+    private final EventJournal journal;
+    private final SharedToyView view;
+    private long viewHeartbeatDeadlineNs;
     private Cluster cluster;
+    private Counter commandsCounter;
     private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+    private final int[] chunkIndices = new int[TOYS_PER_CHUNK];
+
+    private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+    private final CreateToyCommandDecoder createToyCommandDecoder = new CreateToyCommandDecoder();
+    private final UpdateToyCommandDecoder updateToyCommandDecoder = new UpdateToyCommandDecoder();
+    private final GetToyCommandDecoder getToyCommandDecoder = new GetToyCommandDecoder();
+    private final CreateToysCommandDecoder createToysCommandDecoder = new CreateToysCommandDecoder();
+    private final UpdateToysCommandDecoder updateToysCommandDecoder = new UpdateToysCommandDecoder();
+    private final ListToysByCustomerCommandDecoder listToysByCustomerCommandDecoder =
+        new ListToysByCustomerCommandDecoder();
+    private final CountToysByStatusCommandDecoder countToysByStatusCommandDecoder =
+        new CountToysByStatusCommandDecoder();
+    private final ToyEventsSnapshotCommandDecoder toyEventsSnapshotCommandDecoder =
+        new ToyEventsSnapshotCommandDecoder();
+
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final ToyCreatedEncoder toyCreatedEncoder = new ToyCreatedEncoder();
+    private final ToyUpdatedEncoder toyUpdatedEncoder = new ToyUpdatedEncoder();
+    private final ToyInfoEncoder toyInfoEncoder = new ToyInfoEncoder();
+    private final ToyNotFoundEncoder toyNotFoundEncoder = new ToyNotFoundEncoder();
+    private final ToysCreatedEncoder toysCreatedEncoder = new ToysCreatedEncoder();
+    private final ToysUpdatedEncoder toysUpdatedEncoder = new ToysUpdatedEncoder();
+    private final ToysByCustomerEncoder toysByCustomerEncoder = new ToysByCustomerEncoder();
+    private final ToysByCustomerEndEncoder toysByCustomerEndEncoder = new ToysByCustomerEndEncoder();
+    private final ToyCountByStatusEncoder toyCountByStatusEncoder = new ToyCountByStatusEncoder();
+
+    public BicycleService(EventJournal journal) {
+        this(journal, 0, 1);
+    }
+
+    /**
+     * @param journal        to record events to, which may be shared by the partitions.
+     * @param partitionId    of the partition this service owns, from 0.
+     * @param partitionCount of services the toys are partitioned across, which must not change for the cluster.
+     */
+    public BicycleService(EventJournal journal, int partitionId, int partitionCount) {
+        this(journal, null, partitionId, partitionCount);
+    }
 
-    // Background processing components (like Go goroutines + context)
-    private final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor(r -> {
-        Thread t = new Thread(r, "egress-consumer");
-        t.setDaemon(true); // Allows JVM to exit even if thread is running
-        return t;
-    });
-    private final BlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
-    private final AtomicBoolean isRunning = new AtomicBoolean(false);
-    private EgressMessageHandler egressHandler;
+    /**
+     * @param journal        to record events to, which may be shared by the partitions.
+     * @param view           to publish toys to, which is shared by the partitions, or null to not publish them.
+     * @param partitionId    of the partition this service owns, from 0.
+     * @param partitionCount of services the toys are partitioned across, which must not change for the cluster.
+     */
+    public BicycleService(EventJournal journal, SharedToyView view, int partitionId, int partitionCount) {
+        this(journal, view, partitionId, partitionCount, INITIAL_TOY_CAPACITY);
+    }
+
+    /**
+     * @param initialToyCapacity of toys to size the store for before it grows.
+     */
+    BicycleService(
+            EventJournal journal, SharedToyView view, int partitionId, int partitionCount, int initialToyCapacity) {
+        this.journal = journal;
+        this.toys = new ToyStore(initialToyCapacity);
+        this.view = view;
+        this.partition = new ToyPartition(partitionId, partitionCount);
+        this.sessionEgress = SessionEgress.fromSystemProperties(partition);
+        this.workflow = ManufacturingWorkflow.fromSystemProperties(toys, this::onStageComplete, partition);
+        this.events = ToyEventPublisher.fromSystemProperties(partition, toys, sessionEgress);
+        this.leadTimes = new LeadTimeStats(partition, toys);
+        this.toyIdGenerator = new AtomicLong(partition.firstToyId());
+    }
 
     @Override
     public void onStart(Cluster cluster, Image snapshotImage) {
         this.cluster = cluster;
-        this.egressHandler = new EgressMessageHandler();
+        this.commandsCounter = ClusterCounters.allocate(
+            cluster.aeron(), buffer, "Bicycle commands for partition " + partition, ToyFactoryCounters.COMMANDS_TYPE_ID,
+            cluster.context().clusterId());
+        this.workflow.onStart(cluster);
+        this.sessionEgress.onStart(cluster);
+        this.events.onStart(cluster);
+        this.leadTimes.onStart(cluster, buffer);
+
+        if (null != snapshotImage) {
+            onLoadSnapshot(snapshotImage);
+        }
 
-        // Start background egress consumer (like go func() with context)
-        startBackgroundEgressConsumer();
+        if (null != view) {
+            for (int i = 0, size = toys.size(); i < size; i++) {
+                final ToyRecord toy = toys.recordAt(i);
+                view.put(toy.toyId(), toy.customerId(), toy.status());
+            }
+        }
 
-        LOGGER.info("ToyFactory logical service started (serviceId: {})", SERVICE_ID);
+        LOGGER.info("ToyFactory logical service started (serviceId: {}, partition: {})", SERVICE_ID, partition);
     }
 
     @Override
@@ -74,278 +226,449 @@ public class BicycleService implements ClusteredService {
             int length,
             Header header) {
 
-        // Simple message parsing - in real implementation would use proper serialization
-        String message = buffer.getStringWithoutLengthAscii(offset, length);
-        LOGGER.info("Received message: {}", message);
-
-        if (message.startsWith("CREATE_TOY:")) {
-            long customerId = Long.parseLong(message.substring(11));
-            createToy(session, customerId);
-        } else if (message.startsWith("UPDATE_TOY:")) {
-            String[] parts = message.split(":");
-            long toyId = Long.parseLong(parts[1]);
-            ToyStatus newStatus = ToyStatus.valueOf(parts[2]);
-            updateToyStatus(session, toyId, newStatus);
-        } else if (message.startsWith("GET_TOY:")) {
-            long toyId = Long.parseLong(message.substring(8));
-            getToy(session, toyId);
+        sessionEgress.retry();
+
+        headerDecoder.wrap(buffer, offset);
+        if (headerDecoder.schemaId() != MessageHeaderDecoder.SCHEMA_ID) {
+            LOGGER.warn("Ignoring message with unknown schemaId: {}", headerDecoder.schemaId());
+            return;
         }
-    }
 
-    private void createToy(ClientSession session, long customerId) {
-        long toyId = toyIdGenerator.getAndIncrement();
-        Toy toy = new Toy(toyId, customerId, ToyStatus.PENDING);
-        toys.put(toyId, toy);
+        switch (headerDecoder.templateId()) {
+            case CreateToyCommandDecoder.TEMPLATE_ID:
+                createToyCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                if (partition.ownsCustomer(createToyCommandDecoder.customerId())) {
+                    onCommand(session, timestamp, length);
+                    createToy(
+                        session,
+                        createToyCommandDecoder.customerId(),
+                        createToyCommandDecoder.requestId(),
+                        createToyCommandDecoder.correlationId(),
+                        timestamp);
+                }
+                break;
 
-        String response = String.format("TOY_CREATED:%d:%d:%s", toyId, customerId, ToyStatus.PENDING);
+            case UpdateToyCommandDecoder.TEMPLATE_ID:
+                updateToyCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                if (partition.ownsToy(updateToyCommandDecoder.toyId())) {
+                    onCommand(session, timestamp, length);
+                    updateToyStatus(
+                        session,
+                        updateToyCommandDecoder.toyId(),
+                        ToyStatus.fromValue(updateToyCommandDecoder.statusRaw()),
+                        updateToyCommandDecoder.correlationId(),
+                        timestamp);
+                }
+                break;
 
-        // Send response back to the client session (for gateway)
-        sendResponseToSession(session, response);
+            case CreateToysCommandDecoder.TEMPLATE_ID:
+                createToysCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                onCommand(session, timestamp, length);
+                createToys(session, createToysCommandDecoder, timestamp);
+                break;
 
-        // Also send to cluster for background processing (for internal workflows)
-        offerStringMessage(response);
+            case UpdateToysCommandDecoder.TEMPLATE_ID:
+                updateToysCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                onCommand(session, timestamp, length);
+                updateToys(session, updateToysCommandDecoder, timestamp);
+                break;
 
-        LOGGER.info("Created toy: {}", toy);
-    }
+            case GetToyCommandDecoder.TEMPLATE_ID:
+                getToyCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                if (partition.ownsToy(getToyCommandDecoder.toyId())) {
+                    onCommand(session, timestamp, length);
+                    getToy(session, getToyCommandDecoder.toyId(), getToyCommandDecoder.correlationId());
+                }
+                break;
 
-    private void updateToyStatus(ClientSession session, long toyId, ToyStatus newStatus) {
-        Toy toy = toys.get(toyId);
-        if (toy != null) {
-            toy.setStatus(newStatus);
+            case ListToysByCustomerCommandDecoder.TEMPLATE_ID:
+                listToysByCustomerCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                if (partition.ownsCustomer(listToysByCustomerCommandDecoder.customerId())) {
+                    onCommand(session, timestamp, length);
+                    listToysByCustomer(session, listToysByCustomerCommandDecoder);
+                }
+                break;
 
-            String response = String.format("TOY_UPDATED:%d:%s", toyId, newStatus);
-            sendResponseToSession(session, response);
-            offerStringMessage(response);
+            case CountToysByStatusCommandDecoder.TEMPLATE_ID:
+                countToysByStatusCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                onCommand(session, timestamp, length);
+                countToysByStatus(
+                    session,
+                    ToyStatus.fromValue(countToysByStatusCommandDecoder.statusRaw()),
+                    countToysByStatusCommandDecoder.correlationId());
+                break;
 
-            LOGGER.info("Updated toy {} to status {}", toyId, newStatus);
-        } else {
-            String response = String.format("TOY_NOT_FOUND:%d", toyId);
-            sendResponseToSession(session, response);
-            offerStringMessage(response);
-        }
-    }
+            case ToyEventsSnapshotCommandDecoder.TEMPLATE_ID:
+                toyEventsSnapshotCommandDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                final int partitionId = toyEventsSnapshotCommandDecoder.partitionId();
+                if (ToyEventsSnapshotCommandDecoder.partitionIdNullValue() == partitionId ||
+                    partition.id() == partitionId) {
+                    onCommand(session, timestamp, length);
+                    events.snapshot(session, toyEventsSnapshotCommandDecoder.fromIndex());
+                }
+                break;
 
-    private void getToy(ClientSession session, long toyId) {
-        Toy toy = toys.get(toyId);
-        if (toy != null) {
-            String response = String.format("TOY_INFO:%d:%d:%s",
-                toy.getId(), toy.getCustomerId(), toy.getStatus());
-            sendResponseToSession(session, response);
-            offerStringMessage(response);
-        } else {
-            String response = String.format("TOY_NOT_FOUND:%d", toyId);
-            sendResponseToSession(session, response);
-            offerStringMessage(response);
+            default:
+                LOGGER.warn("Ignoring message with unknown templateId: {}", headerDecoder.templateId());
         }
-    }
 
-    private void sendResponseToSession(ClientSession session, String message) {
-        buffer.putStringWithoutLengthAscii(0, message);
-        long result = session.offer(buffer, 0, message.length());
-        if (result > 0) {
-            LOGGER.info("Sent response to client session: {}", message);
-        } else {
-            LOGGER.warn("Failed to send response to client session: {} (result: {})", message, result);
-        }
+        events.flush();
     }
 
-    private void offerStringMessage(String message) {
-        buffer.putStringWithoutLengthAscii(0, message);
-        cluster.offer(buffer, 0, message.length());
+    private void onCommand(ClientSession session, long timestamp, int length) {
+        journal.record(EventJournal.COMMAND_RECEIVED, timestamp, session.id(), headerDecoder.templateId(), length);
+        commandsCounter.incrementOrdered();
     }
 
+    private void createToy(ClientSession session, long customerId, long requestId, long correlationId, long timestamp) {
+        final boolean hasRequestId = CreateToyCommandDecoder.requestIdNullValue() != requestId;
+        if (hasRequestId) {
+            final long toyId = createRequests.toyId(customerId, requestId, timestamp, cluster.timeUnit());
+            if (NULL_VALUE != toyId) {
+                final ToyRecord toy = toys.get(toyId);
+                journal.record(EventJournal.CREATE_REPEATED, timestamp, toyId, requestId, 0);
+                toyCreatedEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                    .toyId(toyId)
+                    .customerId(toy.customerId())
+                    .status(toy.status().toCode())
+                    .correlationId(correlationId);
+                sendResponseToSession(session, toyCreatedEncoder);
+                return;
+            }
+        }
 
-    @Override
-    public void onTimerEvent(long correlationId, long timestamp) {
-        // Handle timer events for workflow automation
+        ToyRecord toy = newToy(customerId, timestamp);
+        if (hasRequestId) {
+            createRequests.put(customerId, requestId, toy.toyId(), timestamp);
+        }
+
+        toyCreatedEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .toyId(toy.toyId())
+            .customerId(customerId)
+            .status(toy.status().toCode())
+            .correlationId(correlationId);
+        sendResponseToSession(session, toyCreatedEncoder);
     }
 
-    @Override
-    public void onTakeSnapshot(ExclusivePublication snapshotPublication) {
-        LOGGER.info("Taking snapshot with publication: {}", snapshotPublication);
-        // Implement state snapshot
+    private void createToys(ClientSession session, CreateToysCommandDecoder command, long timestamp) {
+        int ownedCount = 0;
+        for (final CreateToysCommandDecoder.CustomersDecoder customer : command.customers()) {
+            if (partition.ownsCustomer(customer.customerId())) {
+                ownedCount++;
+            }
+        }
+        command.sbeRewind();
+
+        final ToysCreatedEncoder.ToysEncoder toysEncoder = toysCreatedEncoder
+            .wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .partitionCount(partition.count())
+            .correlationId(command.correlationId())
+            .toysCount(ownedCount);
+
+        for (final CreateToysCommandDecoder.CustomersDecoder customer : command.customers()) {
+            if (partition.ownsCustomer(customer.customerId())) {
+                final ToyRecord toy = newToy(customer.customerId(), timestamp);
+                toysEncoder.next()
+                    .toyId(toy.toyId())
+                    .customerId(toy.customerId())
+                    .status(toy.status().toCode());
+            }
+        }
+        sendResponseToSession(session, toysCreatedEncoder);
     }
 
-    public void onLoadSnapshot(Image snapshotImage) {
-        LOGGER.info("Loading snapshot from image: {}", snapshotImage);
-        // Implement state loading
+    private ToyRecord newToy(long customerId, long timestamp) {
+        long toyId = toyIdGenerator.getAndAdd(partition.count());
+        ToyRecord toy = toys.add(toyId, customerId, ToyStatus.PENDING, timestamp);
+        journal.record(EventJournal.TOY_CREATED, timestamp, toyId, customerId, toy.status().getValue());
+        onToyChange(toy);
+        workflow.onStatusChange(toy, timestamp);
+
+        return toy;
     }
 
-    @Override
-    public void onSessionOpen(ClientSession session, long timestamp) {}
+    private void updateToyStatus(
+            ClientSession session, long toyId, ToyStatus newStatus, long correlationId, long timestamp) {
+        final UpdateResult result = applyStatus(toyId, newStatus, timestamp);
+        if (UpdateResult.NOT_FOUND == result) {
+            sendToyNotFound(session, toyId, correlationId);
+            return;
+        }
 
-    @Override
-    public void onSessionClose(ClientSession session, long timestamp, CloseReason closeReason) {}
+        // A rejected status is answered as the batch update answers it, with the status as UNKNOWN
+        toyUpdatedEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .toyId(toyId)
+            .status(newStatus.toCode())
+            .correlationId(correlationId)
+            .result(result);
+        sendResponseToSession(session, toyUpdatedEncoder);
+    }
 
-    @Override
-    public void onRoleChange(Cluster.Role newRole) {
-        LOGGER.info("Role changed to: {}", newRole);
+    private void updateToys(ClientSession session, UpdateToysCommandDecoder command, long timestamp) {
+        int ownedCount = 0;
+        for (final UpdateToysCommandDecoder.UpdatesDecoder update : command.updates()) {
+            if (partition.ownsToy(update.toyId())) {
+                ownedCount++;
+            }
+        }
+        command.sbeRewind();
+
+        final ToysUpdatedEncoder.ResultsEncoder resultsEncoder = toysUpdatedEncoder
+            .wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .partitionCount(partition.count())
+            .correlationId(command.correlationId())
+            .resultsCount(ownedCount);
+
+        for (final UpdateToysCommandDecoder.UpdatesDecoder update : command.updates()) {
+            final long toyId = update.toyId();
+            if (partition.ownsToy(toyId)) {
+                final ToyStatus newStatus = ToyStatus.fromValue(update.statusRaw());
+                resultsEncoder.next()
+                    .toyId(toyId)
+                    .status(newStatus.toCode())
+                    .result(applyStatus(toyId, newStatus, timestamp));
+            }
+        }
+        sendResponseToSession(session, toysUpdatedEncoder);
     }
 
-    @Override
-    public void onTerminate(Cluster cluster) {
-        LOGGER.info("ToyFactory logical service shutting down...");
+    private UpdateResult applyStatus(long toyId, ToyStatus newStatus, long timestamp) {
+        if (!newStatus.isValid()) {
+            return UpdateResult.INVALID_STATUS;
+        }
 
-        // Graceful shutdown (like Go context cancellation)
-        stopBackgroundEgressConsumer();
+        ToyRecord toy = toys.get(toyId);
+        if (toy == null) {
+            return UpdateResult.NOT_FOUND;
+        }
 
-        LOGGER.info("ToyFactory logical service terminated");
+        leadTimes.beforeStatusChange(toy);
+        toys.updateStatus(toy, newStatus, timestamp);
+        journal.record(EventJournal.TOY_UPDATED, timestamp, toyId, newStatus.getValue(), 0);
+        onToyChange(toy);
+        leadTimes.afterStatusChange(toy);
+        workflow.onStatusChange(toy, timestamp);
+
+        return UpdateResult.UPDATED;
     }
 
-    /**
-     * Start background egress consumer thread (like go func() with context)
-     */
-    private void startBackgroundEgressConsumer() {
-        isRunning.set(true);
-        backgroundExecutor.submit(this::runEgressConsumerLoop);
-        LOGGER.info("Started background egress consumer thread");
+    private void getToy(ClientSession session, long toyId, long correlationId) {
+        ToyRecord toy = toys.get(toyId);
+        if (toy != null) {
+            toyInfoEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .toyId(toy.toyId())
+                .customerId(toy.customerId())
+                .status(toy.status().toCode())
+                .correlationId(correlationId);
+            sendResponseToSession(session, toyInfoEncoder);
+        } else {
+            sendToyNotFound(session, toyId, correlationId);
+        }
     }
 
-    /**
-     * Stop background consumer gracefully (like Go context cancellation)
-     */
-    private void stopBackgroundEgressConsumer() {
-        LOGGER.info("Stopping background egress consumer...");
-
-        // Signal shutdown (like ctx.Done() in Go)
-        isRunning.set(false);
-
-        // Wake up the consumer thread if it's waiting
-        messageQueue.offer("SHUTDOWN_SIGNAL");
-
-        try {
-            // Wait for graceful shutdown with timeout (like Go context timeout)
-            if (!backgroundExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                LOGGER.warn("Background consumer didn't shutdown gracefully, forcing shutdown");
-                backgroundExecutor.shutdownNow();
-            } else {
-                LOGGER.info("Background egress consumer shutdown gracefully");
+    private void listToysByCustomer(ClientSession session, ListToysByCustomerCommandDecoder command) {
+        final long customerId = command.customerId();
+        final long correlationId = command.correlationId();
+        final int pageSize = pageSize(command.pageSize());
+        int index = firstIndexAfter(customerId, command.afterToyId());
+        int pageToyCount = 0;
+        long lastToyId = ToysByCustomerEndEncoder.nextAfterToyIdNullValue();
+
+        while (ToyRecord.NULL_INDEX != index && pageToyCount < pageSize) {
+            final int maxChunkToyCount = Math.min(TOYS_PER_CHUNK, pageSize - pageToyCount);
+            int chunkToyCount = 0;
+            while (ToyRecord.NULL_INDEX != index && chunkToyCount < maxChunkToyCount) {
+                chunkIndices[chunkToyCount++] = index;
+                index = toys.recordAt(index).nextByCustomer();
             }
-        } catch (InterruptedException e) {
-            LOGGER.warn("Interrupted while waiting for shutdown");
-            backgroundExecutor.shutdownNow();
-            Thread.currentThread().interrupt();
+
+            final ToysByCustomerEncoder.ToysEncoder toysEncoder = toysByCustomerEncoder
+                .wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .customerId(customerId)
+                .correlationId(correlationId)
+                .toysCount(chunkToyCount);
+            for (int i = 0; i < chunkToyCount; i++) {
+                final ToyRecord toy = toys.recordAt(chunkIndices[i]);
+                toysEncoder.next()
+                    .toyId(toy.toyId())
+                    .status(toy.status().toCode());
+                lastToyId = toy.toyId();
+            }
+            sendResponseToSession(session, toysByCustomerEncoder);
+            pageToyCount += chunkToyCount;
         }
+
+        final boolean hasNextPage = ToyRecord.NULL_INDEX != index;
+        toysByCustomerEndEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .customerId(customerId)
+            .toyCount(toys.countByCustomer(customerId))
+            .pageToyCount(pageToyCount)
+            .nextAfterToyId(hasNextPage ? lastToyId : ToysByCustomerEndEncoder.nextAfterToyIdNullValue())
+            .correlationId(correlationId);
+        sendResponseToSession(session, toysByCustomerEndEncoder);
     }
 
     /**
-     * Main consumer loop - runs in background thread (like goroutine)
-     * Similar to: go func(ctx context.Context) { ... }()
+     * Index of a customer's first toy after a cursor. The cursor toy is normally looked up directly, otherwise the
+     * customer's toys are scanned for the first one created after it, as toyIds are assigned in creation order.
      */
-    private void runEgressConsumerLoop() {
-        LOGGER.info("Egress consumer thread started");
-
-        while (isRunning.get()) {
-            try {
-                // Wait for messages with timeout (like select with ctx.Done())
-                String message = messageQueue.poll(1, TimeUnit.SECONDS);
-
-                if (message != null && !message.equals("SHUTDOWN_SIGNAL")) {
-                    // Process the message
-                    egressHandler.handleEgressMessage(message);
-                }
+    private int firstIndexAfter(long customerId, long afterToyId) {
+        int index = toys.firstIndexByCustomer(customerId);
+        if (ListToysByCustomerCommandDecoder.afterToyIdNullValue() == afterToyId) {
+            return index;
+        }
 
-                // Check if we should continue (like checking ctx.Done())
-                if (!isRunning.get()) {
-                    break;
-                }
+        final int cursorIndex = toys.indexOf(afterToyId);
+        if (ToyRecord.NULL_INDEX != cursorIndex) {
+            final ToyRecord cursor = toys.recordAt(cursorIndex);
+            if (cursor.customerId() == customerId) {
+                return cursor.nextByCustomer();
+            }
+        }
 
-            } catch (InterruptedException e) {
-                LOGGER.info("Egress consumer interrupted, shutting down");
-                Thread.currentThread().interrupt();
+        while (ToyRecord.NULL_INDEX != index) {
+            final ToyRecord toy = toys.recordAt(index);
+            if (toy.toyId() > afterToyId) {
                 break;
-            } catch (Exception e) {
-                LOGGER.error("Error in egress consumer loop", e);
-                // Continue processing other messages
             }
+            index = toy.nextByCustomer();
         }
 
-        LOGGER.info("Egress consumer thread exited");
+        return index;
     }
 
-    /**
-     * Queue message for background processing (non-blocking)
-     * This is what gets called when egress messages arrive
-     */
-    public void onEgressMessage(String message) {
-        if (isRunning.get()) {
-            if (!messageQueue.offer(message)) {
-                LOGGER.warn("Message queue full, dropping egress message: {}", message);
-            }
+    private static int pageSize(int requestedPageSize) {
+        if (ListToysByCustomerCommandDecoder.pageSizeNullValue() == requestedPageSize || requestedPageSize <= 0) {
+            return DEFAULT_PAGE_SIZE;
         }
+
+        return Math.min(requestedPageSize, MAX_PAGE_SIZE);
+    }
+
+    private void countToysByStatus(ClientSession session, ToyStatus status, long correlationId) {
+        toyCountByStatusEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .status(status.toCode())
+            .count(toys.countByStatus(status))
+            .partitionCount(partition.count())
+            .correlationId(correlationId);
+        sendResponseToSession(session, toyCountByStatusEncoder);
+    }
+
+    private void sendToyNotFound(ClientSession session, long toyId, long correlationId) {
+        toyNotFoundEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder).toyId(toyId).correlationId(correlationId);
+        sendResponseToSession(session, toyNotFoundEncoder);
     }
 
     /**
-     * Inner class to handle egress messages from the cluster
+     * Send a response once the events for the changes which led to it, so subscribers see the changes first.
      */
-    private class EgressMessageHandler {
+    private void sendResponseToSession(ClientSession session, MessageEncoderFlyweight encoder) {
+        events.flush();
+        final boolean isSent = sessionEgress.send(
+            session, buffer, 0, MessageHeaderEncoder.ENCODED_LENGTH + encoder.encodedLength());
+        journal.record(
+            isSent ? EventJournal.RESPONSE_SENT : EventJournal.RESPONSE_QUEUED,
+            cluster.time(),
+            session.id(),
+            encoder.sbeTemplateId(),
+            0);
+    }
 
-        public void handleEgressMessage(String message) {
-            LOGGER.debug("Processing egress message: {}", message);
 
-            if (message.startsWith("TOY_CREATED:")) {
-                handleToyCreatedEvent(message);
-            } else if (message.startsWith("TOY_UPDATED:")) {
-                handleToyUpdatedEvent(message);
-            }
+    /**
+     * Publish a toy which has just been created or changed status.
+     */
+    private void onToyChange(ToyRecord toy) {
+        events.onToyChange(toy);
+        if (null != view) {
+            view.put(toy.toyId(), toy.customerId(), toy.status());
         }
+    }
 
-        private void handleToyCreatedEvent(String message) {
-            // Parse: TOY_CREATED:toyId:customerId:status
-            String[] parts = message.split(":");
-            if (parts.length >= 4) {
-                long toyId = Long.parseLong(parts[1]);
-                long customerId = Long.parseLong(parts[2]);
-                String status = parts[3];
-
-                LOGGER.info("🎉 TOY_CREATED event: toyId={}, customerId={}, status={}",
-                    toyId, customerId, status);
+    private void onStageComplete(ToyRecord toy, ToyStatus previousStatus, long timestamp) {
+        journal.record(
+            EventJournal.STAGE_COMPLETE, timestamp, toy.toyId(), previousStatus.getValue(), toy.status().getValue());
+        onToyChange(toy);
+        // The workflow never advances a completed toy, so there is nothing to stop counting before the change
+        leadTimes.afterStatusChange(toy);
+    }
 
-                // Add your business logic here:
-                // - Send notifications
-                // - Update external systems
-                // - Trigger workflow steps
-                // - etc.
+    @Override
+    public void onTimerEvent(long correlationId, long timestamp) {
+        sessionEgress.retry();
 
-                processNewToyWorkflow(toyId, customerId);
-            }
+        if (!partition.ownsTimer(correlationId)) {
+            return;
         }
 
-        private void handleToyUpdatedEvent(String message) {
-            // Parse: TOY_UPDATED:toyId:status
-            String[] parts = message.split(":");
-            if (parts.length >= 3) {
-                long toyId = Long.parseLong(parts[1]);
-                String status = parts[2];
+        if (!workflow.onTimerEvent(correlationId, timestamp) &&
+            !sessionEgress.onTimerEvent(correlationId) &&
+            !events.onTimerEvent(correlationId)) {
+            LOGGER.warn("Ignoring unknown timer: correlationId={}", correlationId);
+        }
 
-                LOGGER.info("🔄 TOY_UPDATED event: toyId={}, status={}", toyId, status);
+        events.flush();
+    }
 
-                // Add your business logic here for status updates
-                processStatusChangeWorkflow(toyId, status);
-            }
+    @Override
+    public int doBackgroundWork(long nowNs) {
+        int workCount = sessionEgress.retry() + leadTimes.publish(cluster.timeUnit());
+        if (null != view && nowNs - viewHeartbeatDeadlineNs >= 0) {
+            viewHeartbeatDeadlineNs = nowNs + VIEW_HEARTBEAT_INTERVAL_NS;
+            view.heartbeat(partition.id(), System.currentTimeMillis(), cluster.time());
+            workCount++;
         }
 
-        private void processNewToyWorkflow(long toyId, long customerId) {
-            // Example workflow logic when a new toy is created
-            LOGGER.info("Starting manufacturing workflow for toy {} (customer {})", toyId, customerId);
+        return workCount;
+    }
 
-            // You could:
-            // - Schedule production steps
-            // - Allocate resources
-            // - Send to manufacturing queue
-            // - Notify customer
-        }
+    @Override
+    public void onTakeSnapshot(ExclusivePublication snapshotPublication) {
+        LOGGER.info("Taking snapshot of {} toys for partition {}", toys.size(), partition);
 
-        private void processStatusChangeWorkflow(long toyId, String status) {
-            // Example workflow logic when toy status changes
-            LOGGER.info("Processing status change workflow for toy {} -> {}", toyId, status);
+        final ToySnapshotTaker snapshotTaker = new ToySnapshotTaker(snapshotPublication, cluster.idleStrategy());
+        final long length = snapshotTaker.snapshot(toys, toyIdGenerator.get(), createRequests, events);
 
-            // You could:
-            // - Update progress tracking
-            // - Send customer notifications
-            // - Trigger next manufacturing step
-            // - Update delivery estimates
-        }
+        // Members' snapshots at the same log position are identical, which the checksum lets an operator verify
+        LOGGER.info("Snapshot complete: {} toys, {} bytes, logPosition={}, checksum={}",
+            toys.size(), length, cluster.logPosition(), Long.toHexString(snapshotTaker.checksum()));
     }
 
-}
\ No newline at end of file
+    public void onLoadSnapshot(Image snapshotImage) {
+        LOGGER.info("Loading snapshot from image: {}", snapshotImage);
+
+        final ToySnapshotLoader snapshotLoader = new ToySnapshotLoader(snapshotImage, toys, createRequests);
+        snapshotLoader.load(cluster.idleStrategy());
+        toyIdGenerator.set(snapshotLoader.nextToyId());
+        events.onLoadSnapshot(snapshotLoader.eventSequence(), snapshotLoader.eventSubscriberSessionIds());
+        leadTimes.onLoad();
+
+        LOGGER.info("Loaded snapshot: {} toys, nextToyId={}, partition={}",
+            toys.size(), toyIdGenerator.get(), partition);
+    }
+
+    @Override
+    public void onSessionOpen(ClientSession session, long timestamp) {}
+
+    @Override
+    public void onSessionClose(ClientSession session, long timestamp, CloseReason closeReason) {
+        events.onSessionClose(session.id());
+        sessionEgress.onSessionClose(session.id());
+    }
+
+    @Override
+    public void onRoleChange(Cluster.Role newRole) {
+        LOGGER.info("Role changed to: {}", newRole);
+    }
+
+    @Override
+    public void onTerminate(Cluster cluster) {
+        LOGGER.info("ToyFactory logical service shutting down...");
+
+        sessionEgress.close();
+        CloseHelper.close(commandsCounter);
+        leadTimes.close();
+
+        LOGGER.info("ToyFactory logical service terminated");
+    }
+}
@@ -0,0 +1,129 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import org.agrona.collections.Hashing;
+import org.agrona.collections.Long2LongHashMap;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Remembers the toy created for each recent CreateToyCommand request id, so a client which retries a create after
+ * timing out gets the toy it already created rather than a duplicate.
+ *
+ * A request is identified by its customer as well as its request id, as request ids are chosen by clients and two
+ * customers may pick the same one, so a request never returns another customer's toy. Requests are held in a ring in
+ * the order they were created, alongside a primitive map from a hash of the customer and request id to the request's
+ * slot in the ring. A slot found through the map is checked against both ids, so a hash shared by two requests can
+ * only cause the older to be forgotten early.
+ *
+ * The oldest requests are evicted once the ring is full or they are older than the time to live. Eviction only happens
+ * as requests are looked up, using the cluster time of the command, so the cache is part of the partition's state like
+ * the toys: every member evicts the same requests at the same point in the log, and it is included in snapshots. The
+ * capacity and time to live must therefore be the same on every member.
+ */
+class CreateRequestCache {
+    private final long ttlMs;
+    private final Long2LongHashMap slotByRequestKey;
+    private final long[] customerIds;
+    private final long[] requestIds;
+    private final long[] toyIds;
+    private final long[] timestamps;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity of requests to remember, the oldest being evicted to make room.
+     * @param ttlMs    after which a request is forgotten and a repeat creates a new toy.
+     */
+    CreateRequestCache(int capacity, long ttlMs) {
+        this.ttlMs = ttlMs;
+        this.slotByRequestKey = new Long2LongHashMap(capacity * 2, Hashing.DEFAULT_LOAD_FACTOR, NULL_VALUE);
+        this.customerIds = new long[capacity];
+        this.requestIds = new long[capacity];
+        this.toyIds = new long[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    static CreateRequestCache fromSystemProperties() {
+        return new CreateRequestCache(
+            Integer.getInteger("toyfactory.idempotency.capacity", 100_000),
+            Long.getLong("toyfactory.idempotency.ttl.ms", TimeUnit.MINUTES.toMillis(10)));
+    }
+
+    /**
+     * Evict the requests which have expired as of a command's cluster time, then look up a customer's request.
+     *
+     * @return the toy created for the request, or {@link io.aeron.Aeron#NULL_VALUE} if it has not been seen.
+     */
+    long toyId(long customerId, long requestId, long timestamp, TimeUnit timeUnit) {
+        final long expiredBefore = timestamp - timeUnit.convert(ttlMs, TimeUnit.MILLISECONDS);
+        while (size > 0 && timestamps[head] <= expiredBefore) {
+            evictOldest();
+        }
+
+        final int slot = (int) slotByRequestKey.get(requestKey(customerId, requestId));
+        if (NULL_VALUE == slot || customerIds[slot] != customerId || requestIds[slot] != requestId) {
+            return NULL_VALUE;
+        }
+
+        return toyIds[slot];
+    }
+
+    /**
+     * Remember the toy created for a customer's request which has not been seen, evicting the oldest request if full.
+     */
+    void put(long customerId, long requestId, long toyId, long timestamp) {
+        if (0 == requestIds.length) {
+            return;
+        }
+
+        if (requestIds.length == size) {
+            evictOldest();
+        }
+
+        final int slot = (head + size) % requestIds.length;
+        customerIds[slot] = customerId;
+        requestIds[slot] = requestId;
+        toyIds[slot] = toyId;
+        timestamps[slot] = timestamp;
+        size++;
+        slotByRequestKey.put(requestKey(customerId, requestId), slot);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param age of the request, 0 for the oldest, in the order they were put.
+     */
+    long requestIdAt(int age) {
+        return requestIds[(head + age) % requestIds.length];
+    }
+
+    long toyIdAt(int age) {
+        return toyIds[(head + age) % requestIds.length];
+    }
+
+    long timestampAt(int age) {
+        return timestamps[(head + age) % requestIds.length];
+    }
+
+    private void evictOldest() {
+        final long requestKey = requestKey(customerIds[head], requestIds[head]);
+        if (head == slotByRequestKey.get(requestKey)) {
+            slotByRequestKey.remove(requestKey);
+        }
+        head = (head + 1) % requestIds.length;
+        size--;
+    }
+
+    /**
+     * Mix of the customer and request ids, which are both chosen by clients, so requests which differ only in customer
+     * do not share a key.
+     */
+    private static long requestKey(long customerId, long requestId) {
+        return requestId ^ (customerId * 0x9E3779B97F4A7C15L);
+    }
+}
@@ -0,0 +1,139 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.Counter;
+import io.aeron.cluster.service.Cluster;
+import io.aeron.cluster.service.ClusterCounters;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.toyfactory.ToyFactoryCounters;
+import org.agrona.CloseHelper;
+import org.agrona.MutableDirectBuffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lead time of a partition's toys, from being created to being completed, derived from the cluster time stamped on
+ * each toy so every member computes the same figures.
+ *
+ * The statistics cover the toys which are completed now, each timed to when it was last updated, which is all a
+ * snapshot holds. They are rebuilt from the completed toys when a snapshot is loaded and updated as toys enter and
+ * leave the completed status, so a toy moved back out of completed and completed again is counted once, whether the
+ * member saw it happen or loaded it. When the toy with the longest lead time leaves, the maximum is found again from
+ * the completed toys as the statistics are next published.
+ *
+ * They are published as counters from background work, as the cluster's time unit is only known once the service
+ * has joined the log.
+ */
+class LeadTimeStats {
+    private final ToyPartition partition;
+    private final ToyStore toys;
+    private final ToyRecord scanRecord = new ToyRecord();
+    private long completedCount;
+    private long totalLeadTime;
+    private long maxLeadTime;
+    private boolean isMaxStale;
+    private boolean isPublished = true;
+    private Counter completedCounter;
+    private Counter meanLeadTimeCounter;
+    private Counter maxLeadTimeCounter;
+
+    LeadTimeStats(ToyPartition partition, ToyStore toys) {
+        this.partition = partition;
+        this.toys = toys;
+    }
+
+    void onStart(Cluster cluster, MutableDirectBuffer tempBuffer) {
+        final int clusterId = cluster.context().clusterId();
+        completedCounter = ClusterCounters.allocate(
+            cluster.aeron(), tempBuffer, "Toys completed for partition " + partition,
+            ToyFactoryCounters.TOYS_COMPLETED_TYPE_ID, clusterId);
+        meanLeadTimeCounter = ClusterCounters.allocate(
+            cluster.aeron(), tempBuffer, "Mean toy lead time ms for partition " + partition,
+            ToyFactoryCounters.MEAN_LEAD_TIME_TYPE_ID, clusterId);
+        maxLeadTimeCounter = ClusterCounters.allocate(
+            cluster.aeron(), tempBuffer, "Max toy lead time ms for partition " + partition,
+            ToyFactoryCounters.MAX_LEAD_TIME_TYPE_ID, clusterId);
+    }
+
+    /**
+     * Stop counting a toy which is about to be updated, if it is completed, as its lead time may change.
+     */
+    void beforeStatusChange(ToyRecord toy) {
+        if (ToyStatus.COMPLETED == toy.status()) {
+            final long leadTime = leadTime(toy);
+            completedCount--;
+            totalLeadTime -= leadTime;
+            isMaxStale |= leadTime == maxLeadTime;
+            isPublished = false;
+        }
+    }
+
+    /**
+     * Count a toy which has just been updated, if it is now completed.
+     */
+    void afterStatusChange(ToyRecord toy) {
+        if (ToyStatus.COMPLETED == toy.status()) {
+            onCompleted(toy);
+        }
+    }
+
+    /**
+     * Rebuild the statistics from the toys loaded from a snapshot.
+     */
+    void onLoad() {
+        completedCount = 0;
+        totalLeadTime = 0;
+        maxLeadTime = 0;
+        isMaxStale = false;
+        for (int i = 0, size = toys.size(); i < size; i++) {
+            final ToyRecord toy = toys.recordAt(i);
+            if (ToyStatus.COMPLETED == toy.status()) {
+                onCompleted(toy);
+            }
+        }
+    }
+
+    /**
+     * Publish the statistics to the counters if they have changed.
+     *
+     * @param timeUnit of cluster time, or null if it is not known yet.
+     * @return 1 if the counters were updated, otherwise 0.
+     */
+    int publish(TimeUnit timeUnit) {
+        if (isPublished || null == timeUnit || null == completedCounter) {
+            return 0;
+        }
+
+        if (isMaxStale) {
+            maxLeadTime = 0;
+            for (int i = toys.firstIndexByStatus(ToyStatus.COMPLETED); ToyRecord.NULL_INDEX != i;
+                 i = scanRecord.nextByStatus()) {
+                maxLeadTime = Math.max(maxLeadTime, leadTime(toys.recordAt(i, scanRecord)));
+            }
+            isMaxStale = false;
+        }
+
+        completedCounter.setOrdered(completedCount);
+        meanLeadTimeCounter.setOrdered(
+            0 == completedCount ? 0 : timeUnit.toMillis(totalLeadTime / completedCount));
+        maxLeadTimeCounter.setOrdered(timeUnit.toMillis(maxLeadTime));
+        isPublished = true;
+
+        return 1;
+    }
+
+    void close() {
+        CloseHelper.closeAll(completedCounter, meanLeadTimeCounter, maxLeadTimeCounter);
+    }
+
+    private void onCompleted(ToyRecord toy) {
+        final long leadTime = leadTime(toy);
+        completedCount++;
+        totalLeadTime += leadTime;
+        maxLeadTime = Math.max(maxLeadTime, leadTime);
+        isPublished = false;
+    }
+
+    private static long leadTime(ToyRecord toy) {
+        return toy.updatedAt() - toy.createdAt();
+    }
+}
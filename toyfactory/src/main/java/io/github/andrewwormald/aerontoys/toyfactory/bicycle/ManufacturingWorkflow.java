@@ -0,0 +1,180 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.cluster.service.Cluster;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import org.agrona.BitUtil;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Advances toys through PENDING -> SOURCED -> ASSEMBLED -> COMPLETED as each stage's duration elapses in cluster time.
+ *
+ * Stage deadlines for every toy are held in a hierarchical {@link StageTimerWheel}, linked through the toy records so
+ * millions of pending deadlines cost no more memory than the records, and multiplexed onto a single cluster timer
+ * which fires on the next wheel tick while any deadline is pending. When it fires, all toys whose deadline has passed
+ * are advanced in one batch in toyId order, so the outcome only depends on cluster time and is the same on every
+ * member whether the wheel was built by replaying the log or by loading a snapshot.
+ *
+ * Stage durations are in milliseconds and must be configured identically on every member, 0 disables a stage so the
+ * toy waits for an UpdateToyCommand instead.
+ */
+class ManufacturingWorkflow implements StageTimerWheel.ExpiryHandler {
+    private static final long TIMER_ID = 1;
+
+    @FunctionalInterface
+    interface StageListener {
+        void onStageComplete(ToyRecord toy, ToyStatus previousStatus, long timestamp);
+    }
+
+    private final ToyStore toys;
+    private final StageListener listener;
+    private final long timerCorrelationId;
+    private final long[] stageDurationMsByStatus = new long[ToyStatus.values().length];
+    private final ToyRecord restoredToy = new ToyRecord();
+    private long[] expiredToyIds = new long[1024];
+    private int expiredCount;
+    private Cluster cluster;
+    private StageTimerWheel timerWheel;
+    private long scheduledTimerDeadline = NULL_VALUE;
+
+    ManufacturingWorkflow(
+        ToyStore toys,
+        StageListener listener,
+        ToyPartition partition,
+        long sourcingMs,
+        long assemblyMs,
+        long completionMs) {
+        this.toys = toys;
+        this.listener = listener;
+        this.timerCorrelationId = partition.timerCorrelationId(TIMER_ID);
+        stageDurationMsByStatus[ToyStatus.PENDING.getValue()] = sourcingMs;
+        stageDurationMsByStatus[ToyStatus.SOURCED.getValue()] = assemblyMs;
+        stageDurationMsByStatus[ToyStatus.ASSEMBLED.getValue()] = completionMs;
+    }
+
+    static ManufacturingWorkflow fromSystemProperties(ToyStore toys, StageListener listener, ToyPartition partition) {
+        return new ManufacturingWorkflow(
+            toys,
+            listener,
+            partition,
+            Long.getLong("toyfactory.workflow.sourcing.ms", 5_000),
+            Long.getLong("toyfactory.workflow.assembly.ms", 10_000),
+            Long.getLong("toyfactory.workflow.completion.ms", 5_000));
+    }
+
+    void onStart(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Schedule the next stage for a toy which has just been created or moved to a new status.
+     */
+    void onStatusChange(ToyRecord toy, long timestamp) {
+        ensureTimerWheel();
+        final int index = toys.indexOf(toy.toyId());
+        timerWheel.cancel(index);
+
+        final long durationMs = stageDurationMsByStatus[toy.status().getValue()];
+        if (durationMs > 0) {
+            timerWheel.schedule(
+                index, timestamp + cluster.timeUnit().convert(durationMs, TimeUnit.MILLISECONDS), cluster.time());
+            scheduleClusterTimer();
+        }
+    }
+
+    /**
+     * Advance every toy whose stage deadline has passed.
+     *
+     * @return true if the timer belonged to the workflow.
+     */
+    boolean onTimerEvent(long correlationId, long timestamp) {
+        if (timerCorrelationId != correlationId) {
+            return false;
+        }
+
+        ensureTimerWheel();
+        scheduledTimerDeadline = NULL_VALUE;
+        expiredCount = 0;
+
+        timerWheel.poll(timestamp, this);
+
+        Arrays.sort(expiredToyIds, 0, expiredCount);
+        for (int i = 0; i < expiredCount; i++) {
+            advance(expiredToyIds[i], timestamp);
+        }
+
+        scheduleClusterTimer();
+
+        return true;
+    }
+
+    @Override
+    public void onExpiry(long toyId) {
+        if (expiredCount == expiredToyIds.length) {
+            expiredToyIds = Arrays.copyOf(expiredToyIds, expiredCount * 2);
+        }
+        expiredToyIds[expiredCount++] = toyId;
+    }
+
+    private void advance(long toyId, long timestamp) {
+        final ToyRecord toy = toys.get(toyId);
+        final ToyStatus previousStatus = toy.status();
+        final ToyStatus nextStatus = nextStatus(previousStatus);
+
+        if (nextStatus.isValid()) {
+            toys.updateStatus(toy, nextStatus, timestamp);
+            listener.onStageComplete(toy, previousStatus, timestamp);
+            onStatusChange(toys.get(toyId), timestamp);
+        }
+    }
+
+    /**
+     * The cluster time unit is only known once the log is being processed, so the wheel is created on first use
+     * and the deadlines of any toys loaded from a snapshot are rescheduled at that point.
+     */
+    private void ensureTimerWheel() {
+        if (null != timerWheel) {
+            return;
+        }
+
+        final TimeUnit timeUnit = cluster.timeUnit();
+        final long tickResolution = BitUtil.findNextPositivePowerOfTwo(timeUnit.convert(1, TimeUnit.SECONDS));
+        timerWheel = new StageTimerWheel(toys, tickResolution, cluster.time());
+
+        for (int i = 0, size = toys.size(); i < size; i++) {
+            final long deadline = toys.recordAt(i, restoredToy).deadline();
+            if (NULL_VALUE != deadline) {
+                timerWheel.schedule(i, deadline, cluster.time());
+            }
+        }
+    }
+
+    private void scheduleClusterTimer() {
+        if (0 == timerWheel.timerCount()) {
+            return;
+        }
+
+        final long deadline = timerWheel.currentTickTime();
+        if (NULL_VALUE == scheduledTimerDeadline || deadline < scheduledTimerDeadline) {
+            if (cluster.scheduleTimer(timerCorrelationId, deadline)) {
+                scheduledTimerDeadline = deadline;
+            }
+        }
+    }
+
+    private static ToyStatus nextStatus(ToyStatus status) {
+        switch (status) {
+            case PENDING:
+                return ToyStatus.SOURCED;
+            case SOURCED:
+                return ToyStatus.ASSEMBLED;
+            case ASSEMBLED:
+                return ToyStatus.COMPLETED;
+            default:
+                return ToyStatus.UNKNOWN;
+        }
+    }
+}
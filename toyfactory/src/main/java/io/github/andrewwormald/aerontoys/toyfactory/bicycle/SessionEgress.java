@@ -0,0 +1,168 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.Publication;
+import io.aeron.cluster.service.ClientSession;
+import io.aeron.cluster.service.Cluster;
+import io.github.andrewwormald.aerontoys.toyfactory.ToyFactoryCounters;
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.collections.Long2ObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+
+/**
+ * Sends responses to client sessions without dropping them when a session's egress is back-pressured.
+ *
+ * A response which cannot be offered is kept in a {@link SessionOutbox} for the session, and any later responses
+ * queue behind it to preserve order. Outboxes are retried at the start of every log callback and from the service's
+ * background work, coalescing queued responses into as few offers as possible. A session whose pending responses
+ * exceed the configured cap is closed rather than allowed to consume unbounded memory.
+ *
+ * Only the leader really sends responses, followers always succeed with a mocked offer, so outboxes only exist on the
+ * leader. Retrying from background work rather than a cluster timer keeps retries local to the leader and out of the
+ * log, as a timer scheduled only by the leader would be replicated to followers and could be lost in a failover.
+ */
+class SessionEgress {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionEgress.class);
+
+    /**
+     * Timer which used to retry outboxes, still recognised in case one is restored from an older snapshot.
+     */
+    private static final long RETRY_TIMER_ID = 2;
+
+    /**
+     * Coalesced offers stay within the maximum message length of the smallest permitted term length, so they are
+     * valid whatever the egress channel is configured with.
+     */
+    private static final int MAX_BATCH_LENGTH = 8 * 1024;
+
+    private final ToyPartition partition;
+    private final long retryTimerCorrelationId;
+    private final int maxPendingBytes;
+    private final Long2ObjectHashMap<SessionOutbox> outboxBySessionId = new Long2ObjectHashMap<>();
+    private final ArrayList<SessionOutbox> pendingOutboxes = new ArrayList<>();
+    private Cluster cluster;
+
+    SessionEgress(ToyPartition partition, int maxPendingBytes) {
+        this.partition = partition;
+        this.retryTimerCorrelationId = partition.timerCorrelationId(RETRY_TIMER_ID);
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    static SessionEgress fromSystemProperties(ToyPartition partition) {
+        return new SessionEgress(
+            partition, Integer.getInteger("toyfactory.egress.session.max.pending.bytes", 1024 * 1024));
+    }
+
+    void onStart(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Send a response, or queue it for retry if it cannot be sent yet.
+     *
+     * @return true if the response was offered immediately.
+     */
+    boolean send(ClientSession session, DirectBuffer buffer, int offset, int length) {
+        if (session.isClosing()) {
+            return false;
+        }
+
+        SessionOutbox outbox = outboxBySessionId.get(session.id());
+        if (null == outbox || outbox.isEmpty()) {
+            final long result = session.offer(buffer, offset, length);
+            if (result > 0) {
+                return true;
+            }
+            if (Publication.CLOSED == result || Publication.MAX_POSITION_EXCEEDED == result) {
+                LOGGER.warn("Dropping response to session {} with closed egress (result: {})", session.id(), result);
+                return false;
+            }
+
+            if (null == outbox) {
+                outbox = newOutbox(session);
+            }
+        }
+
+        if (outbox.pendingBytes() + length > maxPendingBytes) {
+            LOGGER.warn("Closing session {} with {} bytes of responses pending, limit is {}",
+                session.id(), outbox.pendingBytes(), maxPendingBytes);
+            closeSession(session);
+            return false;
+        }
+
+        if (outbox.isEmpty()) {
+            pendingOutboxes.add(outbox);
+        }
+        outbox.append(buffer, offset, length);
+
+        return false;
+    }
+
+    /**
+     * Retry sending the responses pending for every session.
+     *
+     * @return the number of sessions whose pending responses were all sent.
+     */
+    int retry() {
+        int workCount = 0;
+        for (int i = pendingOutboxes.size() - 1; i >= 0; i--) {
+            final SessionOutbox outbox = pendingOutboxes.get(i);
+            outbox.drain(MAX_BATCH_LENGTH);
+            if (outbox.isEmpty()) {
+                final int lastIndex = pendingOutboxes.size() - 1;
+                pendingOutboxes.set(i, pendingOutboxes.get(lastIndex));
+                pendingOutboxes.remove(lastIndex);
+                workCount++;
+            }
+        }
+
+        return workCount;
+    }
+
+    /**
+     * @return true if the timer belonged to the session egress, which no longer schedules any.
+     */
+    boolean onTimerEvent(long correlationId) {
+        return retryTimerCorrelationId == correlationId;
+    }
+
+    void onSessionClose(long sessionId) {
+        final SessionOutbox outbox = outboxBySessionId.remove(sessionId);
+        if (null != outbox) {
+            if (!outbox.isEmpty()) {
+                LOGGER.warn("Discarding {} bytes of responses for closed session {}", outbox.pendingBytes(), sessionId);
+                pendingOutboxes.remove(outbox);
+            }
+            outbox.close();
+        }
+    }
+
+    void close() {
+        outboxBySessionId.values().forEach(CloseHelper::close);
+        outboxBySessionId.clear();
+        pendingOutboxes.clear();
+    }
+
+    private SessionOutbox newOutbox(ClientSession session) {
+        final SessionOutbox outbox = new SessionOutbox(
+            session,
+            cluster.aeron().addCounter(
+                ToyFactoryCounters.SESSION_EGRESS_LAG_TYPE_ID,
+                "Session egress lag in bytes - clusterSessionId=" + session.id() + " partition=" + partition));
+        outboxBySessionId.put(session.id(), outbox);
+
+        return outbox;
+    }
+
+    private void closeSession(ClientSession session) {
+        final SessionOutbox outbox = outboxBySessionId.remove(session.id());
+        if (null != outbox) {
+            pendingOutboxes.remove(outbox);
+            outbox.close();
+        }
+        cluster.closeClientSession(session.id());
+    }
+}
@@ -0,0 +1,106 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.Counter;
+import io.aeron.cluster.service.ClientSession;
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableDirectByteBuffer;
+
+import java.util.Arrays;
+
+/**
+ * Responses for a single client session which could not be offered because its egress was back-pressured, kept in
+ * order so they can be retried later. Pending messages are stored back to back so a run of them can be coalesced
+ * into a single offer.
+ */
+final class SessionOutbox implements AutoCloseable {
+    private final ClientSession session;
+    private final Counter lagCounter;
+    private final ExpandableDirectByteBuffer buffer = new ExpandableDirectByteBuffer(4096);
+    private int[] lengths = new int[64];
+    private int headMessage;
+    private int tailMessage;
+    private int headOffset;
+    private int tailOffset;
+
+    SessionOutbox(ClientSession session, Counter lagCounter) {
+        this.session = session;
+        this.lagCounter = lagCounter;
+    }
+
+    ClientSession session() {
+        return session;
+    }
+
+    boolean isEmpty() {
+        return headMessage == tailMessage;
+    }
+
+    int pendingBytes() {
+        return tailOffset - headOffset;
+    }
+
+    void append(DirectBuffer src, int offset, int length) {
+        if (tailMessage == lengths.length) {
+            compact();
+            if (tailMessage == lengths.length) {
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+        }
+
+        buffer.putBytes(tailOffset, src, offset, length);
+        tailOffset += length;
+        lengths[tailMessage++] = length;
+        lagCounter.setOrdered(pendingBytes());
+    }
+
+    /**
+     * Offer pending messages in order, coalescing consecutive messages up to a batch length into one offer.
+     *
+     * @param maxBatchLength to coalesce up to, a single larger message is offered on its own.
+     * @return the result of the last offer, positive if everything pending was sent.
+     */
+    long drain(int maxBatchLength) {
+        long result = 1;
+        while (!isEmpty()) {
+            int batchLength = lengths[headMessage];
+            int batchEnd = headMessage + 1;
+            while (batchEnd < tailMessage && batchLength + lengths[batchEnd] <= maxBatchLength) {
+                batchLength += lengths[batchEnd++];
+            }
+
+            result = session.offer(buffer, headOffset, batchLength);
+            if (result < 0) {
+                break;
+            }
+
+            headMessage = batchEnd;
+            headOffset += batchLength;
+        }
+
+        if (isEmpty()) {
+            headMessage = tailMessage = headOffset = tailOffset = 0;
+        }
+        lagCounter.setOrdered(pendingBytes());
+
+        return result;
+    }
+
+    @Override
+    public void close() {
+        CloseHelper.close(lagCounter);
+    }
+
+    private void compact() {
+        if (headMessage > 0) {
+            final int pendingMessages = tailMessage - headMessage;
+            final int pendingBytes = pendingBytes();
+            System.arraycopy(lengths, headMessage, lengths, 0, pendingMessages);
+            buffer.putBytes(0, buffer, headOffset, pendingBytes);
+            headMessage = 0;
+            tailMessage = pendingMessages;
+            headOffset = 0;
+            tailOffset = pendingBytes;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import org.agrona.BitUtil;
+
+import java.util.Arrays;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Hierarchical timer wheel of toy stage deadlines, in cluster time. Not thread safe, it is only used from the
+ * clustered service thread.
+ *
+ * There are {@link #LEVELS} levels of {@link #SLOTS} slots, each slot of a level spanning a whole revolution of the
+ * level below, so the wheel covers {@code SLOTS^LEVELS} ticks ahead and any deadline beyond that waits in an overflow
+ * bucket. A timer goes into the lowest level whose current revolution holds its deadline, and as the wheel reaches
+ * each slot of a higher level the timers in it cascade down to lower levels, until they expire from the first level
+ * on the tick of their deadline. The overflow bucket is cascaded at the start of each revolution of the top level.
+ *
+ * Timers are the toy records themselves: a toy's deadline is held in its record and the records in each slot are
+ * chained through their {@link ToyRecord#prevByDeadline()} and {@link ToyRecord#nextByDeadline()} links, so the wheel
+ * costs a fixed array of slot heads however many timers are pending, and scheduling, cancelling and expiring a timer
+ * allocate nothing. The first record in a slot holds the slot, encoded as a negative index, as its previous link.
+ *
+ * A timer expires on the first poll at or after the end of the tick its deadline falls in, so which toys expire
+ * depends only on their deadlines and the cluster time of the poll.
+ */
+final class StageTimerWheel {
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int OVERFLOW_BUCKET = LEVELS * SLOTS;
+
+    @FunctionalInterface
+    interface ExpiryHandler {
+        /**
+         * A toy's deadline has passed. The wheel is part way through a poll, so the handler must not schedule or
+         * cancel timers.
+         */
+        void onExpiry(long toyId);
+    }
+
+    private final ToyStore toys;
+    private final int tickShift;
+    private final int[] heads = new int[OVERFLOW_BUCKET + 1];
+    private final ToyRecord timerRecord = new ToyRecord();
+    private final ToyRecord linkRecord = new ToyRecord();
+    private long currentTick;
+    private int timerCount;
+
+    /**
+     * @param tickResolution in cluster time units, a power of two.
+     * @param startTime      in cluster time from which the wheel starts.
+     */
+    StageTimerWheel(ToyStore toys, long tickResolution, long startTime) {
+        if (!BitUtil.isPowerOfTwo(tickResolution)) {
+            throw new IllegalArgumentException("tickResolution must be a power of two: " + tickResolution);
+        }
+
+        this.toys = toys;
+        this.tickShift = Long.numberOfTrailingZeros(tickResolution);
+        this.currentTick = startTime >> tickShift;
+        Arrays.fill(heads, ToyRecord.NULL_INDEX);
+    }
+
+    /**
+     * @return the number of toys with a deadline.
+     */
+    int timerCount() {
+        return timerCount;
+    }
+
+    /**
+     * @return cluster time at the end of the current tick, when a poll will next expire or cascade timers.
+     */
+    long currentTickTime() {
+        return (currentTick + 1) << tickShift;
+    }
+
+    /**
+     * Set the deadline of a toy which has none.
+     *
+     * @param index    of the toy in the store.
+     * @param deadline in cluster time, which may have passed, such as for a toy restored from a snapshot.
+     * @param now      in cluster time.
+     */
+    void schedule(int index, long deadline, long now) {
+        final long deadlineTick = deadline >> tickShift;
+        if (0 == timerCount) {
+            currentTick = Math.min(now >> tickShift, deadlineTick);
+        }
+
+        toys.recordAt(index, timerRecord).deadline(deadline);
+        link(index, bucket(deadlineTick));
+        timerCount++;
+    }
+
+    /**
+     * Clear the deadline of a toy, if it has one.
+     *
+     * @return true if the toy had a deadline.
+     */
+    boolean cancel(int index) {
+        final ToyRecord toy = toys.recordAt(index, timerRecord);
+        if (NULL_VALUE == toy.deadline()) {
+            return false;
+        }
+
+        toy.deadline(NULL_VALUE);
+        unlink(index);
+        timerCount--;
+        return true;
+    }
+
+    /**
+     * Expire the toys whose deadlines are in ticks which have ended by now, clearing their deadlines. The wheel
+     * advances a tick at a time, cascading timers as it goes, and jumps straight to now once it is empty.
+     *
+     * @return the number of toys expired.
+     */
+    int poll(long now, ExpiryHandler handler) {
+        final long nowTick = now >> tickShift;
+        int expired = 0;
+        while (timerCount > 0 && currentTick < nowTick) {
+            expired += expire((int) (currentTick & SLOT_MASK), handler);
+            currentTick++;
+            cascade();
+        }
+
+        if (0 == timerCount && currentTick < nowTick) {
+            currentTick = nowTick;
+        }
+
+        return expired;
+    }
+
+    private int expire(int bucket, ExpiryHandler handler) {
+        int index = heads[bucket];
+        heads[bucket] = ToyRecord.NULL_INDEX;
+
+        int expired = 0;
+        while (ToyRecord.NULL_INDEX != index) {
+            final ToyRecord toy = toys.recordAt(index, timerRecord);
+            final int nextIndex = toy.nextByDeadline();
+            toy.deadline(NULL_VALUE).prevByDeadline(ToyRecord.NULL_INDEX).nextByDeadline(ToyRecord.NULL_INDEX);
+            timerCount--;
+            expired++;
+            handler.onExpiry(toy.toyId());
+            index = nextIndex;
+        }
+
+        return expired;
+    }
+
+    /**
+     * Move the timers in the slots the current tick has just reached at each higher level down a level or more,
+     * starting from the highest level so timers cascade all the way down in one tick.
+     */
+    private void cascade() {
+        int level = 0;
+        while (level < LEVELS && 0 == (currentTick & ((1L << (SLOT_BITS * (level + 1))) - 1))) {
+            level++;
+        }
+
+        if (LEVELS == level) {
+            rebucket(OVERFLOW_BUCKET);
+        }
+        for (int k = Math.min(level, LEVELS - 1); k > 0; k--) {
+            rebucket(k * SLOTS + (int) ((currentTick >> (SLOT_BITS * k)) & SLOT_MASK));
+        }
+    }
+
+    private void rebucket(int bucket) {
+        int index = heads[bucket];
+        heads[bucket] = ToyRecord.NULL_INDEX;
+
+        while (ToyRecord.NULL_INDEX != index) {
+            final ToyRecord toy = toys.recordAt(index, timerRecord);
+            final int nextIndex = toy.nextByDeadline();
+            link(index, bucket(toy.deadline() >> tickShift));
+            index = nextIndex;
+        }
+    }
+
+    /**
+     * The lowest level whose current revolution holds the deadline, and the slot of the deadline in it. A slot of a
+     * higher level is always ahead of the current tick's slot in that level, so it is cascaded before it is due.
+     */
+    private int bucket(long deadlineTick) {
+        final long tick = Math.max(deadlineTick, currentTick);
+        for (int level = 0; level < LEVELS; level++) {
+            final int revolutionShift = SLOT_BITS * (level + 1);
+            if ((tick >> revolutionShift) == (currentTick >> revolutionShift)) {
+                return level * SLOTS + (int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK);
+            }
+        }
+
+        return OVERFLOW_BUCKET;
+    }
+
+    private void link(int index, int bucket) {
+        final int headIndex = heads[bucket];
+        toys.recordAt(index, linkRecord).prevByDeadline(headLink(bucket)).nextByDeadline(headIndex);
+        if (ToyRecord.NULL_INDEX != headIndex) {
+            toys.recordAt(headIndex, linkRecord).prevByDeadline(index);
+        }
+        heads[bucket] = index;
+    }
+
+    private void unlink(int index) {
+        final ToyRecord toy = toys.recordAt(index, linkRecord);
+        final int prevLink = toy.prevByDeadline();
+        final int nextIndex = toy.nextByDeadline();
+        toy.prevByDeadline(ToyRecord.NULL_INDEX).nextByDeadline(ToyRecord.NULL_INDEX);
+
+        if (prevLink < 0) {
+            heads[bucketOfHeadLink(prevLink)] = nextIndex;
+        } else {
+            toys.recordAt(prevLink, linkRecord).nextByDeadline(nextIndex);
+        }
+
+        if (ToyRecord.NULL_INDEX != nextIndex) {
+            toys.recordAt(nextIndex, linkRecord).prevByDeadline(prevLink);
+        }
+    }
+
+    /**
+     * Previous link of the first record in a slot, below {@link ToyRecord#NULL_INDEX} so it cannot be an index.
+     */
+    private static int headLink(int bucket) {
+        return ToyRecord.NULL_INDEX - 1 - bucket;
+    }
+
+    private static int bucketOfHeadLink(int headLink) {
+        return ToyRecord.NULL_INDEX - 1 - headLink;
+    }
+}
@@ -0,0 +1,247 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.cluster.service.ClientSession;
+import io.aeron.cluster.service.Cluster;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsHeartbeatEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyEventsSnapshotEndEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.collections.LongArrayList;
+import org.agrona.sbe.MessageEncoderFlyweight;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams every change to a partition's toys to subscribed sessions, so a client such as the gateway can keep a read
+ * model of the toys and serve reads without sending them through the log.
+ *
+ * Each change is numbered with a sequence which is part of the partition's state, so numbering continues on a new
+ * leader and a subscriber detects a lost message from a gap. Changes made while handling a log message are coalesced
+ * into ToyEvents messages, which are flushed before any response so a subscriber sees the effect of its own commands
+ * before their responses. A subscriber catches up by paging through every toy with ToyEventsSnapshotCommands while
+ * applying the events it receives meanwhile, which is consistent because both carry the whole state of a toy and
+ * arrive in the order they were sent.
+ *
+ * While there are subscribers, a heartbeat timer sends them the latest sequence and log position, so a subscriber can
+ * bound the staleness of its view while nothing changes and detect lost trailing events.
+ */
+class ToyEventPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ToyEventPublisher.class);
+
+    private static final long HEARTBEAT_TIMER_ID = 3;
+
+    /**
+     * Events and snapshot chunks fit a single egress fragment at the default MTU, like the pages of a customer's toys.
+     */
+    private static final int MAX_CHUNK_LENGTH = 1024;
+    private static final int EVENTS_PER_CHUNK = (MAX_CHUNK_LENGTH - MessageHeaderEncoder.ENCODED_LENGTH -
+        ToyEventsEncoder.BLOCK_LENGTH - ToyEventsEncoder.ToysEncoder.HEADER_SIZE) /
+        ToyEventsEncoder.ToysEncoder.sbeBlockLength();
+    private static final int TOYS_PER_SNAPSHOT_CHUNK = (MAX_CHUNK_LENGTH - MessageHeaderEncoder.ENCODED_LENGTH -
+        ToyEventsSnapshotEncoder.BLOCK_LENGTH - ToyEventsSnapshotEncoder.ToysEncoder.HEADER_SIZE) /
+        ToyEventsSnapshotEncoder.ToysEncoder.sbeBlockLength();
+
+    private final ToyPartition partition;
+    private final ToyStore toys;
+    private final SessionEgress sessionEgress;
+    private final long heartbeatTimerCorrelationId;
+    private final long heartbeatIntervalMs;
+    private final int snapshotPageSize;
+    private final LongArrayList subscriberSessionIds = new LongArrayList();
+    private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final ToyEventsEncoder toyEventsEncoder = new ToyEventsEncoder();
+    private final ToyEventsSnapshotEncoder snapshotEncoder = new ToyEventsSnapshotEncoder();
+    private final ToyEventsSnapshotEndEncoder snapshotEndEncoder = new ToyEventsSnapshotEndEncoder();
+    private final ToyEventsHeartbeatEncoder heartbeatEncoder = new ToyEventsHeartbeatEncoder();
+    private final long[] pendingToyIds = new long[EVENTS_PER_CHUNK];
+    private final long[] pendingCustomerIds = new long[EVENTS_PER_CHUNK];
+    private final ToyStatusCode[] pendingStatuses = new ToyStatusCode[EVENTS_PER_CHUNK];
+    private int pendingCount;
+    private long sequence;
+    private Cluster cluster;
+
+    ToyEventPublisher(
+        ToyPartition partition,
+        ToyStore toys,
+        SessionEgress sessionEgress,
+        long heartbeatIntervalMs,
+        int snapshotPageSize) {
+        this.partition = partition;
+        this.toys = toys;
+        this.sessionEgress = sessionEgress;
+        this.heartbeatTimerCorrelationId = partition.timerCorrelationId(HEARTBEAT_TIMER_ID);
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.snapshotPageSize = snapshotPageSize;
+    }
+
+    static ToyEventPublisher fromSystemProperties(ToyPartition partition, ToyStore toys, SessionEgress sessionEgress) {
+        return new ToyEventPublisher(
+            partition,
+            toys,
+            sessionEgress,
+            Long.getLong("toyfactory.events.heartbeat.ms", 100),
+            Integer.getInteger("toyfactory.events.snapshot.page.size", 1000));
+    }
+
+    void onStart(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * Number the change to a toy which has just been created or changed status, and queue it for subscribers.
+     */
+    void onToyChange(ToyRecord toy) {
+        sequence++;
+        if (subscriberSessionIds.isEmpty()) {
+            return;
+        }
+
+        if (EVENTS_PER_CHUNK == pendingCount) {
+            flush();
+        }
+        pendingToyIds[pendingCount] = toy.toyId();
+        pendingCustomerIds[pendingCount] = toy.customerId();
+        pendingStatuses[pendingCount] = toy.status().toCode();
+        pendingCount++;
+    }
+
+    /**
+     * Send the changes queued since the last flush to every subscriber.
+     */
+    void flush() {
+        if (0 == pendingCount) {
+            return;
+        }
+
+        final ToyEventsEncoder.ToysEncoder toysEncoder = toyEventsEncoder
+            .wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .partitionId(partition.id())
+            .firstSequence(sequence - pendingCount + 1)
+            .logPosition(cluster.logPosition())
+            .timestamp(cluster.time())
+            .toysCount(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            toysEncoder.next()
+                .toyId(pendingToyIds[i])
+                .customerId(pendingCustomerIds[i])
+                .status(pendingStatuses[i]);
+        }
+        pendingCount = 0;
+
+        for (int i = 0, size = subscriberSessionIds.size(); i < size; i++) {
+            send(cluster.getClientSession(subscriberSessionIds.getLong(i)), toyEventsEncoder);
+        }
+    }
+
+    /**
+     * Subscribe a session to events, if it is not already, and send it a page of toys from an index in creation order
+     * followed by the sequence of the last event it was sent before the page.
+     */
+    void snapshot(ClientSession session, int fromIndex) {
+        flush();
+        if (!subscriberSessionIds.containsLong(session.id())) {
+            subscriberSessionIds.addLong(session.id());
+            LOGGER.info("Session {} subscribed to toy events for partition {}", session.id(), partition);
+        }
+        scheduleHeartbeat();
+
+        final int size = toys.size();
+        final int startIndex = Math.max(0, fromIndex);
+        int index = startIndex;
+        final int pageEnd = (int) Math.min(size, (long) index + snapshotPageSize);
+        while (index < pageEnd) {
+            final int chunkEnd = Math.min(pageEnd, index + TOYS_PER_SNAPSHOT_CHUNK);
+            final ToyEventsSnapshotEncoder.ToysEncoder toysEncoder = snapshotEncoder
+                .wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .partitionId(partition.id())
+                .toysCount(chunkEnd - index);
+            for (; index < chunkEnd; index++) {
+                final ToyRecord toy = toys.recordAt(index);
+                toysEncoder.next()
+                    .toyId(toy.toyId())
+                    .customerId(toy.customerId())
+                    .status(toy.status().toCode());
+            }
+            send(session, snapshotEncoder);
+        }
+
+        snapshotEndEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+            .partitionId(partition.id())
+            .partitionCount(partition.count())
+            .sequence(sequence)
+            .logPosition(cluster.logPosition())
+            .timestamp(cluster.time())
+            .fromIndex(startIndex)
+            .nextIndex(index < size ? index : ToyEventsSnapshotEndEncoder.nextIndexNullValue());
+        send(session, snapshotEndEncoder);
+    }
+
+    /**
+     * @return true if the timer belonged to the publisher.
+     */
+    boolean onTimerEvent(long correlationId) {
+        if (heartbeatTimerCorrelationId != correlationId) {
+            return false;
+        }
+
+        if (!subscriberSessionIds.isEmpty()) {
+            flush();
+            heartbeatEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .partitionId(partition.id())
+                .partitionCount(partition.count())
+                .sequence(sequence)
+                .logPosition(cluster.logPosition())
+                .timestamp(cluster.time());
+            for (int i = 0, size = subscriberSessionIds.size(); i < size; i++) {
+                send(cluster.getClientSession(subscriberSessionIds.getLong(i)), heartbeatEncoder);
+            }
+            scheduleHeartbeat();
+        }
+
+        return true;
+    }
+
+    void onSessionClose(long sessionId) {
+        if (subscriberSessionIds.removeLong(sessionId)) {
+            LOGGER.info("Session {} unsubscribed from toy events for partition {}", sessionId, partition);
+        }
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    LongArrayList subscriberSessionIds() {
+        return subscriberSessionIds;
+    }
+
+    /**
+     * Restore the sequence and subscribers from a snapshot. The heartbeat timer is restored with the cluster's timers.
+     */
+    void onLoadSnapshot(long sequence, LongArrayList subscriberSessionIds) {
+        this.sequence = sequence;
+        this.subscriberSessionIds.clear();
+        this.subscriberSessionIds.addAll(subscriberSessionIds);
+    }
+
+    private void send(ClientSession session, MessageEncoderFlyweight encoder) {
+        if (null != session) {
+            sessionEgress.send(session, buffer, 0, MessageHeaderEncoder.ENCODED_LENGTH + encoder.encodedLength());
+        }
+    }
+
+    /**
+     * Scheduling replaces any pending heartbeat, so a new subscription also restarts a heartbeat which was lost.
+     */
+    private void scheduleHeartbeat() {
+        cluster.scheduleTimer(
+            heartbeatTimerCorrelationId,
+            cluster.time() + cluster.timeUnit().convert(heartbeatIntervalMs, TimeUnit.MILLISECONDS));
+    }
+}
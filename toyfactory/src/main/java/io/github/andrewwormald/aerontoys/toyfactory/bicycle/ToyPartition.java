@@ -0,0 +1,66 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import org.agrona.collections.Hashing;
+
+/**
+ * The share of the toy keyspace owned by one of several {@link BicycleService}s running side by side in a cluster.
+ *
+ * Every service sees every command on the log, so a command is applied only by the partition which owns it. A toy
+ * is owned by the partition its toyId maps to, and toyIds are generated so that a partition only assigns ids it owns.
+ * New toys are created by the partition which owns the customer, so all of a customer's toys live in one partition.
+ *
+ * Timers are also delivered to every service, so each partition offsets its timer correlation ids into its own range.
+ */
+final class ToyPartition {
+    private final int id;
+    private final int count;
+
+    ToyPartition(int id, int count) {
+        if (count < 1 || id < 0 || id >= count) {
+            throw new IllegalArgumentException("invalid partition " + id + " of " + count);
+        }
+
+        this.id = id;
+        this.count = count;
+    }
+
+    int id() {
+        return id;
+    }
+
+    int count() {
+        return count;
+    }
+
+    boolean ownsToy(long toyId) {
+        return Math.floorMod(toyId, count) == id;
+    }
+
+    boolean ownsCustomer(long customerId) {
+        return Math.floorMod(Hashing.hash(customerId), count) == id;
+    }
+
+    /**
+     * @return the first toyId this partition assigns, following ids are {@link #count()} apart.
+     */
+    long firstToyId() {
+        return 0 == id ? count : id;
+    }
+
+    /**
+     * @param timerId unique within the partition, less than 2^32.
+     * @return correlation id unique across partitions, equal to the timerId for the first partition.
+     */
+    long timerCorrelationId(long timerId) {
+        return ((long) id << 32) | timerId;
+    }
+
+    boolean ownsTimer(long correlationId) {
+        return (correlationId >>> 32) == id;
+    }
+
+    @Override
+    public String toString() {
+        return id + "/" + count;
+    }
+}
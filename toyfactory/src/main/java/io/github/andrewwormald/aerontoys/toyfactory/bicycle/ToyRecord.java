@@ -0,0 +1,161 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import org.agrona.MutableDirectBuffer;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Flyweight over a fixed-width toy record held by a {@link ToyStore}.
+ *
+ * Record layout (little endian, 8 byte aligned):
+ * <pre>
+ *   0: toyId           int64
+ *   8: customerId      int64
+ *  16: createdAt       int64 cluster time
+ *  24: updatedAt       int64 cluster time
+ *  32: status          int32
+ *  36: nextByCustomer  int32 index of the customer's next toy, or NULL_INDEX
+ *  40: deadline        int64 cluster time the workflow advances the toy, or NULL_VALUE
+ *  48: prevByDeadline  int32 index of the previous toy in the same timer wheel slot, or the slot, see StageTimerWheel
+ *  52: nextByDeadline  int32 index of the next toy in the same timer wheel slot, or NULL_INDEX
+ *  56: prevByStatus    int32 index of the previous toy with the same status, or NULL_INDEX
+ *  60: nextByStatus    int32 index of the next toy with the same status, or NULL_INDEX
+ * </pre>
+ *
+ * The index links are maintained by the store to chain records into its secondary indexes, and the deadline links by
+ * the {@link StageTimerWheel} to chain records into its slots.
+ *
+ * Instances are reused by the store, so a record is only valid until the next call on the store.
+ */
+public final class ToyRecord {
+    static final int TOY_ID_OFFSET = 0;
+    static final int CUSTOMER_ID_OFFSET = 8;
+    static final int CREATED_AT_OFFSET = 16;
+    static final int UPDATED_AT_OFFSET = 24;
+    static final int STATUS_OFFSET = 32;
+    static final int NEXT_BY_CUSTOMER_OFFSET = 36;
+    static final int DEADLINE_OFFSET = 40;
+    static final int PREV_BY_DEADLINE_OFFSET = 48;
+    static final int NEXT_BY_DEADLINE_OFFSET = 52;
+    static final int PREV_BY_STATUS_OFFSET = 56;
+    static final int NEXT_BY_STATUS_OFFSET = 60;
+
+    static final int NULL_INDEX = -1;
+
+    public static final int LENGTH = 64;
+
+    private MutableDirectBuffer buffer;
+    private int offset;
+
+    ToyRecord wrap(MutableDirectBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    ToyRecord init(long toyId, long customerId, ToyStatus status, long timestamp) {
+        buffer.putLong(offset + TOY_ID_OFFSET, toyId);
+        buffer.putLong(offset + CUSTOMER_ID_OFFSET, customerId);
+        buffer.putLong(offset + CREATED_AT_OFFSET, timestamp);
+        buffer.putLong(offset + UPDATED_AT_OFFSET, timestamp);
+        buffer.putInt(offset + STATUS_OFFSET, status.getValue());
+        buffer.putLong(offset + DEADLINE_OFFSET, NULL_VALUE);
+        buffer.putInt(offset + PREV_BY_DEADLINE_OFFSET, NULL_INDEX);
+        buffer.putInt(offset + NEXT_BY_DEADLINE_OFFSET, NULL_INDEX);
+        buffer.putInt(offset + NEXT_BY_CUSTOMER_OFFSET, NULL_INDEX);
+        buffer.putInt(offset + PREV_BY_STATUS_OFFSET, NULL_INDEX);
+        buffer.putInt(offset + NEXT_BY_STATUS_OFFSET, NULL_INDEX);
+        return this;
+    }
+
+    public long toyId() {
+        return buffer.getLong(offset + TOY_ID_OFFSET);
+    }
+
+    public long customerId() {
+        return buffer.getLong(offset + CUSTOMER_ID_OFFSET);
+    }
+
+    public long createdAt() {
+        return buffer.getLong(offset + CREATED_AT_OFFSET);
+    }
+
+    public long updatedAt() {
+        return buffer.getLong(offset + UPDATED_AT_OFFSET);
+    }
+
+    public ToyStatus status() {
+        return ToyStatus.fromValue(buffer.getInt(offset + STATUS_OFFSET));
+    }
+
+    /**
+     * Set the status without updating the store's status index, status changes go through
+     * {@link ToyStore#updateStatus(ToyRecord, ToyStatus, long)}.
+     */
+    ToyRecord status(ToyStatus status, long timestamp) {
+        buffer.putInt(offset + STATUS_OFFSET, status.getValue());
+        buffer.putLong(offset + UPDATED_AT_OFFSET, timestamp);
+        return this;
+    }
+
+    public long deadline() {
+        return buffer.getLong(offset + DEADLINE_OFFSET);
+    }
+
+    ToyRecord deadline(long deadline) {
+        buffer.putLong(offset + DEADLINE_OFFSET, deadline);
+        return this;
+    }
+
+    int prevByDeadline() {
+        return buffer.getInt(offset + PREV_BY_DEADLINE_OFFSET);
+    }
+
+    ToyRecord prevByDeadline(int link) {
+        buffer.putInt(offset + PREV_BY_DEADLINE_OFFSET, link);
+        return this;
+    }
+
+    int nextByDeadline() {
+        return buffer.getInt(offset + NEXT_BY_DEADLINE_OFFSET);
+    }
+
+    ToyRecord nextByDeadline(int index) {
+        buffer.putInt(offset + NEXT_BY_DEADLINE_OFFSET, index);
+        return this;
+    }
+
+    int nextByCustomer() {
+        return buffer.getInt(offset + NEXT_BY_CUSTOMER_OFFSET);
+    }
+
+    ToyRecord nextByCustomer(int index) {
+        buffer.putInt(offset + NEXT_BY_CUSTOMER_OFFSET, index);
+        return this;
+    }
+
+    int prevByStatus() {
+        return buffer.getInt(offset + PREV_BY_STATUS_OFFSET);
+    }
+
+    ToyRecord prevByStatus(int index) {
+        buffer.putInt(offset + PREV_BY_STATUS_OFFSET, index);
+        return this;
+    }
+
+    int nextByStatus() {
+        return buffer.getInt(offset + NEXT_BY_STATUS_OFFSET);
+    }
+
+    ToyRecord nextByStatus(int index) {
+        buffer.putInt(offset + NEXT_BY_STATUS_OFFSET, index);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ToyRecord{id=%d, customerId=%d, status=%s, createdAt=%d, updatedAt=%d}",
+                toyId(), customerId(), status(), createdAt(), updatedAt());
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.Image;
+import io.aeron.cluster.client.ClusterException;
+import io.aeron.logbuffer.FragmentHandler;
+import io.aeron.logbuffer.Header;
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotBatchDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotBeginDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotCreateRequestsDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotEndDecoder;
+import org.agrona.DirectBuffer;
+import org.agrona.collections.LongArrayList;
+import org.agrona.concurrent.IdleStrategy;
+
+import static io.aeron.Aeron.NULL_VALUE;
+
+/**
+ * Rebuilds a {@link ToyStore} and {@link CreateRequestCache} from a snapshot written by {@link ToySnapshotTaker}.
+ */
+class ToySnapshotLoader implements FragmentHandler {
+    private static final int FRAGMENT_LIMIT = 10;
+
+    private final Image image;
+    private final ToyStore toys;
+    private final CreateRequestCache createRequests;
+    private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+    private final ToySnapshotBeginDecoder beginDecoder = new ToySnapshotBeginDecoder();
+    private final ToySnapshotBatchDecoder batchDecoder = new ToySnapshotBatchDecoder();
+    private final ToySnapshotCreateRequestsDecoder createRequestsDecoder = new ToySnapshotCreateRequestsDecoder();
+    private final ToySnapshotEndDecoder endDecoder = new ToySnapshotEndDecoder();
+    private boolean inSnapshot = false;
+    private boolean isDone = false;
+    private long nextToyId;
+    private long eventSequence;
+    private final LongArrayList eventSubscriberSessionIds = new LongArrayList();
+
+    ToySnapshotLoader(Image image, ToyStore toys, CreateRequestCache createRequests) {
+        this.image = image;
+        this.toys = toys;
+        this.createRequests = createRequests;
+    }
+
+    /**
+     * Poll the snapshot image until the end marker has been loaded.
+     *
+     * @param idleStrategy to use while waiting for the snapshot to be replayed.
+     */
+    void load(IdleStrategy idleStrategy) {
+        idleStrategy.reset();
+        while (!isDone) {
+            final int fragments = image.poll(this, FRAGMENT_LIMIT);
+            if (0 == fragments && image.isEndOfStream()) {
+                throw new ClusterException("unexpected end of snapshot image");
+            }
+
+            idleStrategy.idle(fragments);
+        }
+    }
+
+    long nextToyId() {
+        return nextToyId;
+    }
+
+    long eventSequence() {
+        return eventSequence;
+    }
+
+    LongArrayList eventSubscriberSessionIds() {
+        return eventSubscriberSessionIds;
+    }
+
+    @Override
+    public void onFragment(DirectBuffer buffer, int offset, int length, Header header) {
+        headerDecoder.wrap(buffer, offset);
+        if (headerDecoder.schemaId() != MessageHeaderDecoder.SCHEMA_ID) {
+            throw new ClusterException("unexpected snapshot schemaId: " + headerDecoder.schemaId());
+        }
+
+        switch (headerDecoder.templateId()) {
+            case ToySnapshotBeginDecoder.TEMPLATE_ID:
+                beginDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                nextToyId = beginDecoder.nextToyId();
+                inSnapshot = true;
+                break;
+
+            case ToySnapshotBatchDecoder.TEMPLATE_ID:
+                if (!inSnapshot) {
+                    throw new ClusterException("toy batch before snapshot begin");
+                }
+                batchDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                for (final ToySnapshotBatchDecoder.ToysDecoder toy : batchDecoder.toys()) {
+                    final ToyStatus status = ToyStatus.fromCode(toy.status());
+                    final long deadline = toy.deadline();
+                    toys.add(toy.toyId(), toy.customerId(), status, toy.createdAt())
+                        .status(status, toy.updatedAt())
+                        .deadline(ToySnapshotBatchDecoder.ToysDecoder.deadlineNullValue() == deadline ?
+                            NULL_VALUE : deadline);
+                }
+                break;
+
+            case ToySnapshotCreateRequestsDecoder.TEMPLATE_ID:
+                if (!inSnapshot) {
+                    throw new ClusterException("create requests before snapshot begin");
+                }
+                createRequestsDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                for (final ToySnapshotCreateRequestsDecoder.RequestsDecoder request :
+                    createRequestsDecoder.requests()) {
+                    final long toyId = request.toyId();
+                    createRequests.put(toys.get(toyId).customerId(), request.requestId(), toyId, request.timestamp());
+                }
+                break;
+
+            case ToySnapshotEndDecoder.TEMPLATE_ID:
+                endDecoder.wrapAndApplyHeader(buffer, offset, headerDecoder);
+                if (!inSnapshot || endDecoder.toyCount() != toys.size()) {
+                    throw new ClusterException(
+                        "snapshot end mismatch: expected toyCount=" + endDecoder.toyCount() + " loaded=" + toys.size());
+                }
+                final long sequence = endDecoder.eventSequence();
+                eventSequence = ToySnapshotEndDecoder.eventSequenceNullValue() == sequence ? 0 : sequence;
+                for (final ToySnapshotEndDecoder.EventSubscribersDecoder subscriber : endDecoder.eventSubscribers()) {
+                    eventSubscriberSessionIds.addLong(subscriber.clusterSessionId());
+                }
+                isDone = true;
+                break;
+
+            default:
+                throw new ClusterException("unexpected snapshot templateId: " + headerDecoder.templateId());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.ExclusivePublication;
+import io.aeron.Publication;
+import io.aeron.cluster.client.ClusterException;
+import io.aeron.logbuffer.BufferClaim;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotBatchEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotBeginEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotCreateRequestsEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToySnapshotEndEncoder;
+import org.agrona.collections.LongArrayList;
+import org.agrona.concurrent.IdleStrategy;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Streams the state of a {@link ToyStore} to a snapshot publication as a begin marker, batches of toys sized to fit
+ * a single fragment, batches of recent create requests likewise, and an end marker with the toy event sequence and
+ * subscribers. Each message is encoded in place with {@link ExclusivePublication#tryClaim} and the caller's idle
+ * strategy is used while the publication is back pressured. A CRC32C checksum of the messages is kept, so snapshots
+ * taken by different members can be compared.
+ */
+class ToySnapshotTaker {
+    private static final int BATCH_HEADER_LENGTH =
+        MessageHeaderEncoder.ENCODED_LENGTH + ToySnapshotBatchEncoder.BLOCK_LENGTH +
+        ToySnapshotBatchEncoder.ToysEncoder.HEADER_SIZE;
+    private static final int CREATE_REQUESTS_HEADER_LENGTH =
+        MessageHeaderEncoder.ENCODED_LENGTH + ToySnapshotCreateRequestsEncoder.BLOCK_LENGTH +
+        ToySnapshotCreateRequestsEncoder.RequestsEncoder.HEADER_SIZE;
+
+    private final ExclusivePublication publication;
+    private final IdleStrategy idleStrategy;
+    private final int batchLimit;
+    private final int createRequestsLimit;
+    private final BufferClaim bufferClaim = new BufferClaim();
+    private final CRC32C checksum = new CRC32C();
+    private final byte[] checksumBuffer;
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final ToySnapshotBeginEncoder beginEncoder = new ToySnapshotBeginEncoder();
+    private final ToySnapshotBatchEncoder batchEncoder = new ToySnapshotBatchEncoder();
+    private final ToySnapshotCreateRequestsEncoder createRequestsEncoder = new ToySnapshotCreateRequestsEncoder();
+    private final ToySnapshotEndEncoder endEncoder = new ToySnapshotEndEncoder();
+
+    ToySnapshotTaker(ExclusivePublication publication, IdleStrategy idleStrategy) {
+        this.publication = publication;
+        this.idleStrategy = idleStrategy;
+        this.batchLimit = (publication.maxPayloadLength() - BATCH_HEADER_LENGTH) /
+            ToySnapshotBatchEncoder.ToysEncoder.sbeBlockLength();
+        this.createRequestsLimit = (publication.maxPayloadLength() - CREATE_REQUESTS_HEADER_LENGTH) /
+            ToySnapshotCreateRequestsEncoder.RequestsEncoder.sbeBlockLength();
+        this.checksumBuffer = new byte[publication.maxPayloadLength()];
+    }
+
+    /**
+     * @return CRC32C of the messages written by {@link #snapshot}.
+     */
+    long checksum() {
+        return checksum.getValue();
+    }
+
+    /**
+     * Write the full snapshot.
+     *
+     * @param toys      to be snapshot in creation order.
+     * @param nextToyId      next id the service will allocate.
+     * @param createRequests recent create requests, to be snapshot oldest first.
+     * @param events         whose sequence and subscribers are part of the service state.
+     * @return number of bytes appended to the publication.
+     */
+    long snapshot(ToyStore toys, long nextToyId, CreateRequestCache createRequests, ToyEventPublisher events) {
+        final long startPosition = publication.position();
+        final int toyCount = toys.size();
+
+        claim(MessageHeaderEncoder.ENCODED_LENGTH + ToySnapshotBeginEncoder.BLOCK_LENGTH);
+        beginEncoder.wrapAndApplyHeader(bufferClaim.buffer(), bufferClaim.offset(), headerEncoder)
+            .nextToyId(nextToyId)
+            .toyCount(toyCount);
+        commit();
+
+        for (int index = 0; index < toyCount; index += batchLimit) {
+            writeBatch(toys, index, Math.min(batchLimit, toyCount - index));
+        }
+
+        final int createRequestCount = createRequests.size();
+        for (int age = 0; age < createRequestCount; age += createRequestsLimit) {
+            writeCreateRequests(createRequests, age, Math.min(createRequestsLimit, createRequestCount - age));
+        }
+
+        final LongArrayList subscriberSessionIds = events.subscriberSessionIds();
+        claim(MessageHeaderEncoder.ENCODED_LENGTH + ToySnapshotEndEncoder.BLOCK_LENGTH +
+            ToySnapshotEndEncoder.EventSubscribersEncoder.HEADER_SIZE +
+            (subscriberSessionIds.size() * ToySnapshotEndEncoder.EventSubscribersEncoder.sbeBlockLength()));
+        final ToySnapshotEndEncoder.EventSubscribersEncoder subscribersEncoder = endEncoder
+            .wrapAndApplyHeader(bufferClaim.buffer(), bufferClaim.offset(), headerEncoder)
+            .toyCount(toyCount)
+            .eventSequence(events.sequence())
+            .eventSubscribersCount(subscriberSessionIds.size());
+        for (int i = 0, size = subscriberSessionIds.size(); i < size; i++) {
+            subscribersEncoder.next().clusterSessionId(subscriberSessionIds.getLong(i));
+        }
+        commit();
+
+        return publication.position() - startPosition;
+    }
+
+    private void writeBatch(ToyStore toys, int fromIndex, int count) {
+        claim(BATCH_HEADER_LENGTH + (count * ToySnapshotBatchEncoder.ToysEncoder.sbeBlockLength()));
+
+        final ToySnapshotBatchEncoder.ToysEncoder toysEncoder = batchEncoder
+            .wrapAndApplyHeader(bufferClaim.buffer(), bufferClaim.offset(), headerEncoder)
+            .toysCount(count);
+
+        for (int i = fromIndex, end = fromIndex + count; i < end; i++) {
+            final ToyRecord toy = toys.recordAt(i);
+            toysEncoder.next()
+                .toyId(toy.toyId())
+                .customerId(toy.customerId())
+                .createdAt(toy.createdAt())
+                .updatedAt(toy.updatedAt())
+                .status(toy.status().toCode())
+                .deadline(toy.deadline());
+        }
+
+        commit();
+    }
+
+    private void writeCreateRequests(CreateRequestCache createRequests, int fromAge, int count) {
+        claim(CREATE_REQUESTS_HEADER_LENGTH +
+            (count * ToySnapshotCreateRequestsEncoder.RequestsEncoder.sbeBlockLength()));
+
+        final ToySnapshotCreateRequestsEncoder.RequestsEncoder requestsEncoder = createRequestsEncoder
+            .wrapAndApplyHeader(bufferClaim.buffer(), bufferClaim.offset(), headerEncoder)
+            .requestsCount(count);
+
+        for (int age = fromAge, end = fromAge + count; age < end; age++) {
+            requestsEncoder.next()
+                .requestId(createRequests.requestIdAt(age))
+                .toyId(createRequests.toyIdAt(age))
+                .timestamp(createRequests.timestampAt(age));
+        }
+
+        commit();
+    }
+
+    private void commit() {
+        final int length = bufferClaim.length();
+        bufferClaim.buffer().getBytes(bufferClaim.offset(), checksumBuffer, 0, length);
+        checksum.update(checksumBuffer, 0, length);
+        bufferClaim.commit();
+    }
+
+    private void claim(int length) {
+        idleStrategy.reset();
+        while (true) {
+            final long result = publication.tryClaim(length, bufferClaim);
+            if (result > 0) {
+                return;
+            }
+
+            if (Publication.CLOSED == result || Publication.NOT_CONNECTED == result ||
+                Publication.MAX_POSITION_EXCEEDED == result) {
+                throw new ClusterException("unexpected snapshot publication state: " + result);
+            }
+
+            idleStrategy.idle();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import org.agrona.collections.Hashing;
+import org.agrona.collections.Long2LongHashMap;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Toy state for a single clustered service, kept as fixed-width {@link ToyRecord}s off-heap and indexed by toyId with
+ * a primitive map. Not thread safe, it is only accessed from the clustered service thread.
+ *
+ * Records are appended in creation order and never removed, so a record index is stable for the life of the store.
+ * They are held in fixed-size slabs of {@link #SLAB_RECORDS} records, found by the high bits of the index, so the
+ * store grows a slab at a time rather than by copying every record into a buffer twice the size, which would pause
+ * the service thread for longer the more toys there are. Offsets within a slab fit an int however many slabs there
+ * are, so the store holds up to {@link Integer#MAX_VALUE} toys.
+ *
+ * Secondary indexes by customer and by status are intrusive lists linked through the records themselves, with the
+ * list ends held in a primitive map for customers and in arrays for statuses. They are maintained incrementally as
+ * toys are added and change status, so neither costs an allocation per toy, and they are rebuilt as a snapshot is
+ * loaded rather than being part of it.
+ */
+public class ToyStore {
+    private static final long MISSING_INDEX = -1;
+
+    static final int SLAB_SHIFT = 14;
+    static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+    private static final int SLAB_MASK = SLAB_RECORDS - 1;
+
+    private final Long2LongHashMap indexByToyId;
+    private final Long2LongHashMap firstIndexByCustomerId;
+    private final Long2LongHashMap lastIndexByCustomerId;
+    private final Long2LongHashMap countByCustomerId;
+    private final int[] firstIndexByStatus = new int[ToyStatus.values().length];
+    private final int[] lastIndexByStatus = new int[ToyStatus.values().length];
+    private final int[] countByStatus = new int[ToyStatus.values().length];
+    private UnsafeBuffer[] slabs;
+    private int slabCount;
+    private final ToyRecord toyRecord = new ToyRecord();
+    private final ToyRecord linkRecord = new ToyRecord();
+    private int size;
+
+    public ToyStore(int initialCapacity) {
+        // The map's capacity is in slots, so it is sized to hold the initial capacity of toys within its load factor
+        this.indexByToyId = new Long2LongHashMap(
+            (int) Math.min(Integer.MAX_VALUE / 2, (long) Math.ceil(initialCapacity / Hashing.DEFAULT_LOAD_FACTOR)),
+            Hashing.DEFAULT_LOAD_FACTOR,
+            MISSING_INDEX);
+        this.firstIndexByCustomerId = new Long2LongHashMap(MISSING_INDEX);
+        this.lastIndexByCustomerId = new Long2LongHashMap(MISSING_INDEX);
+        this.countByCustomerId = new Long2LongHashMap(0);
+        this.slabs = new UnsafeBuffer[Math.max(1, (initialCapacity + SLAB_MASK) >>> SLAB_SHIFT)];
+        while (slabCount < slabs.length) {
+            addSlab();
+        }
+        Arrays.fill(firstIndexByStatus, ToyRecord.NULL_INDEX);
+        Arrays.fill(lastIndexByStatus, ToyRecord.NULL_INDEX);
+    }
+
+    /**
+     * Add a new toy.
+     *
+     * @return flyweight over the new record, valid until the next call on the store.
+     */
+    public ToyRecord add(long toyId, long customerId, ToyStatus status, long timestamp) {
+        if (indexByToyId.containsKey(toyId)) {
+            throw new IllegalStateException("toyId=" + toyId + " already exists");
+        }
+
+        if (Integer.MAX_VALUE == size) {
+            throw new IllegalStateException("ToyStore is full with " + size + " toys");
+        }
+
+        final int index = size;
+        if ((index >>> SLAB_SHIFT) == slabCount) {
+            addSlab();
+        }
+        indexByToyId.put(toyId, index);
+        size++;
+
+        recordAt(index, linkRecord).init(toyId, customerId, status, timestamp);
+        linkCustomer(index, customerId);
+        linkStatus(index, status);
+
+        return recordAt(index);
+    }
+
+    /**
+     * Change the status of a toy, keeping the status index up to date.
+     *
+     * @param toy       record from this store.
+     * @param status    to move the toy to.
+     * @param timestamp of the change.
+     */
+    public void updateStatus(ToyRecord toy, ToyStatus status, long timestamp) {
+        final ToyStatus previousStatus = toy.status();
+        if (previousStatus != status) {
+            final int index = (int) indexByToyId.get(toy.toyId());
+            unlinkStatus(index, previousStatus);
+            linkStatus(index, status);
+        }
+        toy.status(status, timestamp);
+    }
+
+    /**
+     * Find a toy by id.
+     *
+     * @return flyweight over the record, valid until the next call on the store, or null if not found.
+     */
+    public ToyRecord get(long toyId) {
+        final long index = indexByToyId.get(toyId);
+        return MISSING_INDEX == index ? null : recordAt((int) index);
+    }
+
+    /**
+     * Record at a position in creation order.
+     *
+     * @param index between 0 and {@link #size()} exclusive.
+     * @return flyweight over the record, valid until the next call on the store.
+     */
+    public ToyRecord recordAt(int index) {
+        return recordAt(index, toyRecord);
+    }
+
+    /**
+     * Record at a position in creation order, wrapped by a flyweight owned by the caller so that it is not
+     * invalidated by other calls on the store.
+     */
+    ToyRecord recordAt(int index, ToyRecord record) {
+        return record.wrap(slabs[index >>> SLAB_SHIFT], (index & SLAB_MASK) * ToyRecord.LENGTH);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of toys which currently have a status.
+     */
+    public int countByStatus(ToyStatus status) {
+        return countByStatus[status.getValue()];
+    }
+
+    /**
+     * @return the number of toys a customer has.
+     */
+    public int countByCustomer(long customerId) {
+        return (int) countByCustomerId.get(customerId);
+    }
+
+    /**
+     * Index of a toy, for use with {@link #recordAt(int)} and the secondary index links.
+     *
+     * @return index of the record or {@link ToyRecord#NULL_INDEX} if not found.
+     */
+    int indexOf(long toyId) {
+        final long index = indexByToyId.get(toyId);
+        return MISSING_INDEX == index ? ToyRecord.NULL_INDEX : (int) index;
+    }
+
+    /**
+     * Index of a customer's first toy, following toys are reached with {@link ToyRecord#nextByCustomer()} in
+     * creation order.
+     *
+     * @return index of the record or {@link ToyRecord#NULL_INDEX} if the customer has no toys.
+     */
+    int firstIndexByCustomer(long customerId) {
+        return (int) firstIndexByCustomerId.get(customerId);
+    }
+
+    /**
+     * Index of the first toy with a status, following toys are reached with {@link ToyRecord#nextByStatus()}.
+     *
+     * @return index of the record or {@link ToyRecord#NULL_INDEX} if no toy has the status.
+     */
+    int firstIndexByStatus(ToyStatus status) {
+        return firstIndexByStatus[status.getValue()];
+    }
+
+    /**
+     * Allocate the next slab of records. Only the array of slab references is copied when it is full, which is small
+     * as each slab holds many records.
+     */
+    private void addSlab() {
+        if (slabCount == slabs.length) {
+            slabs = Arrays.copyOf(slabs, slabs.length * 2);
+        }
+        slabs[slabCount++] = new UnsafeBuffer(ByteBuffer.allocateDirect(SLAB_RECORDS * ToyRecord.LENGTH));
+    }
+
+    private void linkCustomer(int index, long customerId) {
+        final int lastIndex = (int) lastIndexByCustomerId.get(customerId);
+        if (ToyRecord.NULL_INDEX == lastIndex) {
+            firstIndexByCustomerId.put(customerId, index);
+        } else {
+            recordAt(lastIndex, linkRecord).nextByCustomer(index);
+        }
+        lastIndexByCustomerId.put(customerId, index);
+        countByCustomerId.put(customerId, countByCustomerId.get(customerId) + 1);
+    }
+
+    private void linkStatus(int index, ToyStatus status) {
+        final int statusValue = status.getValue();
+        final int lastIndex = lastIndexByStatus[statusValue];
+        if (ToyRecord.NULL_INDEX == lastIndex) {
+            firstIndexByStatus[statusValue] = index;
+        } else {
+            recordAt(lastIndex, linkRecord).nextByStatus(index);
+        }
+        recordAt(index, linkRecord).prevByStatus(lastIndex).nextByStatus(ToyRecord.NULL_INDEX);
+        lastIndexByStatus[statusValue] = index;
+        countByStatus[statusValue]++;
+    }
+
+    private void unlinkStatus(int index, ToyStatus status) {
+        final int statusValue = status.getValue();
+        final ToyRecord record = recordAt(index, linkRecord);
+        final int prevIndex = record.prevByStatus();
+        final int nextIndex = record.nextByStatus();
+
+        if (ToyRecord.NULL_INDEX == prevIndex) {
+            firstIndexByStatus[statusValue] = nextIndex;
+        } else {
+            recordAt(prevIndex, linkRecord).nextByStatus(nextIndex);
+        }
+
+        if (ToyRecord.NULL_INDEX == nextIndex) {
+            lastIndexByStatus[statusValue] = prevIndex;
+        } else {
+            recordAt(nextIndex, linkRecord).prevByStatus(prevIndex);
+        }
+        countByStatus[statusValue]--;
+    }
+}
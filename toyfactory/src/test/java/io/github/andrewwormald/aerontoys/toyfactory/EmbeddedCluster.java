@@ -0,0 +1,292 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.CommonContext;
+import io.aeron.cluster.ClusteredMediaDriver;
+import io.aeron.cluster.client.AeronCluster;
+import io.aeron.cluster.client.EgressListener;
+import io.aeron.driver.MediaDriver;
+import io.aeron.logbuffer.Header;
+import io.github.andrewwormald.aerontoys.shared.ClusterMembership;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.BusySpinIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every member of a cluster in this JVM, for end to end tests and benchmarks of the real cluster path without
+ * launching separate processes.
+ *
+ * Members keep their state in a temporary directory and their Aeron directories alongside the default one, and are
+ * given a random port base with all their ports free on the loopback interface, so several embedded clusters can run
+ * on a host at once. A single member cluster is reached over IPC through its own media driver, while a multi-member
+ * cluster is reached over loopback UDP through a client media driver, so ingress can follow the leader. Closing the
+ * cluster stops every member and deletes all of its state.
+ */
+public class EmbeddedCluster implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedCluster.class);
+
+    private static final long CONNECT_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(30);
+    private static final int MIN_PORT_BASE = 30000;
+    private static final int MAX_PORT_BASE = 60000;
+    private static final int PORT_BASE_ATTEMPTS = 20;
+
+    private final ClusterMembership membership;
+    private final File baseDir;
+    private final String[] aeronDirectoryNames;
+    private final ClusteredMediaDriver[] drivers;
+    private final AutoCloseable[] containers;
+    private MediaDriver clientMediaDriver;
+
+    private EmbeddedCluster(ClusterMembership membership, File baseDir) {
+        final int memberCount = membership.memberCount();
+        this.membership = membership;
+        this.baseDir = baseDir;
+        this.aeronDirectoryNames = new String[memberCount];
+        this.drivers = new ClusteredMediaDriver[memberCount];
+        this.containers = new AutoCloseable[memberCount];
+    }
+
+    /**
+     * Launch every member of a cluster, which then elects a leader in the background.
+     *
+     * @param memberCount of the cluster, 1 for the quickest start and lowest latency.
+     * @param partitions  of toys, each with its own clustered service on every member.
+     */
+    public static EmbeddedCluster launch(int memberCount, int partitions) throws IOException {
+        final List<String> hostnames = Collections.nCopies(memberCount, "localhost");
+        final ClusterMembership membership = new ClusterMembership(hostnames, hostnames, freePortBase(memberCount));
+        final EmbeddedCluster cluster = new EmbeddedCluster(
+            membership, Files.createTempDirectory("toyfactory-embedded").toFile());
+
+        try {
+            for (int memberId = 0; memberId < memberCount; memberId++) {
+                cluster.start(memberId, partitions);
+            }
+        } catch (RuntimeException e) {
+            cluster.close();
+            throw e;
+        }
+
+        LOGGER.info("Launched an embedded {} member cluster with {} partitions in {}",
+            memberCount, partitions, cluster.baseDir);
+
+        return cluster;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int memberCount = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+        final int partitions = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        final int commands = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+
+        try (EmbeddedCluster embeddedCluster = launch(memberCount, partitions)) {
+            final RoundTrips roundTrips = new RoundTrips(commands);
+            try (AeronCluster cluster = embeddedCluster.connect(roundTrips)) {
+                roundTrips.run(cluster);
+            }
+        }
+    }
+
+    /**
+     * @return the membership the members are configured with.
+     */
+    public ClusterMembership membership() {
+        return membership;
+    }
+
+    /**
+     * Client context for the cluster, with channels and a media driver ready to connect with. Each call returns a
+     * new context which can be given an egress listener and connected once.
+     */
+    public AeronCluster.Context clientContext() {
+        if (1 == membership.memberCount()) {
+            return new AeronCluster.Context()
+                .ingressChannel("aeron:ipc")
+                .egressChannel("aeron:ipc")
+                .aeronDirectoryName(aeronDirectoryNames[0]);
+        }
+
+        if (null == clientMediaDriver) {
+            clientMediaDriver = MediaDriver.launch(new MediaDriver.Context()
+                .aeronDirectoryName(aeronDirectoryName("client"))
+                .dirDeleteOnStart(true)
+                .dirDeleteOnShutdown(true));
+        }
+
+        return new AeronCluster.Context()
+            .ingressChannel("aeron:udp")
+            .ingressEndpoints(membership.ingressEndpoints())
+            .egressChannel("aeron:udp?endpoint=localhost:0")
+            .aeronDirectoryName(clientMediaDriver.aeronDirectoryName());
+    }
+
+    /**
+     * Connect a client, retrying until a leader has been elected.
+     */
+    public AeronCluster connect(EgressListener listener) throws InterruptedException {
+        final long deadlineNs = System.nanoTime() + CONNECT_TIMEOUT_NS;
+        while (true) {
+            try {
+                return AeronCluster.connect(clientContext().egressListener(listener));
+            } catch (RuntimeException e) {
+                if (System.nanoTime() > deadlineNs) {
+                    throw e;
+                }
+                LOGGER.info("Waiting for the embedded cluster to elect a leader: {}", e.getMessage());
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Stop a member, as if it had failed, leaving the others to elect a new leader if it was the leader.
+     */
+    public void stop(int memberId) {
+        CloseHelper.closeAll(containers[memberId], drivers[memberId]);
+        containers[memberId] = null;
+        drivers[memberId] = null;
+        LOGGER.info("Stopped embedded member {}", memberId);
+    }
+
+    public boolean isRunning(int memberId) {
+        return null != drivers[memberId];
+    }
+
+    @Override
+    public void close() {
+        CloseHelper.quietClose(clientMediaDriver);
+        for (int memberId = 0; memberId < drivers.length; memberId++) {
+            if (isRunning(memberId)) {
+                stop(memberId);
+            }
+        }
+        IoUtil.delete(baseDir, true);
+    }
+
+    private void start(int memberId, int partitions) {
+        final ClusterConfig clusterConfig = ClusterNode.clusterConfig(
+            memberId, membership, baseDir, EventJournal.fromSystemProperties(), null, partitions);
+
+        aeronDirectoryNames[memberId] = aeronDirectoryName(Integer.toString(memberId));
+        clusterConfig.aeronDirectoryName(aeronDirectoryNames[memberId]);
+        clusterConfig.mediaDriverContext().dirDeleteOnStart(true).dirDeleteOnShutdown(true);
+        clusterConfig.consensusModuleContext().isIpcIngressAllowed(true);
+
+        drivers[memberId] = ClusteredMediaDriver.launch(
+            clusterConfig.mediaDriverContext(),
+            clusterConfig.archiveContext(),
+            clusterConfig.consensusModuleContext());
+        containers[memberId] = ClusterNode.launchServiceContainers(clusterConfig, () -> {
+        });
+    }
+
+    private String aeronDirectoryName(String suffix) {
+        return CommonContext.getAeronDirectoryName() + "-embedded-" + membership.portBase() + "-" + suffix;
+    }
+
+    /**
+     * Choose a port base at random, such that the ports each member binds are free on the loopback interface.
+     */
+    private static int freePortBase(int memberCount) {
+        final int bases = (MAX_PORT_BASE - MIN_PORT_BASE) / ClusterConfig.PORTS_PER_NODE - memberCount;
+        for (int attempt = 0; attempt < PORT_BASE_ATTEMPTS; attempt++) {
+            final int portBase = MIN_PORT_BASE + ThreadLocalRandom.current().nextInt(bases) *
+                ClusterConfig.PORTS_PER_NODE;
+            if (arePortsFree(memberCount, portBase)) {
+                return portBase;
+            }
+        }
+
+        throw new IllegalStateException("no free port base found after " + PORT_BASE_ATTEMPTS + " attempts");
+    }
+
+    private static boolean arePortsFree(int memberCount, int portBase) {
+        for (int memberId = 0; memberId < memberCount; memberId++) {
+            for (int offset = ClusterConfig.ARCHIVE_CONTROL_PORT_OFFSET;
+                 offset <= ClusterConfig.TRANSFER_PORT_OFFSET;
+                 offset++) {
+                final int port = ClusterConfig.calculatePort(memberId, portBase, offset);
+                try {
+                    new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)).close();
+                } catch (SocketException e) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Sends toy creations one at a time and measures each round trip, the quickest end to end check of a cluster.
+     */
+    private static final class RoundTrips implements EgressListener {
+        private final long[] latenciesNs;
+        private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+        private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+        private final CreateToyCommandEncoder createToyCommandEncoder = new CreateToyCommandEncoder();
+        private boolean responded;
+
+        RoundTrips(int commands) {
+            this.latenciesNs = new long[commands];
+        }
+
+        @Override
+        public void onMessage(
+                long clusterSessionId,
+                long timestamp,
+                DirectBuffer buffer,
+                int offset,
+                int length,
+                Header header) {
+            responded = true;
+        }
+
+        void run(AeronCluster cluster) {
+            final IdleStrategy idleStrategy = new BusySpinIdleStrategy();
+            final int length = MessageHeaderEncoder.ENCODED_LENGTH + createToyCommandEncoder.encodedLength();
+            final long startNs = System.nanoTime();
+
+            for (int i = 0; i < latenciesNs.length; i++) {
+                createToyCommandEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                    .customerId(i)
+                    .requestId(CreateToyCommandEncoder.requestIdNullValue())
+                    .correlationId(CreateToyCommandEncoder.correlationIdNullValue());
+                final long sentNs = System.nanoTime();
+                responded = false;
+                while (cluster.offer(buffer, 0, length) < 0) {
+                    idleStrategy.idle(cluster.pollEgress());
+                }
+
+                while (!responded) {
+                    idleStrategy.idle(cluster.pollEgress());
+                }
+                latenciesNs[i] = System.nanoTime() - sentNs;
+            }
+
+            final long elapsedNs = System.nanoTime() - startNs;
+            LOGGER.info("{} round trips in {}ms, {} per second, latency {}",
+                latenciesNs.length,
+                TimeUnit.NANOSECONDS.toMillis(elapsedNs),
+                latenciesNs.length * TimeUnit.SECONDS.toNanos(1) / elapsedNs,
+                FailoverBenchmark.percentiles(latenciesNs, latenciesNs.length));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.andrewwormald.aerontoys.toyfactory;
+
+import io.aeron.cluster.client.AeronCluster;
+import io.aeron.cluster.client.EgressListener;
+import io.aeron.logbuffer.Header;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.GetToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyCreatedDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyInfoDecoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EmbeddedClusterTest {
+    private static final long RESPONSE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    void createsAToyAndGetsItBack() throws Exception {
+        final Responses responses = new Responses();
+        final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+        final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+
+        try (EmbeddedCluster embeddedCluster = EmbeddedCluster.launch(1, 1);
+             AeronCluster cluster = embeddedCluster.connect(responses)) {
+            final CreateToyCommandEncoder createToyCommandEncoder = new CreateToyCommandEncoder()
+                .wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .customerId(42)
+                .requestId(CreateToyCommandEncoder.requestIdNullValue())
+                .correlationId(1);
+            send(cluster, buffer, createToyCommandEncoder.encodedLength());
+            awaitResponse(cluster, responses, ToyCreatedDecoder.TEMPLATE_ID, 1);
+
+            final long toyId = responses.toyCreatedDecoder.toyId();
+            assertEquals(42, responses.toyCreatedDecoder.customerId());
+            assertEquals(ToyStatusCode.PENDING, responses.toyCreatedDecoder.status());
+
+            final GetToyCommandEncoder getToyCommandEncoder = new GetToyCommandEncoder()
+                .wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .toyId(toyId)
+                .correlationId(2);
+            send(cluster, buffer, getToyCommandEncoder.encodedLength());
+            awaitResponse(cluster, responses, ToyInfoDecoder.TEMPLATE_ID, 2);
+
+            assertEquals(toyId, responses.toyInfoDecoder.toyId());
+            assertEquals(42, responses.toyInfoDecoder.customerId());
+        }
+    }
+
+    private static void send(AeronCluster cluster, DirectBuffer buffer, int encodedLength) {
+        final long deadlineNs = System.nanoTime() + RESPONSE_TIMEOUT_NS;
+        while (cluster.offer(buffer, 0, MessageHeaderEncoder.ENCODED_LENGTH + encodedLength) < 0) {
+            assertTrue(System.nanoTime() < deadlineNs, "timed out offering a command");
+            cluster.pollEgress();
+            Thread.yield();
+        }
+    }
+
+    private static void awaitResponse(AeronCluster cluster, Responses responses, int templateId, long correlationId) {
+        final long deadlineNs = System.nanoTime() + RESPONSE_TIMEOUT_NS;
+        while (responses.correlationId != correlationId) {
+            assertTrue(System.nanoTime() < deadlineNs, "timed out awaiting a response to " + correlationId);
+            if (0 == cluster.pollEgress()) {
+                Thread.yield();
+            }
+        }
+        assertEquals(templateId, responses.templateId);
+    }
+
+    /**
+     * Keeps the last response, wrapped by the decoder for its template.
+     */
+    private static final class Responses implements EgressListener {
+        private final MessageHeaderDecoder headerDecoder = new MessageHeaderDecoder();
+        private final ToyCreatedDecoder toyCreatedDecoder = new ToyCreatedDecoder();
+        private final ToyInfoDecoder toyInfoDecoder = new ToyInfoDecoder();
+        private final ExpandableArrayBuffer lastResponse = new ExpandableArrayBuffer();
+        private int templateId;
+        private long correlationId;
+
+        @Override
+        public void onMessage(
+                long clusterSessionId,
+                long timestamp,
+                DirectBuffer buffer,
+                int offset,
+                int length,
+                Header header) {
+            lastResponse.putBytes(0, buffer, offset, length);
+            headerDecoder.wrap(lastResponse, 0);
+            templateId = headerDecoder.templateId();
+
+            switch (templateId) {
+                case ToyCreatedDecoder.TEMPLATE_ID:
+                    toyCreatedDecoder.wrapAndApplyHeader(lastResponse, 0, headerDecoder);
+                    correlationId = toyCreatedDecoder.correlationId();
+                    break;
+
+                case ToyInfoDecoder.TEMPLATE_ID:
+                    toyInfoDecoder.wrapAndApplyHeader(lastResponse, 0, headerDecoder);
+                    correlationId = toyInfoDecoder.correlationId();
+                    break;
+
+                default:
+                    break;
+            }
+        }
+    }
+}
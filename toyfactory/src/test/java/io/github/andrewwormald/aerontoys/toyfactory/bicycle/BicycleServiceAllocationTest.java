@@ -0,0 +1,279 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.aeron.Aeron;
+import io.aeron.CommonContext;
+import io.aeron.DirectBufferVector;
+import io.aeron.cluster.service.ClientSession;
+import io.aeron.cluster.service.Cluster;
+import io.aeron.cluster.service.ClusteredServiceContainer;
+import io.aeron.driver.MediaDriver;
+import io.aeron.driver.ThreadingMode;
+import io.aeron.logbuffer.BufferClaim;
+import io.github.andrewwormald.aerontoys.shared.codecs.CreateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.GetToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.MessageHeaderEncoder;
+import io.github.andrewwormald.aerontoys.shared.codecs.ToyStatusCode;
+import io.github.andrewwormald.aerontoys.shared.codecs.UpdateToyCommandEncoder;
+import io.github.andrewwormald.aerontoys.toyfactory.EventJournal;
+import org.agrona.CloseHelper;
+import org.agrona.DirectBuffer;
+import org.agrona.ExpandableArrayBuffer;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.NoOpIdleStrategy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Drives the service on the test thread, as the clustered service thread would, with a stub cluster and session so
+ * that only the service's own allocations are measured. A media driver is still needed for the counters the service
+ * allocates as it starts.
+ */
+class BicycleServiceAllocationTest {
+    private static final int WARM_UP_TOYS = 100_000;
+    private static final int WARM_UP_TOYS_PER_CALL = 100;
+    private static final int MEASURED_TOYS = 10_000;
+    private static final int CUSTOMERS = 100;
+
+    private final ExpandableArrayBuffer buffer = new ExpandableArrayBuffer();
+    private final MessageHeaderEncoder headerEncoder = new MessageHeaderEncoder();
+    private final CreateToyCommandEncoder createToyCommandEncoder = new CreateToyCommandEncoder();
+    private final UpdateToyCommandEncoder updateToyCommandEncoder = new UpdateToyCommandEncoder();
+    private final GetToyCommandEncoder getToyCommandEncoder = new GetToyCommandEncoder();
+    private final StubClientSession session = new StubClientSession();
+    private MediaDriver mediaDriver;
+    private Aeron aeron;
+    private StubCluster cluster;
+    private BicycleService service;
+
+    @BeforeEach
+    void setUp() {
+        mediaDriver = MediaDriver.launch(new MediaDriver.Context()
+            .aeronDirectoryName(CommonContext.generateRandomDirName())
+            .threadingMode(ThreadingMode.SHARED)
+            .dirDeleteOnStart(true)
+            .dirDeleteOnShutdown(true));
+        aeron = Aeron.connect(new Aeron.Context().aeronDirectoryName(mediaDriver.aeronDirectoryName()));
+        cluster = new StubCluster(aeron);
+
+        // Sized for every toy the test creates, so the store is never grown while measuring
+        service = new BicycleService(new EventJournal(1024), null, 0, 1, WARM_UP_TOYS + MEASURED_TOYS);
+        service.onStart(cluster, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        CloseHelper.closeAll(() -> service.onTerminate(cluster), aeron, mediaDriver);
+    }
+
+    @Test
+    void createUpdateAndGetAllocateNothing() {
+        final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Warm up until the commands are fully compiled, as the JVM allocates a little on the thread while it
+        // moves between tiers. Interpreted, the commands allocate nothing from the first one.
+        for (int toyId = 0; toyId < WARM_UP_TOYS; toyId += WARM_UP_TOYS_PER_CALL) {
+            createUpdateAndGet(toyId, WARM_UP_TOYS_PER_CALL);
+        }
+        threadMXBean.getCurrentThreadAllocatedBytes();
+
+        final long allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+        createUpdateAndGet(WARM_UP_TOYS, MEASURED_TOYS);
+        final long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        assertEquals(0, allocated, "bytes allocated for " + MEASURED_TOYS + " toys");
+        assertEquals(3L * (WARM_UP_TOYS + MEASURED_TOYS), session.offerCount);
+    }
+
+    /**
+     * Create toys, completing and reading back each one, for customers which already have toys once warmed up. The
+     * partition hands out toyIds in order from 0, so the nth toy created has toyId n.
+     */
+    private void createUpdateAndGet(int firstToyId, int toyCount) {
+        for (int toyId = firstToyId; toyId < firstToyId + toyCount; toyId++) {
+            cluster.time++;
+            createToyCommandEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .customerId(toyId % CUSTOMERS)
+                .requestId(toyId)
+                .correlationId(toyId);
+            onSessionMessage(createToyCommandEncoder.encodedLength());
+
+            cluster.time++;
+            updateToyCommandEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .toyId(toyId)
+                .status(ToyStatusCode.COMPLETED)
+                .correlationId(toyId);
+            onSessionMessage(updateToyCommandEncoder.encodedLength());
+
+            cluster.time++;
+            getToyCommandEncoder.wrapAndApplyHeader(buffer, 0, headerEncoder)
+                .toyId(toyId)
+                .correlationId(toyId);
+            onSessionMessage(getToyCommandEncoder.encodedLength());
+        }
+    }
+
+    private void onSessionMessage(int encodedLength) {
+        service.onSessionMessage(
+            session, cluster.time, buffer, 0, MessageHeaderEncoder.ENCODED_LENGTH + encodedLength, null);
+    }
+
+    /**
+     * Leader's view of the cluster, with the time set by the test and timers which never fire.
+     */
+    private static final class StubCluster implements Cluster {
+        private final Aeron aeron;
+        private final ClusteredServiceContainer.Context context = new ClusteredServiceContainer.Context();
+        private final IdleStrategy idleStrategy = NoOpIdleStrategy.INSTANCE;
+        long time;
+
+        StubCluster(Aeron aeron) {
+            this.aeron = aeron;
+        }
+
+        @Override
+        public int memberId() {
+            return 0;
+        }
+
+        @Override
+        public Role role() {
+            return Role.LEADER;
+        }
+
+        @Override
+        public long logPosition() {
+            return 0;
+        }
+
+        @Override
+        public Aeron aeron() {
+            return aeron;
+        }
+
+        @Override
+        public ClusteredServiceContainer.Context context() {
+            return context;
+        }
+
+        @Override
+        public ClientSession getClientSession(long clusterSessionId) {
+            return null;
+        }
+
+        @Override
+        public Collection<ClientSession> clientSessions() {
+            return List.of();
+        }
+
+        @Override
+        public void forEachClientSession(Consumer<? super ClientSession> action) {
+        }
+
+        @Override
+        public boolean closeClientSession(long clusterSessionId) {
+            return false;
+        }
+
+        @Override
+        public long time() {
+            return time;
+        }
+
+        @Override
+        public TimeUnit timeUnit() {
+            return TimeUnit.MILLISECONDS;
+        }
+
+        @Override
+        public boolean scheduleTimer(long correlationId, long deadline) {
+            return true;
+        }
+
+        @Override
+        public boolean cancelTimer(long correlationId) {
+            return true;
+        }
+
+        @Override
+        public long offer(DirectBuffer buffer, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long offer(DirectBufferVector[] vectors) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long tryClaim(int length, BufferClaim bufferClaim) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IdleStrategy idleStrategy() {
+            return idleStrategy;
+        }
+    }
+
+    /**
+     * Session whose egress always has room, counting the responses offered to it.
+     */
+    private static final class StubClientSession implements ClientSession {
+        long offerCount;
+
+        @Override
+        public long id() {
+            return 1;
+        }
+
+        @Override
+        public int responseStreamId() {
+            return 0;
+        }
+
+        @Override
+        public String responseChannel() {
+            return "aeron:ipc";
+        }
+
+        @Override
+        public byte[] encodedPrincipal() {
+            return new byte[0];
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isClosing() {
+            return false;
+        }
+
+        @Override
+        public long offer(DirectBuffer buffer, int offset, int length) {
+            offerCount++;
+            return 1;
+        }
+
+        @Override
+        public long offer(DirectBufferVector[] vectors) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long tryClaim(int length, BufferClaim bufferClaim) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static io.aeron.Aeron.NULL_VALUE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CreateRequestCacheTest {
+    private static final long TTL_MS = 1000;
+
+    @Test
+    void keepsTheSameRequestIdFromDifferentCustomersApart() {
+        final CreateRequestCache cache = new CreateRequestCache(16, TTL_MS);
+        cache.put(1, 7, 100, 0);
+
+        assertEquals(100, cache.toyId(1, 7, 1, TimeUnit.MILLISECONDS));
+        assertEquals(NULL_VALUE, cache.toyId(2, 7, 1, TimeUnit.MILLISECONDS));
+
+        cache.put(2, 7, 200, 1);
+        assertEquals(100, cache.toyId(1, 7, 2, TimeUnit.MILLISECONDS));
+        assertEquals(200, cache.toyId(2, 7, 2, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void evictsTheOldestRequestsOnceFullOrExpired() {
+        final CreateRequestCache cache = new CreateRequestCache(2, TTL_MS);
+        cache.put(1, 1, 100, 0);
+        cache.put(1, 2, 101, 10);
+        cache.put(1, 3, 102, 20);
+
+        assertEquals(NULL_VALUE, cache.toyId(1, 1, 20, TimeUnit.MILLISECONDS));
+        assertEquals(101, cache.toyId(1, 2, 20, TimeUnit.MILLISECONDS));
+        assertEquals(102, cache.toyId(1, 3, 20, TimeUnit.MILLISECONDS));
+
+        assertEquals(NULL_VALUE, cache.toyId(1, 2, 10 + TTL_MS, TimeUnit.MILLISECONDS));
+        assertEquals(102, cache.toyId(1, 3, 10 + TTL_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.andrewwormald.aerontoys.toyfactory.bicycle;
+
+import io.github.andrewwormald.aerontoys.shared.ToyStatus;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static io.aeron.Aeron.NULL_VALUE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StageTimerWheelTest {
+    /**
+     * Enough ticks past the start to wrap the top level, so timers pass through the overflow bucket.
+     */
+    private static final long HORIZON = 20_000_000;
+
+    /**
+     * Pending deadlines the wheel is sized for, millions of toys waiting on a stage.
+     */
+    private static final int TARGET_TIMER_COUNT = 2_000_000;
+
+    @Test
+    void expiresEachToyOnTheFirstPollAfterItsDeadline() {
+        final int toyCount = 20_000;
+        final ToyStore toys = toys(toyCount);
+        final StageTimerWheel wheel = new StageTimerWheel(toys, 1, 0);
+        final Random random = new Random(42);
+
+        final long[] deadlines = new long[toyCount];
+        for (int i = 0; i < toyCount; i++) {
+            deadlines[i] = random.nextLong(HORIZON);
+            wheel.schedule(i, deadlines[i], 0);
+        }
+        for (int i = 0; i < toyCount; i += 3) {
+            assertTrue(wheel.cancel(i));
+        }
+
+        final long[] expiredAt = new long[toyCount];
+        Arrays.fill(expiredAt, NULL_VALUE);
+        long[] pollTimes = new long[1024];
+        int pollCount = 0;
+        for (long now = 0; pollCount == 0 || pollTimes[pollCount - 1] <= HORIZON; now += 1 + random.nextInt(50_000)) {
+            final long pollTime = now;
+            wheel.poll(pollTime, toyId -> expiredAt[(int) toyId] = pollTime);
+            if (pollCount == pollTimes.length) {
+                pollTimes = Arrays.copyOf(pollTimes, pollCount * 2);
+            }
+            pollTimes[pollCount++] = pollTime;
+        }
+
+        assertEquals(0, wheel.timerCount());
+        for (int i = 0; i < toyCount; i++) {
+            if (0 == i % 3) {
+                assertEquals(NULL_VALUE, expiredAt[i], "cancelled toy " + i + " expired");
+            } else {
+                final int found = Arrays.binarySearch(pollTimes, 0, pollCount, deadlines[i] + 1);
+                final int firstPollAfterDeadline = found >= 0 ? found : -found - 1;
+                assertEquals(pollTimes[firstPollAfterDeadline], expiredAt[i], "toy " + i + " deadline " + deadlines[i]);
+                assertEquals(NULL_VALUE, toys.recordAt(i).deadline());
+            }
+        }
+    }
+
+    /**
+     * Timers are linked through the toy records, so the wheel's own memory is a fixed array of slot heads and
+     * scheduling, rescheduling and expiring the target number of timers allocates nothing, even when they all fall in
+     * the same tick as a burst of toys created together does.
+     */
+    @Test
+    void allocatesNothingForTargetTimerCount() {
+        final ToyStore toys = toys(TARGET_TIMER_COUNT);
+        final StageTimerWheel wheel = new StageTimerWheel(toys, 1 << 10, 0);
+        final long[] expiredCount = new long[1];
+        final StageTimerWheel.ExpiryHandler handler = toyId -> expiredCount[0]++;
+
+        final com.sun.management.ThreadMXBean threadMXBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Warm up so the measured pass neither loads classes nor compiles
+        scheduleAndExpire(wheel, TARGET_TIMER_COUNT, handler);
+        threadMXBean.getCurrentThreadAllocatedBytes();
+        expiredCount[0] = 0;
+
+        final long allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+        scheduleAndExpire(wheel, TARGET_TIMER_COUNT, handler);
+        final long allocated = threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        assertEquals(0, allocated, "bytes allocated for " + TARGET_TIMER_COUNT + " timers");
+        assertEquals(TARGET_TIMER_COUNT, expiredCount[0]);
+        assertEquals(0, wheel.timerCount());
+    }
+
+    private static void scheduleAndExpire(
+        StageTimerWheel wheel, int timerCount, StageTimerWheel.ExpiryHandler handler) {
+        final long start = wheel.currentTickTime();
+        for (int i = 0; i < timerCount; i++) {
+            // Half in a single tick, half spread far enough ahead to reach the higher levels
+            final long deadline = 0 == (i & 1) ? start + 100 : start + (long) i * 64;
+            wheel.schedule(i, deadline, start);
+        }
+        for (int i = 0; i < timerCount; i += 2) {
+            wheel.cancel(i);
+            wheel.schedule(i, start + 200, start);
+        }
+        wheel.poll(start + (long) timerCount * 64 + (1 << 11), handler);
+    }
+
+    private static ToyStore toys(int count) {
+        final ToyStore toys = new ToyStore(count);
+        for (int i = 0; i < count; i++) {
+            toys.add(i, i & 1023, ToyStatus.PENDING, 0);
+        }
+        return toys;
+    }
+}